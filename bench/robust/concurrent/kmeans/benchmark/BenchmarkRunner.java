@@ -0,0 +1,161 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.benchmark;
+
+import java.io.PrintStream;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal harness for micro-benchmarks.  Each benchmark is an operation
+ * run in batches sized to take a fraction of a measurement iteration;
+ * after the warmup iterations, the time per operation is reported as the
+ * mean and standard deviation over the measurement iterations.  The
+ * values returned by the operations are folded into a volatile field so
+ * the JIT cannot eliminate them.
+ * <p>
+ * The number of warmup and measurement iterations and the length of an
+ * iteration in milliseconds are read from the system properties
+ * bench.warmup (default 3), bench.iterations (default 5) and bench.time
+ * (default 500).
+ */
+public class BenchmarkRunner {
+
+    // Receives the results of the operations.
+    private static volatile long sSink;
+
+    // Only benchmarks whose names contain a match are run.
+    private final Pattern mInclude;
+    private final int mWarmupIterations;
+    private final int mMeasurementIterations;
+    private final long mIterationNanos;
+    private final PrintStream mOut;
+
+    /**
+     * An operation to be timed.
+     */
+    public interface Operation {
+
+        /**
+         * Performs the operation once.
+         *
+         * @return any value depending on the work done.
+         */
+        long run();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param include regular expression selecting the benchmarks to run
+     *                by name, or null to run all of them.
+     * @param out     where the results are printed.
+     */
+    public BenchmarkRunner(String include, PrintStream out) {
+        mInclude = Pattern.compile(include != null ? include : "");
+        mWarmupIterations = Integer.getInteger("bench.warmup", 3);
+        mMeasurementIterations = Math.max(1, Integer.getInteger("bench.iterations", 5));
+        mIterationNanos = Long.getLong("bench.time", 500) * 1000000L;
+        mOut = out;
+        mOut.printf("%-64s %14s %12s%n", "Benchmark", "ns/op", "error");
+    }
+
+    /**
+     * Whether the benchmark with this name is selected, so that callers
+     * can skip preparing its data.
+     */
+    public boolean isIncluded(String name) {
+        return mInclude.matcher(name).find();
+    }
+
+    /**
+     * Times the operation and prints the result, if the benchmark is
+     * selected.
+     *
+     * @param name      the name of the benchmark.
+     * @param operation the operation.
+     */
+    public void run(String name, Operation operation) {
+        if (!isIncluded(name)) {
+            return;
+        }
+        long batch = calibrate(operation);
+        for (int i = 0; i < mWarmupIterations; i++) {
+            measure(operation, batch);
+        }
+        double[] nanosPerOp = new double[mMeasurementIterations];
+        double mean = 0;
+        for (int i = 0; i < mMeasurementIterations; i++) {
+            nanosPerOp[i] = measure(operation, batch);
+            mean += nanosPerOp[i];
+        }
+        mean /= mMeasurementIterations;
+        double variance = 0;
+        for (double value : nanosPerOp) {
+            variance += (value - mean) * (value - mean);
+        }
+        double error = mMeasurementIterations > 1 ? Math.sqrt(variance / (mMeasurementIterations - 1)) : 0;
+        mOut.printf("%-64s %14.1f %12.1f%n", name, mean, error);
+    }
+
+    /**
+     * Returns the number of operations in a batch, about a tenth of an
+     * iteration.
+     */
+    private long calibrate(Operation operation) {
+        long batch = 1;
+        while (true) {
+            long start = System.nanoTime();
+            runBatch(operation, batch);
+            long elapsed = System.nanoTime() - start;
+            if (elapsed >= mIterationNanos / 10 || batch >= Long.MAX_VALUE / 2) {
+                return batch;
+            }
+            batch *= 2;
+        }
+    }
+
+    /**
+     * Runs batches for one iteration and returns the time per operation.
+     */
+    private double measure(Operation operation, long batch) {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            runBatch(operation, batch);
+            operations += batch;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < mIterationNanos);
+        return (double) elapsed / operations;
+    }
+
+    private static void runBatch(Operation operation, long batch) {
+        long sink = 0;
+        for (long i = 0; i < batch; i++) {
+            sink ^= operation.run();
+        }
+        sSink ^= sink;
+    }
+}
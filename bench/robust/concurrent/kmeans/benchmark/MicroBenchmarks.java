@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.benchmark;
+
+import robust.concurrent.kmeans.clustering.ClusteringBenchmarks;
+import robust.concurrent.kmeans.clustering.SmartInitialization;
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.QuickMedian;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+import robust.concurrent.kmeans.metric.RobustManhattanDistance;
+
+import java.util.Random;
+
+/**
+ * Micro-benchmarks of the clustering hot paths: the robust distances,
+ * the median, seeding, the center updates and a whole iteration.  Run
+ * with an optional regular expression selecting benchmarks by name, e.g.
+ * <pre>
+ * java -cp out robust.concurrent.kmeans.benchmark.MicroBenchmarks "distance/euclidean"
+ * </pre>
+ */
+public class MicroBenchmarks {
+
+    private static final long SEED = 42;
+    // Number of row pairs the distance benchmarks cycle through.
+    private static final int DISTANCE_PAIRS = 1024;
+    private static final int[] DISTANCE_DIMS = {16, 128, 1024};
+    private static final double[] NAN_FRACTIONS = {0, 0.1, 0.5};
+    private static final int[] MEDIAN_LENGTHS = {1000, 100000};
+    private static final String[] MEDIAN_SHAPES = {"random", "sorted", "constant"};
+    private static final int[] SEEDING_CLUSTERS = {16, 64};
+
+    public static void main(String[] args) {
+        BenchmarkRunner runner = new BenchmarkRunner(args.length > 0 ? args[0] : null, System.out);
+        distances(runner, "euclidean", RobustEuclideanDistance.SINGLETON);
+        distances(runner, "manhattan", RobustManhattanDistance.SINGLETON);
+        medians(runner);
+        seeding(runner);
+        ClusteringBenchmarks.run(runner);
+    }
+
+    /**
+     * The distance between two rows, across dimensions and NaN densities.
+     */
+    private static void distances(BenchmarkRunner runner, String name, DistanceMetric metric) {
+        for (int numDims : DISTANCE_DIMS) {
+            for (double nanFraction : NAN_FRACTIONS) {
+                String benchmark = "distance/" + name + " D=" + numDims + " nan=" + nanFraction;
+                if (!runner.isIncluded(benchmark)) {
+                    continue;
+                }
+                float[][] rows = SyntheticData.clusteredRows(2 * DISTANCE_PAIRS, numDims, 8, nanFraction, SEED);
+                int[] pair = {0};
+                runner.run(benchmark, () -> {
+                    int p = pair[0]++ & (DISTANCE_PAIRS - 1);
+                    return Float.floatToRawIntBits(metric.distance(rows[2 * p], rows[2 * p + 1]));
+                });
+            }
+        }
+    }
+
+    /**
+     * The median of random, sorted and constant values.  The median
+     * reorders its input, so every operation first restores it; the
+     * copy is included in the time.
+     */
+    private static void medians(BenchmarkRunner runner) {
+        for (int length : MEDIAN_LENGTHS) {
+            for (String shape : MEDIAN_SHAPES) {
+                String benchmark = "median/fastMedian " + shape + " n=" + length;
+                if (!runner.isIncluded(benchmark)) {
+                    continue;
+                }
+                float[] input = SyntheticData.medianInput(shape, length, SEED);
+                float[] values = new float[length];
+                runner.run(benchmark, () -> {
+                    System.arraycopy(input, 0, values, 0, length);
+                    return Float.floatToRawIntBits(QuickMedian.fastMedian(values));
+                });
+            }
+        }
+    }
+
+    /**
+     * Farthest-point and k-means|| seeding.
+     */
+    private static void seeding(BenchmarkRunner runner) {
+        for (int k : SEEDING_CLUSTERS) {
+            for (boolean scalable : new boolean[]{false, true}) {
+                String benchmark = "seeding/" + (scalable ? "kmeans||" : "farthest-point")
+                        + " N=20000 D=32 K=" + k;
+                if (!runner.isIncluded(benchmark)) {
+                    continue;
+                }
+                CoordinateStore store = CoordinateStore.of(SyntheticData.clusteredRows(20000, 32, k, 0.1, SEED));
+                Random random = new Random(SEED);
+                runner.run(benchmark, () -> {
+                    SmartInitialization initialization = new SmartInitialization(store, k,
+                            random.nextInt(store.numRows()), false);
+                    int[] indices = scalable ? initialization.getScalableClusterInitialization(5, 1.0, random.nextLong())
+                            : initialization.getSmartClusterInitialization();
+                    return indices[k - 1];
+                });
+            }
+        }
+    }
+}
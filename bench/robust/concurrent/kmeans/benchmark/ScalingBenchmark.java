@@ -0,0 +1,305 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.benchmark;
+
+import robust.concurrent.kmeans.clustering.ClusteringExecutor;
+import robust.concurrent.kmeans.clustering.DistanceStrategy;
+import robust.concurrent.kmeans.clustering.IterationMetrics;
+import robust.concurrent.kmeans.clustering.KMeansMetrics;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMeans;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMedians;
+import robust.concurrent.kmeans.data.CoordinateStore;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs whole clusterings over generated data, sweeping the number of
+ * rows, dimensions, clusters, the NaN fraction, the number of threads,
+ * k-means or k-medians and the distance strategy.  Every run records the
+ * wall time of each phase, the iterations, the peak heap usage and the
+ * final inertia.  The results are written to CSV and JSON files and
+ * summarized in a table, with the speedup over one thread.
+ * <p>
+ * Arguments are name=value pairs whose values are comma-separated lists:
+ * <pre>
+ * n=20000,200000 d=32 k=16 nan=0,0.1 threads=1,2,4 mode=kmeans,kmedians
+ * strategy=cached,fused,tiled,triangle,blocked iterations=50 warmup=1 repeats=1 out=scaling
+ * </pre>
+ * Each configuration is first run warmup times without recording, so
+ * that the measured runs are compiled by the JIT.
+ * The defaults are shown by running with "help".
+ */
+public class ScalingBenchmark {
+
+    private static final long SEED = 42;
+
+    // The values swept, by parameter name.
+    private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+    static {
+        DEFAULTS.put("n", "20000,100000");
+        DEFAULTS.put("d", "32");
+        DEFAULTS.put("k", "16");
+        DEFAULTS.put("nan", "0,0.1");
+        int processors = Runtime.getRuntime().availableProcessors();
+        DEFAULTS.put("threads", processors > 1 ? "1," + processors : "1");
+        DEFAULTS.put("mode", "kmeans,kmedians");
+        DEFAULTS.put("strategy", "cached,fused");
+        DEFAULTS.put("iterations", "50");
+        DEFAULTS.put("warmup", "1");
+        DEFAULTS.put("repeats", "1");
+        DEFAULTS.put("out", "scaling");
+    }
+
+    public static void main(String[] args) throws FileNotFoundException {
+        Map<String, String> options = new HashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                System.out.println("Arguments (name=value[,value...]) and defaults:");
+                for (Map.Entry<String, String> entry : DEFAULTS.entrySet()) {
+                    System.out.println("  " + entry.getKey() + "=" + entry.getValue());
+                }
+                return;
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        int maxIterations = Integer.parseInt(options.get("iterations"));
+        int warmup = Integer.parseInt(options.get("warmup"));
+        int repeats = Integer.parseInt(options.get("repeats"));
+        List<Result> results = new ArrayList<>();
+        for (String n : list(options, "n")) {
+            for (String d : list(options, "d")) {
+                for (String k : list(options, "k")) {
+                    for (String nan : list(options, "nan")) {
+                        CoordinateStore store = CoordinateStore.of(SyntheticData.clusteredRows(
+                                Integer.parseInt(n), Integer.parseInt(d), Integer.parseInt(k),
+                                Double.parseDouble(nan), SEED));
+                        for (String mode : list(options, "mode")) {
+                            for (String strategy : list(options, "strategy")) {
+                                for (String threads : list(options, "threads")) {
+                                    for (int r = -warmup; r < repeats; r++) {
+                                        Result result = run(store, Integer.parseInt(k), Double.parseDouble(nan),
+                                                mode, strategy, Integer.parseInt(threads), maxIterations);
+                                        if (r >= 0) {
+                                            System.out.println(result.describe());
+                                            results.add(result);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        String out = options.get("out");
+        try (PrintStream csv = new PrintStream(out + ".csv")) {
+            writeCsv(results, csv);
+        }
+        try (PrintStream json = new PrintStream(out + ".json")) {
+            writeJson(results, json);
+        }
+        System.out.println();
+        printSummary(results, System.out);
+        System.out.println();
+        System.out.println("Wrote " + out + ".csv and " + out + ".json");
+    }
+
+    private static String[] list(Map<String, String> options, String name) {
+        return options.get(name).split(",");
+    }
+
+    /**
+     * Run one clustering and collect its measurements.
+     */
+    private static Result run(CoordinateStore store, int k, double nanFraction, String mode,
+                              String strategy, int threads, int maxIterations) {
+        RobustConcurrentKMeans kmeans = mode.equals("kmedians")
+                ? new RobustConcurrentKMedians(store, k, maxIterations, SEED, 1)
+                : new RobustConcurrentKMeans(store, k, maxIterations, SEED);
+        switch (strategy) {
+            case "cached":
+                break;
+            case "fused":
+                kmeans.setDistanceStrategy(DistanceStrategy.FUSED);
+                break;
+            case "tiled":
+                kmeans.setDistanceStrategy(DistanceStrategy.TILED);
+                break;
+            case "triangle":
+                kmeans.setUseTriangleInequality(true);
+                break;
+            case "blocked":
+                kmeans.setUseBlockedDistances(true);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown strategy: " + strategy);
+        }
+        ClusteringExecutor executor = new ClusteringExecutor(threads);
+        kmeans.setExecutor(executor);
+
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        long start = System.nanoTime();
+        kmeans.run();
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+        if (kmeans.getClusters() == null) {
+            throw new IllegalStateException("clustering failed: " + mode + " " + strategy);
+        }
+
+        Result result = new Result();
+        result.mode = mode;
+        result.strategy = strategy;
+        result.n = store.numRows();
+        result.d = store.numDimensions();
+        result.k = k;
+        result.nanFraction = nanFraction;
+        result.threads = threads;
+        result.wallNanos = elapsed;
+        result.peakHeap = peakHeap;
+        result.inertia = kmeans.getInertia();
+        result.clusters = kmeans.getClusters().length;
+        KMeansMetrics metrics = kmeans.getMetrics();
+        result.iterations = metrics.getIterations().size() - 1;
+        result.seedingNanos = metrics.getSeedingNanos();
+        result.centerNanos = metrics.getTotalCenterNanos();
+        result.distanceNanos = metrics.getTotalDistanceNanos();
+        result.assignmentNanos = metrics.getTotalAssignmentNanos();
+        result.cacheBytes = metrics.getCacheBytes();
+        double imbalance = 0;
+        for (IterationMetrics iteration : metrics.getIterations()) {
+            imbalance += iteration.getLoadImbalance();
+        }
+        result.loadImbalance = imbalance / metrics.getIterations().size();
+        return result;
+    }
+
+    private static final String[] COLUMNS = {"mode", "strategy", "n", "d", "k", "nan", "threads",
+            "wall_ms", "seeding_ms", "centers_ms", "distances_ms", "assignments_ms", "iterations",
+            "inertia", "clusters", "peak_heap_bytes", "cache_bytes", "load_imbalance"};
+
+    private static void writeCsv(List<Result> results, PrintStream out) {
+        out.println(String.join(",", COLUMNS));
+        for (Result result : results) {
+            out.println(String.join(",", result.values()));
+        }
+    }
+
+    private static void writeJson(List<Result> results, PrintStream out) {
+        out.println("[");
+        for (int r = 0; r < results.size(); r++) {
+            String[] values = results.get(r).values();
+            StringBuilder line = new StringBuilder("  {");
+            for (int c = 0; c < COLUMNS.length; c++) {
+                if (c > 0) {
+                    line.append(", ");
+                }
+                boolean text = c < 2 || values[c].equals("NaN");
+                line.append('"').append(COLUMNS[c]).append("\": ");
+                line.append(text ? '"' + values[c] + '"' : values[c]);
+            }
+            line.append(r < results.size() - 1 ? "}," : "}");
+            out.println(line);
+        }
+        out.println("]");
+    }
+
+    /**
+     * Print one line per run with the speedup over the one-thread run of
+     * the same configuration, if there is one.
+     */
+    private static void printSummary(List<Result> results, PrintStream out) {
+        Map<String, Long> singleThread = new HashMap<>();
+        for (Result result : results) {
+            if (result.threads == 1) {
+                singleThread.putIfAbsent(result.configuration(), result.wallNanos);
+            }
+        }
+        out.printf("%-9s %-9s %9s %5s %5s %5s %7s %10s %6s %14s %10s %8s%n", "mode", "strategy", "n", "d",
+                "k", "nan", "threads", "wall ms", "iters", "inertia", "peak MB", "speedup");
+        for (Result result : results) {
+            Long base = singleThread.get(result.configuration());
+            out.printf(Locale.ROOT, "%-9s %-9s %9d %5d %5d %5.2f %7d %10.1f %6d %14.1f %10.1f %8s%n",
+                    result.mode, result.strategy, result.n, result.d, result.k, result.nanFraction,
+                    result.threads, result.wallNanos / 1e6, result.iterations, result.inertia,
+                    result.peakHeap / 1048576.0,
+                    base != null ? String.format(Locale.ROOT, "%.2f", (double) base / result.wallNanos) : "-");
+        }
+    }
+
+    /**
+     * The measurements of one run.
+     */
+    private static class Result {
+        String mode, strategy;
+        int n, d, k, threads, iterations, clusters;
+        double nanFraction, inertia, loadImbalance;
+        long wallNanos, seedingNanos, centerNanos, distanceNanos, assignmentNanos, peakHeap, cacheBytes;
+
+        String configuration() {
+            return mode + " " + strategy + " " + n + " " + d + " " + k + " " + nanFraction;
+        }
+
+        String[] values() {
+            return new String[]{mode, strategy, Integer.toString(n), Integer.toString(d),
+                    Integer.toString(k), Double.toString(nanFraction), Integer.toString(threads),
+                    millis(wallNanos), millis(seedingNanos), millis(centerNanos), millis(distanceNanos),
+                    millis(assignmentNanos), Integer.toString(iterations), Double.toString(inertia),
+                    Integer.toString(clusters), Long.toString(peakHeap), Long.toString(cacheBytes),
+                    String.format(Locale.ROOT, "%.3f", loadImbalance)};
+        }
+
+        String describe() {
+            return configuration() + " threads=" + threads + ": " + millis(wallNanos) + " ms, "
+                    + iterations + " iterations, inertia " + inertia;
+        }
+
+        private static String millis(long nanos) {
+            return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        }
+    }
+}
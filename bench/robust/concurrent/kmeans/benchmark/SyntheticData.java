@@ -0,0 +1,96 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Reproducible inputs for the benchmarks.  The same arguments always
+ * produce the same data.
+ */
+public class SyntheticData {
+
+    /**
+     * Generates rows drawn around k random centers, each value replaced
+     * by NaN with the given probability.
+     *
+     * @param numRows     the number of rows.
+     * @param numDims     the number of dimensions.
+     * @param k           the number of centers the rows are drawn around.
+     * @param nanFraction the probability of a value being NaN.
+     * @param seed        the random seed.
+     * @return the rows.
+     */
+    public static float[][] clusteredRows(int numRows, int numDims, int k, double nanFraction, long seed) {
+        Random random = new Random(seed);
+        float[][] centers = new float[k][numDims];
+        for (float[] center : centers) {
+            for (int j = 0; j < numDims; j++) {
+                center[j] = (float) (5 * random.nextGaussian());
+            }
+        }
+        float[][] rows = new float[numRows][numDims];
+        for (float[] row : rows) {
+            float[] center = centers[random.nextInt(k)];
+            for (int j = 0; j < numDims; j++) {
+                row[j] = random.nextDouble() < nanFraction ? Float.NaN
+                        : (float) (center[j] + random.nextGaussian());
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Generates input for a median: uniformly random, sorted or constant
+     * values.
+     *
+     * @param shape  "random", "sorted" or "constant".
+     * @param length the number of values.
+     * @param seed   the random seed.
+     * @return the values.
+     */
+    public static float[] medianInput(String shape, int length, long seed) {
+        Random random = new Random(seed);
+        float[] values = new float[length];
+        switch (shape) {
+            case "random":
+            case "sorted":
+                for (int i = 0; i < length; i++) {
+                    values[i] = random.nextFloat();
+                }
+                if (shape.equals("sorted")) {
+                    Arrays.sort(values);
+                }
+                break;
+            case "constant":
+                Arrays.fill(values, random.nextFloat());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown shape: " + shape);
+        }
+        return values;
+    }
+}
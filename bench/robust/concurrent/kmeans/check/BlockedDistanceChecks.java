@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.clustering.Cluster;
+import robust.concurrent.kmeans.clustering.DistanceStrategy;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMeans;
+import robust.concurrent.kmeans.data.CoordinateStore;
+
+import java.util.Arrays;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+import static robust.concurrent.kmeans.check.CheckRunner.checkClose;
+
+/**
+ * Checks that the tiled distance engine finds the same partition as the
+ * exact distances from the same seed, with the distance cache and with
+ * the tiled strategy, including rows with NaNs and a row that is all
+ * NaN, for dimensions below and above a slice and blocks that do not
+ * fill the microkernel.
+ */
+public class BlockedDistanceChecks {
+
+    private static final long SEED = 42;
+    private static final int NUM_ROWS = 2003;
+    private static final int NUM_CLUSTERS = 7;
+    private static final int MAX_ITERATIONS = 50;
+    // Relative tolerance of the expansion ||x||^2 + ||c||^2 - 2 x.c.
+    private static final double TOLERANCE = 1e-4;
+
+    public static void run(CheckRunner runner) {
+        for (int numDims : new int[]{5, 37, 300}) {
+            for (double nanFraction : new double[]{0, 0.1, 0.6}) {
+                runner.run("blocked/cached D=" + numDims + " nan=" + nanFraction,
+                        () -> compare(numDims, nanFraction, DistanceStrategy.CACHED));
+                runner.run("blocked/tiled D=" + numDims + " nan=" + nanFraction,
+                        () -> compare(numDims, nanFraction, DistanceStrategy.TILED));
+            }
+        }
+    }
+
+    private static void compare(int numDims, double nanFraction, DistanceStrategy strategy) {
+        float[][] rows = SyntheticData.clusteredRows(NUM_ROWS, numDims, NUM_CLUSTERS, nanFraction, SEED);
+        Arrays.fill(rows[NUM_ROWS / 2], Float.NaN);
+        CoordinateStore store = CoordinateStore.of(rows);
+        RobustConcurrentKMeans exact = new RobustConcurrentKMeans(store, NUM_CLUSTERS, MAX_ITERATIONS, SEED);
+        exact.setDistanceStrategy(strategy == DistanceStrategy.TILED ? DistanceStrategy.FUSED : strategy);
+        exact.run();
+        RobustConcurrentKMeans blocked = new RobustConcurrentKMeans(store, NUM_CLUSTERS, MAX_ITERATIONS, SEED);
+        blocked.setDistanceStrategy(strategy);
+        blocked.setUseBlockedDistances(strategy == DistanceStrategy.CACHED);
+        blocked.run();
+
+        Cluster[] expected = exact.getClusters();
+        Cluster[] actual = blocked.getClusters();
+        check(expected.length == actual.length, "%d clusters, exact %d", actual.length, expected.length);
+        for (int c = 0; c < expected.length; c++) {
+            check(Arrays.equals(expected[c].getMemberIndexes(), actual[c].getMemberIndexes()),
+                    "members of cluster %d differ", c);
+            for (int j = 0; j < numDims; j++) {
+                checkClose(expected[c].getCenter()[j], actual[c].getCenter()[j], TOLERANCE,
+                        "cluster " + c + " center " + j);
+            }
+        }
+        checkClose(exact.getInertia(), blocked.getInertia(), TOLERANCE, "inertia");
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import java.io.PrintStream;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal harness for self-checking correctness checks, the counterpart
+ * of BenchmarkRunner.  Each check is run once; it passes unless it throws,
+ * and the failures are counted so the caller can set the exit status.
+ */
+public class CheckRunner {
+
+    // Only checks whose names contain a match are run.
+    private final Pattern mInclude;
+    private final PrintStream mOut;
+    private int mNumRun;
+    private int mNumFailed;
+
+    /**
+     * A check to be run.
+     */
+    public interface Check {
+
+        /**
+         * Runs the check, throwing if it fails.
+         */
+        void run() throws Exception;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param include regular expression selecting the checks to run by
+     *                name, or null to run all of them.
+     * @param out     where the results are printed.
+     */
+    public CheckRunner(String include, PrintStream out) {
+        mInclude = Pattern.compile(include != null ? include : "");
+        mOut = out;
+    }
+
+    /**
+     * Whether the check with this name is selected, so that callers can
+     * skip preparing its data.
+     */
+    public boolean isIncluded(String name) {
+        return mInclude.matcher(name).find();
+    }
+
+    /**
+     * Runs the check and prints the outcome, if the check is selected.
+     *
+     * @param name  the name of the check.
+     * @param check the check.
+     */
+    public void run(String name, Check check) {
+        if (!isIncluded(name)) {
+            return;
+        }
+        mNumRun++;
+        long start = System.nanoTime();
+        try {
+            check.run();
+            mOut.printf("PASS %-64s %8.0f ms%n", name, (System.nanoTime() - start) / 1e6);
+        } catch (Throwable t) {
+            mNumFailed++;
+            mOut.printf("FAIL %-64s %s%n", name, t);
+        }
+    }
+
+    /**
+     * Reports a selected check that cannot run in this environment.
+     *
+     * @param name   the name of the check.
+     * @param reason why it is skipped.
+     */
+    public void skip(String name, String reason) {
+        if (isIncluded(name)) {
+            mOut.printf("SKIP %-64s %s%n", name, reason);
+        }
+    }
+
+    /**
+     * @return the number of checks run.
+     */
+    public int numRun() {
+        return mNumRun;
+    }
+
+    /**
+     * @return the number of checks that failed.
+     */
+    public int numFailed() {
+        return mNumFailed;
+    }
+
+    /**
+     * Fails the running check unless the condition holds.
+     *
+     * @param condition the condition.
+     * @param format    message format, as for String.format().
+     * @param args      message arguments.
+     */
+    public static void check(boolean condition, String format, Object... args) {
+        if (!condition) {
+            throw new AssertionError(String.format(format, args));
+        }
+    }
+
+    /**
+     * Fails the running check unless the actual value is within the
+     * tolerance of the expected one, relative to the larger magnitude
+     * but at least the tolerance itself.  Two NaNs, or two equal
+     * infinities, are close.
+     */
+    public static void checkClose(double expected, double actual, double tolerance, String what) {
+        if (expected == actual || (Double.isNaN(expected) && Double.isNaN(actual))) {
+            return;
+        }
+        double allowed = tolerance * Math.max(1, Math.max(Math.abs(expected), Math.abs(actual)));
+        check(Math.abs(expected - actual) <= allowed, "%s: expected %s, got %s", what, expected, actual);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+/**
+ * Runs the correctness checks.  Run with an optional regular expression
+ * selecting checks by name, e.g.
+ * <pre>
+ * java -cp out robust.concurrent.kmeans.check.Checks "concurrency/"
+ * </pre>
+ * Exits with status 1 if any check fails.
+ */
+public class Checks {
+
+    public static void main(String[] args) {
+        CheckRunner runner = new CheckRunner(args.length > 0 ? args[0] : null, System.out);
+        ConcurrencyChecks.run(runner);
+        KernelChecks.run(runner);
+        MetricChecks.run(runner);
+        SeedingChecks.run(runner);
+        ReducedPrecisionChecks.run(runner);
+        SparseChecks.run(runner);
+        FilteringChecks.run(runner);
+        BlockedDistanceChecks.run(runner);
+        System.out.println(runner.numRun() + " checks, " + runner.numFailed() + " failed");
+        System.exit(runner.numFailed() > 0 ? 1 : 0);
+    }
+}
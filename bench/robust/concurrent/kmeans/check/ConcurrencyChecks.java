@@ -0,0 +1,182 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.clustering.Cluster;
+import robust.concurrent.kmeans.clustering.ClusteringExecutor;
+import robust.concurrent.kmeans.clustering.DistanceStrategy;
+import robust.concurrent.kmeans.clustering.KMeansListener;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMeans;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMedians;
+import robust.concurrent.kmeans.data.CoordinateStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+
+/**
+ * Checks that clusterings running at the same time in one JVM do not
+ * interfere: many k-means and k-medians runs with different data and
+ * settings are started together, some sharing their coordinates and
+ * executor, and each result must equal that of the same run made alone.
+ */
+public class ConcurrencyChecks {
+
+    private static final int NUM_JOBS = 24;
+    private static final int NUM_ROWS = 3000;
+    private static final int NUM_DIMS = 16;
+
+    public static void run(CheckRunner runner) {
+        runner.run("concurrency/" + NUM_JOBS + " clusterings at once", ConcurrencyChecks::concurrentRuns);
+    }
+
+    private static void concurrentRuns() throws InterruptedException {
+        ClusteringExecutor sharedExecutor = new ClusteringExecutor(4);
+        try {
+            List<Job> jobs = new ArrayList<>(NUM_JOBS);
+            CoordinateStore shared = null;
+            for (int j = 0; j < NUM_JOBS; j++) {
+                // Every fourth job clusters the coordinates of the one
+                // before it, so their lazily computed NaN masks are shared.
+                CoordinateStore store = j % 4 == 3 ? shared : CoordinateStore.of(
+                        SyntheticData.clusteredRows(NUM_ROWS, NUM_DIMS, 6 + j % 5, 0.05 * (j % 3), j));
+                shared = store;
+                jobs.add(new Job(j, store, j % 2 == 0 ? sharedExecutor : null));
+            }
+
+            List<Result> expected = new ArrayList<>(NUM_JOBS);
+            for (Job job : jobs) {
+                expected.add(job.call());
+            }
+
+            Result[] actual = new Result[NUM_JOBS];
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>(NUM_JOBS);
+            for (Job job : jobs) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        actual[job.mIndex] = job.call();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, "clustering-" + job.mIndex);
+                threads.add(thread);
+                thread.start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            for (int j = 0; j < NUM_JOBS; j++) {
+                check(actual[j] != null, "job %d did not finish", j);
+                expected.get(j).checkEquals(actual[j], "job " + j);
+            }
+        } finally {
+            sharedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * One clustering, whose settings are derived from its index.
+     */
+    private static final class Job {
+
+        private final int mIndex;
+        private final CoordinateStore mStore;
+        private final ClusteringExecutor mExecutor;
+
+        Job(int index, CoordinateStore store, ClusteringExecutor executor) {
+            mIndex = index;
+            mStore = store;
+            mExecutor = executor;
+        }
+
+        Result call() {
+            int k = 4 + mIndex % 7;
+            RobustConcurrentKMeans kmeans = mIndex % 3 == 2
+                    ? new RobustConcurrentKMedians(mStore, k, 30, mIndex, 1)
+                    : new RobustConcurrentKMeans(mStore, k, 30, mIndex);
+            kmeans.setUseTriangleInequality(mIndex % 5 == 1);
+            if (mIndex % 4 == 0) {
+                kmeans.setDistanceStrategy(DistanceStrategy.FUSED);
+            } else if (mIndex % 4 == 3) {
+                kmeans.setDistanceStrategy(DistanceStrategy.TILED);
+            }
+            kmeans.setUseScalableSeeding(mIndex % 6 == 5);
+            if (mExecutor != null) {
+                kmeans.setExecutor(mExecutor);
+            }
+            Result result = new Result();
+            kmeans.addKMeansListener(new KMeansListener() {
+                @Override
+                public void kmeansMessage(String message) {
+                }
+
+                @Override
+                public void kmeansComplete(Cluster[] clusters) {
+                }
+
+                @Override
+                public void kmeansError(Throwable t) {
+                    result.mError = t;
+                }
+            });
+            kmeans.run();
+            result.mClusters = kmeans.getClusters();
+            result.mInertia = kmeans.getInertia();
+            return result;
+        }
+    }
+
+    /**
+     * The outcome of a clustering.
+     */
+    private static final class Result {
+
+        Cluster[] mClusters;
+        double mInertia;
+        Throwable mError;
+
+        void checkEquals(Result other, String what) {
+            check(mError == null && other.mError == null, "%s failed: %s / %s", what, mError, other.mError);
+            check(mClusters.length == other.mClusters.length, "%s: %d clusters alone, %d concurrently",
+                    what, mClusters.length, other.mClusters.length);
+            for (int c = 0; c < mClusters.length; c++) {
+                check(Arrays.equals(mClusters[c].getMemberIndexes(), other.mClusters[c].getMemberIndexes()),
+                        "%s: members of cluster %d differ", what, c);
+                check(Arrays.equals(mClusters[c].getCenter(), other.mClusters[c].getCenter()),
+                        "%s: center of cluster %d differs", what, c);
+            }
+            check(Double.compare(mInertia, other.mInertia) == 0, "%s: inertia %s alone, %s concurrently",
+                    what, mInertia, other.mInertia);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.clustering.Cluster;
+import robust.concurrent.kmeans.clustering.FilteringKMeans;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMeans;
+import robust.concurrent.kmeans.data.CoordinateStore;
+
+import java.util.Arrays;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+import static robust.concurrent.kmeans.check.CheckRunner.checkClose;
+
+/**
+ * Checks that the kd-tree filtering k-means finds the same partition as
+ * Lloyd's algorithm from the same seeds, on dense rows and on rows with
+ * NaNs, which take the exact fallback path.  Seeding from all the rows
+ * gives both the same initial centers.
+ */
+public class FilteringChecks {
+
+    private static final int NUM_ROWS = 20000;
+    private static final int MAX_ITERATIONS = 100;
+    private static final int[] DIMENSIONS = {2, 4, 8};
+    private static final double[] NAN_FRACTIONS = {0, 0.02, 0.2};
+    private static final int[] NUM_CLUSTERS = {5, 12};
+    // Centers and inertia are summed in a different order.
+    private static final double TOLERANCE = 1e-5;
+
+    public static void run(CheckRunner runner) {
+        for (int numDims : DIMENSIONS) {
+            for (double nanFraction : NAN_FRACTIONS) {
+                for (int k : NUM_CLUSTERS) {
+                    runner.run("filtering/same as lloyd D=" + numDims + " nan=" + nanFraction + " k=" + k,
+                            () -> compare(numDims, nanFraction, k, numDims + k));
+                }
+            }
+        }
+    }
+
+    private static void compare(int numDims, double nanFraction, int k, long seed) {
+        CoordinateStore store = CoordinateStore.of(
+                SyntheticData.clusteredRows(NUM_ROWS, numDims, k, nanFraction, seed));
+        RobustConcurrentKMeans lloyd = new RobustConcurrentKMeans(store, k, MAX_ITERATIONS, seed);
+        lloyd.run();
+        FilteringKMeans filtering = new FilteringKMeans(store, k, MAX_ITERATIONS, seed);
+        filtering.setSeedSampleSize(NUM_ROWS);
+        filtering.run();
+
+        Cluster[] expected = lloyd.getClusters();
+        Cluster[] actual = filtering.getClusters();
+        check(expected.length == actual.length, "%d clusters, lloyd %d", actual.length, expected.length);
+        for (int c = 0; c < expected.length; c++) {
+            check(Arrays.equals(expected[c].getMemberIndexes(), actual[c].getMemberIndexes()),
+                    "members of cluster %d differ", c);
+            for (int j = 0; j < numDims; j++) {
+                checkClose(expected[c].getCenter()[j], actual[c].getCenter()[j], TOLERANCE,
+                        "center " + c + " dim " + j);
+            }
+        }
+        checkClose(lloyd.getInertia(), filtering.getInertia(), TOLERANCE, "inertia");
+    }
+}
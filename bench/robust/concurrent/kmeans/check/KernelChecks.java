@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.metric.DistanceKernels;
+
+import java.util.Random;
+
+import static robust.concurrent.kmeans.check.CheckRunner.checkClose;
+
+/**
+ * Checks that the lane-parallel and Vector API distance kernels agree
+ * with the scalar ones within rounding, across lengths that do and do not
+ * fill whole vectors, NaN densities from none to all, and offsets into
+ * the first array.  The Vector API check is skipped when the kernels
+ * cannot be loaded.
+ */
+public class KernelChecks {
+
+    private static final long SEED = 42;
+    private static final int[] LENGTHS = {1, 3, 4, 7, 8, 15, 16, 17, 31, 33, 63, 64, 65, 255, 257, 1000, 4099};
+    private static final double[] NAN_FRACTIONS = {0, 0.01, 0.3, 0.9, 1};
+    private static final int PAIRS = 20;
+    // Relative tolerance; the kernels only differ in the order of summing.
+    private static final double TOLERANCE = 1e-5;
+
+    public static void run(CheckRunner runner) {
+        runner.run("kernels/lanes agree with scalar", () -> compare(DistanceKernels.LANES));
+        if (DistanceKernels.VECTOR != null) {
+            runner.run("kernels/vector agree with scalar", () -> compare(DistanceKernels.VECTOR));
+        } else {
+            runner.skip("kernels/vector agree with scalar",
+                    "Vector API kernels not loaded (needs --add-modules jdk.incubator.vector)");
+        }
+    }
+
+    private static void compare(DistanceKernels kernels) {
+        DistanceKernels scalar = DistanceKernels.SCALAR;
+        Random random = new Random(SEED);
+        for (int length : LENGTHS) {
+            for (double nanFraction : NAN_FRACTIONS) {
+                for (int p = 0; p < PAIRS; p++) {
+                    int offset = random.nextInt(5);
+                    float[] x = new float[offset + length];
+                    float[] y = new float[length];
+                    float[] denseX = new float[offset + length];
+                    float[] denseY = new float[length];
+                    for (int j = 0; j < length; j++) {
+                        denseX[offset + j] = (float) (10 * random.nextGaussian());
+                        denseY[j] = (float) (10 * random.nextGaussian());
+                        x[offset + j] = random.nextDouble() < nanFraction / 2 ? Float.NaN : denseX[offset + j];
+                        y[j] = random.nextDouble() < nanFraction / 2 ? Float.NaN : denseY[j];
+                    }
+                    String where = " D=" + length + " nan=" + nanFraction + " pair " + p;
+                    checkClose(scalar.denseSumOfSquares(denseX, offset, denseY, 0, length),
+                            kernels.denseSumOfSquares(denseX, offset, denseY, 0, length), TOLERANCE,
+                            "denseSumOfSquares" + where);
+                    checkClose(scalar.denseSumOfAbs(denseX, offset, denseY, 0, length),
+                            kernels.denseSumOfAbs(denseX, offset, denseY, 0, length), TOLERANCE,
+                            "denseSumOfAbs" + where);
+                    checkClose(scalar.nonNanMeanSquaredError(x, offset, y, length),
+                            kernels.nonNanMeanSquaredError(x, offset, y, length), TOLERANCE,
+                            "nonNanMeanSquaredError" + where);
+                    checkClose(scalar.nonNanMeanAbsoluteError(x, offset, y, length),
+                            kernels.nonNanMeanAbsoluteError(x, offset, y, length), TOLERANCE,
+                            "nonNanMeanAbsoluteError" + where);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.data.FlatCoordinateStore;
+import robust.concurrent.kmeans.data.HalfPrecisionCoordinateStore;
+import robust.concurrent.kmeans.data.OffHeapCoordinateStore;
+import robust.concurrent.kmeans.data.QuantizedCoordinateStore;
+import robust.concurrent.kmeans.data.SparseCoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+
+import java.util.Arrays;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+
+/**
+ * Checks that a metric written against the original DistanceMetric,
+ * which only defines distance(x, y), still works with every store: each
+ * store must hand it the decoded row and return its result unchanged.
+ */
+public class MetricChecks {
+
+    private static final long SEED = 42;
+    private static final int NUM_ROWS = 500;
+    private static final int NUM_DIMS = 70;
+    private static final int NUM_CENTERS = 4;
+
+    public static void run(CheckRunner runner) {
+        for (double nanFraction : new double[]{0, 0.2}) {
+            runner.run("metric/distance(x, y) only nan=" + nanFraction, () -> legacyMetric(nanFraction));
+        }
+    }
+
+    private static void legacyMetric(double nanFraction) {
+        float[][] rows = SyntheticData.clusteredRows(NUM_ROWS, NUM_DIMS, NUM_CENTERS, nanFraction, SEED);
+        Arrays.fill(rows[NUM_ROWS / 2], Float.NaN);
+        float[][] centers = new float[NUM_CENTERS][];
+        for (int c = 0; c < NUM_CENTERS; c++) {
+            centers[c] = rows[c].clone();
+        }
+        centers[1][0] = Float.NaN;
+        NanMasks centerMasks = CoordinateStore.of(centers).getNanMasks();
+        CoordinateStore[] stores = {
+                CoordinateStore.of(rows),
+                FlatCoordinateStore.copyOf(rows),
+                OffHeapCoordinateStore.copyOf(rows),
+                HalfPrecisionCoordinateStore.copyOf(rows),
+                QuantizedCoordinateStore.copyOf(rows, QuantizedCoordinateStore.Scaling.PER_ROW),
+                QuantizedCoordinateStore.copyOf(rows, QuantizedCoordinateStore.Scaling.PER_COLUMN),
+                SparseCoordinateStore.copyOf(rows)};
+        DistanceMetric metric = new LargestDifference();
+        float[] row = new float[NUM_DIMS];
+        float[] scratch = new float[NUM_DIMS];
+        for (CoordinateStore store : stores) {
+            String name = store.getClass().getSimpleName();
+            for (int i = 0; i < NUM_ROWS; i++) {
+                store.getRow(i, row);
+                for (int c = 0; c < NUM_CENTERS; c++) {
+                    float expected = metric.distance(row, centers[c]);
+                    float actual = store.distance(i, centers[c], metric, scratch);
+                    check(Float.compare(expected, actual) == 0, "%s row %d center %d: %s, expected %s",
+                            name, i, c, actual, expected);
+                    actual = store.distance(i, centers[c], centerMasks, c, metric, scratch);
+                    check(Float.compare(expected, actual) == 0, "%s row %d center %d masked: %s, expected %s",
+                            name, i, c, actual, expected);
+                }
+            }
+        }
+    }
+
+    /**
+     * The largest absolute difference over the dimensions defined in
+     * both vectors, or 0 if there are none.
+     */
+    private static final class LargestDifference extends DistanceMetric {
+
+        @Override
+        public float distance(float[] x, float[] y) {
+            check(x.length == y.length, "vectors of length %d and %d", x.length, y.length);
+            float max = 0;
+            for (int j = 0; j < x.length; j++) {
+                float diff = Math.abs(x[j] - y[j]);
+                if (diff > max) {
+                    max = diff;
+                }
+            }
+            return max;
+        }
+    }
+}
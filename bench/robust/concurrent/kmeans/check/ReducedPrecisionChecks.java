@@ -0,0 +1,260 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.data.HalfPrecisionCoordinateStore;
+import robust.concurrent.kmeans.data.QuantizedCoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+import robust.concurrent.kmeans.metric.ReducedPrecision;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+import robust.concurrent.kmeans.metric.RobustManhattanDistance;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+import static robust.concurrent.kmeans.check.CheckRunner.checkClose;
+
+/**
+ * Checks the reduced-precision stores: every half precision code
+ * converts to the float it stands for and back, values round within the
+ * documented error bounds, NaNs survive, the fused distance kernels agree
+ * with decoding the row first, as other metrics get it, and distances
+ * stay within the documented bounds of the exact ones.
+ */
+public class ReducedPrecisionChecks {
+
+    private static final long SEED = 42;
+    private static final int NUM_ROWS = 300;
+    private static final int[] LENGTHS = {1, 3, 4, 7, 16, 33, 130};
+    private static final double[] NAN_FRACTIONS = {0, 0.1, 0.9};
+    private static final int NUM_CENTERS = 4;
+    private static final DistanceMetric[] METRICS = {
+            RobustEuclideanDistance.SINGLETON, RobustManhattanDistance.SINGLETON};
+    // Subclasses, which the stores hand decoded rows instead of using the
+    // fused kernels.
+    private static final DistanceMetric[] DECODING_METRICS = {
+            new RobustEuclideanDistance() {
+            }, new RobustManhattanDistance() {
+            }};
+    // The fused kernels for rows with NaNs sum in a different order than
+    // the metric on the decoded row.
+    private static final double TOLERANCE = 1e-5;
+
+    public static void run(CheckRunner runner) {
+        runner.run("reduced/half precision codes round trip", ReducedPrecisionChecks::halfRoundTrip);
+        runner.run("reduced/half precision rounding error", ReducedPrecisionChecks::halfRoundingError);
+        for (QuantizedCoordinateStore.Scaling scaling : QuantizedCoordinateStore.Scaling.values()) {
+            runner.run("reduced/int8 rounding error " + scaling, () -> int8RoundingError(scaling));
+        }
+        runner.run("reduced/fused distances agree with decoded rows", ReducedPrecisionChecks::fusedDistances);
+        runner.run("reduced/distance error bounds", ReducedPrecisionChecks::distanceBounds);
+    }
+
+    private static void halfRoundTrip() {
+        for (int bits = 0; bits <= 0xffff; bits++) {
+            short half = (short) bits;
+            float value = ReducedPrecision.fromHalf(half);
+            int exponent = (bits >>> 10) & 0x1f;
+            int mantissa = bits & 0x3ff;
+            if (exponent == 0x1f) {
+                check(mantissa == 0 ? Float.isInfinite(value) : Float.isNaN(value),
+                        "code %04x decodes to %s", bits, value);
+                if (mantissa != 0) {
+                    continue;
+                }
+            } else {
+                double magnitude = exponent == 0
+                        ? Math.scalb((double) mantissa, -24)
+                        : Math.scalb((double) (1024 + mantissa), exponent - 25);
+                double expected = (bits & 0x8000) != 0 ? -magnitude : magnitude;
+                check(value == expected && (Float.floatToRawIntBits(value) < 0) == ((bits & 0x8000) != 0),
+                        "code %04x decodes to %s, not %s", bits, value, expected);
+            }
+            check(ReducedPrecision.toHalf(value) == half, "code %04x decodes to %s, which encodes to %04x",
+                    bits, value, ReducedPrecision.toHalf(value) & 0xffff);
+        }
+        check(Float.isNaN(ReducedPrecision.fromHalf(ReducedPrecision.toHalf(Float.NaN))), "NaN is not kept");
+    }
+
+    private static void halfRoundingError() {
+        Random random = new Random(SEED);
+        for (int n = 0; n < 1000000; n++) {
+            float value = (float) Math.scalb(random.nextDouble() * 2 - 1, random.nextInt(44) - 27);
+            float decoded = ReducedPrecision.fromHalf(ReducedPrecision.toHalf(value));
+            double error = Math.abs((double) decoded - value);
+            if (Math.abs(value) > 65504) {
+                check(Math.abs(decoded) == 65504, "%s clamps to %s", value, decoded);
+            } else if (Math.abs(value) >= 0x1p-14) {
+                check(error <= Math.abs(value) * 0x1p-11, "%s rounds to %s", value, decoded);
+            } else {
+                check(error <= 0x1p-25, "%s rounds to %s", value, decoded);
+            }
+        }
+    }
+
+    private static void int8RoundingError(QuantizedCoordinateStore.Scaling scaling) {
+        for (int length : LENGTHS) {
+            for (double nanFraction : NAN_FRACTIONS) {
+                float[][] rows = rows(length, nanFraction, new Random(SEED + length));
+                QuantizedCoordinateStore store = QuantizedCoordinateStore.copyOf(rows, scaling);
+                for (int i = 0; i < rows.length; i++) {
+                    // The bound is exact in real numbers; allow for the
+                    // float rounding of zero + scale * code.
+                    double bound = store.maxError(i) + 4 * Math.ulp(maxAbs(rows[i]));
+                    for (int j = 0; j < length; j++) {
+                        float decoded = store.get(i, j);
+                        if (Float.isNaN(rows[i][j])) {
+                            check(Float.isNaN(decoded), "row %d dim %d: NaN decodes to %s", i, j, decoded);
+                        } else {
+                            check(Math.abs((double) decoded - rows[i][j]) <= bound,
+                                    "row %d dim %d: %s decodes to %s, bound %s", i, j, rows[i][j], decoded, bound);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void fusedDistances() {
+        for (int length : LENGTHS) {
+            for (double nanFraction : NAN_FRACTIONS) {
+                Random random = new Random(SEED + length);
+                float[][] rows = rows(length, nanFraction, random);
+                float[][] centers = centers(length, random);
+                CoordinateStore centerStore = CoordinateStore.of(centers);
+                NanMasks centerMasks = centerStore.getNanMasks();
+                CoordinateStore[] stores = {
+                        HalfPrecisionCoordinateStore.copyOf(rows),
+                        QuantizedCoordinateStore.copyOf(rows, QuantizedCoordinateStore.Scaling.PER_ROW),
+                        QuantizedCoordinateStore.copyOf(rows, QuantizedCoordinateStore.Scaling.PER_COLUMN)};
+                float[] row = new float[length];
+                for (CoordinateStore store : stores) {
+                    for (DistanceMetric metric : concat(METRICS, DECODING_METRICS)) {
+                        for (int i = 0; i < rows.length; i++) {
+                            store.getRow(i, row);
+                            for (int c = 0; c < centers.length; c++) {
+                                String what = store.getClass().getSimpleName() + " "
+                                        + metric.getClass().getName() + " D=" + length
+                                        + " nan=" + nanFraction + " row " + i + " center " + c;
+                                float expected = metric.distance(row, centers[c]);
+                                checkClose(expected, store.distance(i, centers[c], metric, new float[length]),
+                                        TOLERANCE, what);
+                                checkClose(expected, store.distance(i, centers[c], centerMasks, c, metric,
+                                        new float[length]), TOLERANCE, what + " masked");
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void distanceBounds() {
+        for (int length : LENGTHS) {
+            for (double nanFraction : NAN_FRACTIONS) {
+                Random random = new Random(SEED + length);
+                float[][] rows = rows(length, nanFraction, random);
+                float[][] centers = centers(length, random);
+                NanMasks centerMasks = CoordinateStore.of(centers).getNanMasks();
+                HalfPrecisionCoordinateStore half = HalfPrecisionCoordinateStore.copyOf(rows);
+                QuantizedCoordinateStore[] quantized = {
+                        QuantizedCoordinateStore.copyOf(rows, QuantizedCoordinateStore.Scaling.PER_ROW),
+                        QuantizedCoordinateStore.copyOf(rows, QuantizedCoordinateStore.Scaling.PER_COLUMN)};
+                float[] scratch = new float[length];
+                for (DistanceMetric metric : METRICS) {
+                    // sqrt(D) for euclidean, D for manhattan, times the
+                    // largest error of a value.
+                    double factor = metric instanceof RobustManhattanDistance ? length : Math.sqrt(length);
+                    for (int i = 0; i < rows.length; i++) {
+                        double halfError = maxAbs(rows[i]) * 0x1p-11;
+                        for (int c = 0; c < centers.length; c++) {
+                            float exact = metric.distance(rows[i], centers[c]);
+                            if (exact >= Float.MAX_VALUE / 2) {
+                                // No dimension in common.
+                                continue;
+                            }
+                            double slack = 1e-5 * Math.max(1, exact);
+                            float approximate = half.distance(i, centers[c], centerMasks, c, metric, scratch);
+                            check(Math.abs(approximate - exact) <= factor * halfError + slack,
+                                    "half precision %s D=%d row %d center %d: %s, exact %s",
+                                    metric.getClass().getSimpleName(), length, i, c, approximate, exact);
+                            for (QuantizedCoordinateStore store : quantized) {
+                                approximate = store.distance(i, centers[c], centerMasks, c, metric, scratch);
+                                check(Math.abs(approximate - exact) <= factor * store.maxError(i) + slack,
+                                        "int8 %s %s D=%d row %d center %d: %s, exact %s", store.getScaling(),
+                                        metric.getClass().getSimpleName(), length, i, c, approximate, exact);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Rows with magnitudes varying over several orders, some all NaN.
+    private static float[][] rows(int length, double nanFraction, Random random) {
+        float[][] rows = new float[NUM_ROWS][length];
+        for (int i = 0; i < NUM_ROWS; i++) {
+            double magnitude = Math.pow(10, random.nextInt(5) - 2);
+            boolean allNaN = nanFraction > 0 && i % 50 == 7;
+            for (int j = 0; j < length; j++) {
+                rows[i][j] = allNaN || random.nextDouble() < nanFraction
+                        ? Float.NaN : (float) (magnitude * (j % 3 + random.nextGaussian()));
+            }
+        }
+        return rows;
+    }
+
+    // Centers near the origin, one of them with a NaN.
+    private static float[][] centers(int length, Random random) {
+        float[][] centers = new float[NUM_CENTERS][length];
+        for (int c = 0; c < NUM_CENTERS; c++) {
+            for (int j = 0; j < length; j++) {
+                centers[c][j] = (float) random.nextGaussian();
+            }
+        }
+        centers[NUM_CENTERS - 1][length / 2] = Float.NaN;
+        return centers;
+    }
+
+    private static DistanceMetric[] concat(DistanceMetric[] first, DistanceMetric[] second) {
+        DistanceMetric[] all = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        return all;
+    }
+
+    private static float maxAbs(float[] row) {
+        float max = 0;
+        for (float v : row) {
+            if (!Float.isNaN(v)) {
+                max = Math.max(max, Math.abs(v));
+            }
+        }
+        return max;
+    }
+}
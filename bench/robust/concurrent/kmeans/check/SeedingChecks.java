@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.clustering.ClusteringExecutor;
+import robust.concurrent.kmeans.clustering.SmartInitialization;
+import robust.concurrent.kmeans.data.CoordinateStore;
+
+import java.util.Arrays;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+
+/**
+ * Checks that both seeding methods pick the same rows however many
+ * threads run their passes.
+ */
+public class SeedingChecks {
+
+    private static final long SEED = 99;
+    private static final int NUM_CLUSTERS = 16;
+    private static final int[] PARALLELISM = {1, 3, 8};
+
+    public static void run(CheckRunner runner) {
+        CoordinateStore store = CoordinateStore.of(SyntheticData.clusteredRows(50000, 12, NUM_CLUSTERS, 0.1, 7));
+        for (boolean useKMedians : new boolean[]{false, true}) {
+            String suffix = useKMedians ? " kmedians" : "";
+            runner.run("seeding/farthest point independent of threads" + suffix,
+                    () -> compare(store, useKMedians, false));
+            runner.run("seeding/k-means|| independent of threads" + suffix,
+                    () -> compare(store, useKMedians, true));
+        }
+    }
+
+    private static void compare(CoordinateStore store, boolean useKMedians, boolean scalable) {
+        int[] expected = null;
+        for (int parallelism : PARALLELISM) {
+            ClusteringExecutor executor = new ClusteringExecutor(parallelism);
+            try {
+                SmartInitialization initialization = new SmartInitialization(store, NUM_CLUSTERS, 5, useKMedians);
+                initialization.setExecutor(executor);
+                int[] indices = scalable
+                        ? initialization.getScalableClusterInitialization(5, 1.0, SEED)
+                        : initialization.getSmartClusterInitialization();
+                if (expected == null) {
+                    expected = indices.clone();
+                } else {
+                    check(Arrays.equals(expected, indices), "%d threads picked %s, 1 thread %s",
+                            parallelism, Arrays.toString(indices), Arrays.toString(expected));
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
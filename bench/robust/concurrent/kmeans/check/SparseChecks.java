@@ -0,0 +1,186 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.check;
+
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.clustering.Cluster;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMeans;
+import robust.concurrent.kmeans.clustering.RobustConcurrentKMedians;
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.data.SparseCoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+import robust.concurrent.kmeans.metric.RobustManhattanDistance;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static robust.concurrent.kmeans.check.CheckRunner.check;
+import static robust.concurrent.kmeans.check.CheckRunner.checkClose;
+
+/**
+ * Checks that the CSR store behaves as a dense store holding NaN for the
+ * entries it does not store: same non-NaN counts, distances, center
+ * sums and clusterings.
+ */
+public class SparseChecks {
+
+    private static final long SEED = 42;
+    private static final int NUM_ROWS = 2000;
+    private static final int NUM_DIMS = 40;
+    private static final int NUM_CLUSTERS = 6;
+    private static final double[] NAN_FRACTIONS = {0, 0.3, 0.8};
+    private static final DistanceMetric[] METRICS = {
+            RobustEuclideanDistance.SINGLETON, RobustManhattanDistance.SINGLETON};
+    // Both sum the same terms in the same order; allow for the kernels
+    // summing whole words of dense values differently.
+    private static final double TOLERANCE = 1e-5;
+
+    public static void run(CheckRunner runner) {
+        for (double nanFraction : NAN_FRACTIONS) {
+            runner.run("sparse/nan masks nan=" + nanFraction, () -> nanMasks(nanFraction));
+            runner.run("sparse/distances nan=" + nanFraction, () -> distances(nanFraction));
+            runner.run("sparse/accumulate nan=" + nanFraction, () -> accumulate(nanFraction));
+            runner.run("sparse/clustering nan=" + nanFraction, () -> clustering(nanFraction));
+        }
+    }
+
+    // Clustered rows, with one empty and one full row.
+    private static float[][] rows(double nanFraction) {
+        float[][] rows = SyntheticData.clusteredRows(NUM_ROWS, NUM_DIMS, NUM_CLUSTERS, nanFraction, SEED);
+        Arrays.fill(rows[NUM_ROWS / 3], Float.NaN);
+        for (int j = 0; j < NUM_DIMS; j++) {
+            if (Float.isNaN(rows[NUM_ROWS / 2][j])) {
+                rows[NUM_ROWS / 2][j] = j;
+            }
+        }
+        return rows;
+    }
+
+    private static void nanMasks(double nanFraction) {
+        float[][] rows = rows(nanFraction);
+        NanMasks dense = CoordinateStore.of(rows).getNanMasks();
+        NanMasks sparse = SparseCoordinateStore.copyOf(rows).getNanMasks();
+        check(sparse.getLength() == NUM_DIMS, "length %d", sparse.getLength());
+        for (int i = 0; i < NUM_ROWS; i++) {
+            check(sparse.getNonNanCount(i) == dense.getNonNanCount(i)
+                            && sparse.isDense(i) == dense.isDense(i) && sparse.isAllNaN(i) == dense.isAllNaN(i),
+                    "row %d: %d non-NaN values, %d in the dense store", i,
+                    sparse.getNonNanCount(i), dense.getNonNanCount(i));
+        }
+    }
+
+    private static void distances(double nanFraction) {
+        float[][] rows = rows(nanFraction);
+        CoordinateStore dense = CoordinateStore.of(rows);
+        CoordinateStore sparse = SparseCoordinateStore.copyOf(rows);
+        Random random = new Random(SEED);
+        float[][] centers = new float[NUM_CLUSTERS][NUM_DIMS];
+        for (float[] center : centers) {
+            for (int j = 0; j < NUM_DIMS; j++) {
+                center[j] = (float) (5 * random.nextGaussian());
+            }
+        }
+        centers[1][3] = Float.NaN;
+        Arrays.fill(centers[2], Float.NaN);
+        NanMasks centerMasks = CoordinateStore.of(centers).getNanMasks();
+        float[] scratch = new float[NUM_DIMS];
+        for (DistanceMetric metric : METRICS) {
+            for (int i = 0; i < NUM_ROWS; i++) {
+                for (int c = 0; c < NUM_CLUSTERS; c++) {
+                    String what = metric.getClass().getSimpleName() + " row " + i + " center " + c;
+                    checkClose(dense.distance(i, centers[c], metric, scratch),
+                            sparse.distance(i, centers[c], metric, scratch), TOLERANCE, what);
+                    checkClose(dense.distance(i, centers[c], centerMasks, c, metric, scratch),
+                            sparse.distance(i, centers[c], centerMasks, c, metric, scratch), TOLERANCE,
+                            what + " masked");
+                }
+            }
+        }
+    }
+
+    private static void accumulate(double nanFraction) {
+        float[][] rows = rows(nanFraction);
+        CoordinateStore dense = CoordinateStore.of(rows);
+        CoordinateStore sparse = SparseCoordinateStore.copyOf(rows);
+        int[][] ranges = {{0, NUM_DIMS}, {0, 1}, {7, 23}, {NUM_DIMS - 1, NUM_DIMS}, {5, 5}};
+        for (int[] range : ranges) {
+            double[] denseSums = new double[NUM_DIMS];
+            double[] sparseSums = new double[NUM_DIMS];
+            int[] denseCounts = new int[NUM_DIMS];
+            int[] sparseCounts = new int[NUM_DIMS];
+            for (int i = 0; i < NUM_ROWS; i++) {
+                // Add every row, then take every third one out again.
+                int weight = i % 3 == 0 ? 2 : 1;
+                dense.accumulate(i, weight, denseSums, denseCounts, range[0], range[1]);
+                sparse.accumulate(i, weight, sparseSums, sparseCounts, range[0], range[1]);
+                if (i % 3 == 0) {
+                    dense.accumulate(i, -1, denseSums, denseCounts, range[0], range[1]);
+                    sparse.accumulate(i, -1, sparseSums, sparseCounts, range[0], range[1]);
+                }
+            }
+            check(Arrays.equals(denseCounts, sparseCounts), "dims %d-%d: counts %s, dense %s", range[0], range[1],
+                    Arrays.toString(sparseCounts), Arrays.toString(denseCounts));
+            check(Arrays.equals(denseSums, sparseSums), "dims %d-%d: sums %s, dense %s", range[0], range[1],
+                    Arrays.toString(sparseSums), Arrays.toString(denseSums));
+        }
+    }
+
+    private static void clustering(double nanFraction) {
+        float[][] rows = rows(nanFraction);
+        CoordinateStore dense = CoordinateStore.of(rows);
+        CoordinateStore sparse = SparseCoordinateStore.copyOf(rows);
+        for (int setting = 0; setting < 4; setting++) {
+            Cluster[] expected = cluster(dense, setting);
+            Cluster[] actual = cluster(sparse, setting);
+            String what = "setting " + setting;
+            check(expected.length == actual.length, "%s: %d clusters, dense %d", what,
+                    actual.length, expected.length);
+            for (int c = 0; c < expected.length; c++) {
+                check(Arrays.equals(expected[c].getMemberIndexes(), actual[c].getMemberIndexes()),
+                        "%s: members of cluster %d differ", what, c);
+                float[] expectedCenter = expected[c].getCenter();
+                float[] actualCenter = actual[c].getCenter();
+                for (int j = 0; j < NUM_DIMS; j++) {
+                    checkClose(expectedCenter[j], actualCenter[j], TOLERANCE,
+                            what + " center " + c + " dim " + j);
+                }
+            }
+        }
+    }
+
+    // Plain k-means, with the triangle inequality, with blocked distances,
+    // and k-medians.
+    private static Cluster[] cluster(CoordinateStore store, int setting) {
+        RobustConcurrentKMeans kmeans = setting == 3
+                ? new RobustConcurrentKMedians(store, NUM_CLUSTERS, 30, SEED, 1)
+                : new RobustConcurrentKMeans(store, NUM_CLUSTERS, 30, SEED);
+        kmeans.setUseTriangleInequality(setting == 1);
+        kmeans.setUseBlockedDistances(setting == 2);
+        kmeans.run();
+        return kmeans.getClusters();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import robust.concurrent.kmeans.benchmark.BenchmarkRunner;
+import robust.concurrent.kmeans.benchmark.SyntheticData;
+import robust.concurrent.kmeans.data.CoordinateStore;
+
+/**
+ * Micro-benchmarks of the package-private clustering phases: the k-means
+ * and k-medians center updates, and one fused iteration of centers and
+ * assignments.  Every operation recomputes all centers from the same
+ * memberships, so the cost does not depend on convergence.
+ * <p>
+ * Unlike the other benchmarks and the checks, which only use the public
+ * API, this class is in the clustering package: the phases it times have
+ * no public entry point, and a whole run would time the seeding and the
+ * convergence with them.  The bench directory is not part of the jar, so
+ * the package is only shared when the benchmarks are compiled.
+ */
+public class ClusteringBenchmarks {
+
+    private static final long SEED = 42;
+    private static final int NUM_ROWS = 20000;
+    private static final int NUM_DIMS = 32;
+    private static final int NUM_CLUSTERS = 16;
+    private static final double NAN_FRACTION = 0.1;
+
+    public static void run(BenchmarkRunner runner) {
+        for (boolean useKMedians : new boolean[]{false, true}) {
+            String mode = useKMedians ? "kmedians" : "kmeans";
+            String shape = " N=" + NUM_ROWS + " D=" + NUM_DIMS + " K=" + NUM_CLUSTERS + " nan=" + NAN_FRACTION;
+            String centers = "centers/" + mode + shape;
+            String iteration = "iteration/" + mode + shape;
+            if (!runner.isIncluded(centers) && !runner.isIncluded(iteration)) {
+                continue;
+            }
+            ClusteringContext context = prepare(useKMedians);
+            SubtaskManager manager = new SubtaskManager(context, context.mExecutor.getParallelism());
+            manager.computeDistancesAndAssign();
+            runner.run(centers, () -> updateAllCenters(context, manager));
+            runner.run(iteration, () -> {
+                updateAllCenters(context, manager);
+                manager.computeDistancesAndAssign();
+                return manager.numberOfMoves();
+            });
+        }
+    }
+
+    /**
+     * Create the state of a run with seeded clusters, whose distances
+     * are fused with the assignments.
+     */
+    private static ClusteringContext prepare(boolean useKMedians) {
+        CoordinateStore store = CoordinateStore.of(
+                SyntheticData.clusteredRows(NUM_ROWS, NUM_DIMS, NUM_CLUSTERS, NAN_FRACTION, SEED));
+        ClusteringExecutor executor = ClusteringExecutor.getDefault();
+        ClusteringContext context = new ClusteringContext(store, useKMedians, 0, executor);
+        context.mCentersFromSums = new int[NUM_CLUSTERS];
+        context.mCentersToRecompute = new int[NUM_CLUSTERS];
+        context.mBestDistances = new float[NUM_ROWS];
+        int[] seeds = new SmartInitialization(store, NUM_CLUSTERS, 0, useKMedians).getSmartClusterInitialization();
+        context.mProtoClusters = new ProtoCluster[NUM_CLUSTERS];
+        for (int c = 0; c < NUM_CLUSTERS; c++) {
+            context.mProtoClusters[c] = new ProtoCluster(context, store.copyRow(seeds[c]));
+        }
+        return context;
+    }
+
+    /**
+     * Recompute every center from all its members.
+     */
+    private static long updateAllCenters(ClusteringContext context, SubtaskManager manager) {
+        ProtoCluster[] protoClusters = context.mProtoClusters;
+        context.mApplyMoves = false;
+        context.mNumCentersFromSums = 0;
+        context.mNumCentersToRecompute = 0;
+        for (int c = 0; c < protoClusters.length; c++) {
+            if (protoClusters[c].isNotEmpty()) {
+                protoClusters[c].invalidateSums();
+                context.mCentersToRecompute[context.mNumCentersToRecompute++] = c;
+            }
+        }
+        if (context.useKMedians) {
+            manager.updateMedians();
+        } else {
+            manager.updateCenters();
+        }
+        long hash = 0;
+        for (int c = 0; c < protoClusters.length; c++) {
+            protoClusters[c].refreshCenterMask();
+            hash = 31 * hash + Float.floatToRawIntBits(protoClusters[c].getCenter()[0]);
+        }
+        return hash;
+    }
+}
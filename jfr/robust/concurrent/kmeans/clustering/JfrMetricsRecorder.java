@@ -0,0 +1,144 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Commits the metrics of clustering runs as Flight Recorder events, one
+ * per iteration and one per run.  Loaded by MetricsRecorder when this
+ * directory is compiled in and the jdk.jfr module is present.
+ */
+final class JfrMetricsRecorder extends MetricsRecorder {
+
+    @Override
+    void recordIteration(IterationMetrics metrics) {
+        IterationEvent event = new IterationEvent();
+        if (event.isEnabled()) {
+            event.iteration = metrics.getIteration();
+            event.moves = metrics.getMoves();
+            event.inertia = metrics.getInertia();
+            event.activeClusters = metrics.getActiveClusters();
+            event.centerTime = metrics.getCenterNanos();
+            event.distanceTime = metrics.getDistanceNanos();
+            event.assignmentTime = metrics.getAssignmentNanos();
+            event.loadImbalance = metrics.getLoadImbalance();
+            event.commit();
+        }
+    }
+
+    @Override
+    void recordRun(int numRows, int numDims, int numClusters, KMeansMetrics metrics, double inertia) {
+        RunEvent event = new RunEvent();
+        if (event.isEnabled()) {
+            event.rows = numRows;
+            event.dimensions = numDims;
+            event.clusters = numClusters;
+            event.inertia = inertia;
+            if (metrics != null) {
+                event.iterations = metrics.getIterations().size();
+                event.seedingTime = metrics.getSeedingNanos();
+                event.elapsedTime = metrics.getElapsedNanos();
+                event.cacheBytes = metrics.getCacheBytes();
+            }
+            event.commit();
+        }
+    }
+
+    @Name("robust.concurrent.kmeans.Iteration")
+    @Label("K-Means Iteration")
+    @Category("K-Means")
+    @Description("The measurements of one iteration of a clustering run")
+    static final class IterationEvent extends Event {
+
+        @Label("Iteration")
+        int iteration;
+
+        @Label("Moves")
+        int moves;
+
+        @Label("Inertia")
+        double inertia;
+
+        @Label("Active Clusters")
+        int activeClusters;
+
+        @Label("Center Update Time")
+        @Timespan
+        long centerTime;
+
+        @Label("Distance Time")
+        @Timespan
+        long distanceTime;
+
+        @Label("Assignment Time")
+        @Timespan
+        long assignmentTime;
+
+        @Label("Load Imbalance")
+        @Description("The slowest Worker's share of the assignment pass relative to the mean")
+        double loadImbalance;
+    }
+
+    @Name("robust.concurrent.kmeans.Run")
+    @Label("K-Means Run")
+    @Category("K-Means")
+    @Description("A finished clustering run")
+    static final class RunEvent extends Event {
+
+        @Label("Rows")
+        int rows;
+
+        @Label("Dimensions")
+        int dimensions;
+
+        @Label("Clusters")
+        int clusters;
+
+        @Label("Iterations")
+        int iterations;
+
+        @Label("Inertia")
+        double inertia;
+
+        @Label("Seeding Time")
+        @Timespan
+        long seedingTime;
+
+        @Label("Elapsed Time")
+        @Timespan
+        long elapsedTime;
+
+        @Label("Cache Size")
+        @DataAmount
+        long cacheBytes;
+    }
+}
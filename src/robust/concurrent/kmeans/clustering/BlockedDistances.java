@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+
+import java.util.Arrays;
+
+/**
+ * Tiled euclidean distance engine for dense, high-dimensional data.
+ * A block of rows is packed into a contiguous tile and the distances
+ * to the centers are computed as ||x||^2 + ||c||^2 - 2 x.c, with the
+ * dot products accumulated by a register-blocked microkernel over
+ * cache-sized slices of the dimensions.
+ * <p>
+ * NaNs of a row are packed as zeros, so the dot products and the row's
+ * norm only cover its defined dimensions, and its NaN dimensions are
+ * listed.  The squared norm of a dense center over the row's defined
+ * dimensions is then its full squared norm less the squares of its
+ * values at the listed dimensions, and the expansion, rescaled by the
+ * number of dimensions over the number defined, is the robust distance.
+ * Only pairs whose center has NaNs, which arise when every member of a
+ * cluster lacks a dimension, are left out of the tiles and computed with
+ * the masked robust metric.  Each Worker owns one instance.
+ */
+class BlockedDistances {
+
+    // Rows per tile, and dimensions per slice of the tile.  A slice of
+    // the row tile is ROW_BLOCK * DIM_BLOCK * 4 bytes = 32KB.
+    static final int ROW_BLOCK = 32;
+    static final int DIM_BLOCK = 256;
+
+    private static final DistanceMetric euclidean = RobustEuclideanDistance.SINGLETON;
+
+    private final ClusteringContext mContext;
+    private final int mNumDims;
+    // Packed rows of the current block, NaNs replaced by zeros, and
+    // their squared norms.
+    private final float[] mRowTile;
+    private final double[] mRowNorms;
+    // The NaN dimensions of block row r are
+    // mNanDims[mNanStart[r] ... mNanStart[r + 1] - 1].
+    private final int[] mNanDims;
+    private final int[] mNanStart;
+    // Positions in the listed clusters of those with dense centers.
+    private final int[] mDenseListed;
+    // Dot products of the block rows with the dense listed centers,
+    // row-major.
+    private final double[] mDots;
+    // Distances of the block rows to the listed centers, row-major.
+    private final float[] mDistances;
+    private final float[] mScratch;
+
+    /**
+     * @param context the state of the run.
+     */
+    BlockedDistances(ClusteringContext context) {
+        mContext = context;
+        mNumDims = context.mCoordinates.numDimensions();
+        int numClusters = context.mProtoClusters.length;
+        mRowTile = new float[ROW_BLOCK * mNumDims];
+        mRowNorms = new double[ROW_BLOCK];
+        mNanDims = new int[ROW_BLOCK * mNumDims];
+        mNanStart = new int[ROW_BLOCK + 1];
+        mDenseListed = new int[numClusters];
+        mDots = new double[ROW_BLOCK * numClusters];
+        mDistances = new float[ROW_BLOCK * numClusters];
+        mScratch = new float[mNumDims];
+    }
+
+    /**
+     * Distances computed by the last call to compute().  The distance
+     * of block row r to the n-th listed cluster is at r * numListed + n.
+     */
+    float[] getDistances() {
+        return mDistances;
+    }
+
+    /**
+     * Compute the distances from rows [start, start + count) to the
+     * clusters listed in clusters[0 .. numListed).  The centers must have
+     * been packed into the context by packCenters().
+     *
+     * @param start     first row of the block.
+     * @param count     number of rows, at most ROW_BLOCK.
+     * @param clusters  indices of the clusters.
+     * @param numListed number of listed clusters.
+     */
+    void compute(int start, int count, int[] clusters, int numListed) {
+        CoordinateStore coordinates = mContext.mCoordinates;
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        float[] centers = mContext.mPackedCenters;
+        double[] centerNorms = mContext.mCenterSquaredNorms;
+        int numDims = mNumDims;
+
+        int numNaN = 0;
+        for (int r = 0; r < count; r++) {
+            int offset = r * numDims;
+            coordinates.getRow(start + r, mRowTile, offset);
+            mNanStart[r] = numNaN;
+            double norm = 0;
+            for (int j = 0; j < numDims; j++) {
+                float v = mRowTile[offset + j];
+                if (v != v) {
+                    mRowTile[offset + j] = 0;
+                    mNanDims[numNaN++] = j;
+                } else {
+                    norm += (double) v * v;
+                }
+            }
+            mRowNorms[r] = norm;
+        }
+        mNanStart[count] = numNaN;
+
+        int numDense = 0;
+        for (int n = 0; n < numListed; n++) {
+            if (protoClusters[clusters[n]].getCenterMask().isDense(0)) {
+                mDenseListed[numDense++] = n;
+            }
+        }
+        Arrays.fill(mDots, 0, count * numDense, 0.0);
+
+        for (int d0 = 0; d0 < numDims; d0 += DIM_BLOCK) {
+            int d1 = Math.min(numDims, d0 + DIM_BLOCK);
+            int r = 0;
+            for (; r + 4 <= count; r += 4) {
+                int m = 0;
+                for (; m + 2 <= numDense; m += 2) {
+                    dot4x2(centers, clusters[mDenseListed[m]] * numDims, clusters[mDenseListed[m + 1]] * numDims,
+                            r, m, numDense, d0, d1);
+                }
+                for (; m < numDense; m++) {
+                    for (int q = r; q < r + 4; q++) {
+                        mDots[q * numDense + m] += dot(q * numDims, centers, clusters[mDenseListed[m]] * numDims,
+                                d0, d1);
+                    }
+                }
+            }
+            for (; r < count; r++) {
+                for (int m = 0; m < numDense; m++) {
+                    mDots[r * numDense + m] += dot(r * numDims, centers, clusters[mDenseListed[m]] * numDims,
+                            d0, d1);
+                }
+            }
+        }
+
+        for (int r = 0; r < count; r++) {
+            int nanFrom = mNanStart[r];
+            int nanTo = mNanStart[r + 1];
+            int numVals = numDims - (nanTo - nanFrom);
+            int m = 0;
+            for (int n = 0; n < numListed; n++) {
+                int c = clusters[n];
+                float d;
+                if (m < numDense && mDenseListed[m] == n) {
+                    if (numVals == 0) {
+                        // No dimension in common, as the robust metric
+                        // reports it.
+                        d = (float) Math.sqrt(Float.MAX_VALUE);
+                    } else {
+                        double centerNorm = centerNorms[c];
+                        int base = c * numDims;
+                        for (int e = nanFrom; e < nanTo; e++) {
+                            double v = centers[base + mNanDims[e]];
+                            centerNorm -= v * v;
+                        }
+                        double squared = mRowNorms[r] + centerNorm - 2 * mDots[r * numDense + m];
+                        if (numVals < numDims) {
+                            squared *= (double) numDims / numVals;
+                        }
+                        d = (float) Math.sqrt(Math.max(0.0, squared));
+                    }
+                    m++;
+                } else {
+                    ProtoCluster cluster = protoClusters[c];
+                    d = coordinates.distance(start + r, cluster.getCenter(), cluster.getCenterMask(), 0,
+                            euclidean, mScratch);
+                }
+                mDistances[r * numListed + n] = d;
+            }
+        }
+    }
+
+    /**
+     * Microkernel: accumulates the dot products of 4 tile rows with
+     * 2 centers over the dimensions [d0, d1), keeping the 8 partial sums
+     * in registers.
+     */
+    private void dot4x2(float[] centers, int c0, int c1, int r, int m, int numDense, int d0, int d1) {
+        int numDims = mNumDims;
+        float[] tile = mRowTile;
+        int x0 = r * numDims, x1 = x0 + numDims, x2 = x1 + numDims, x3 = x2 + numDims;
+        double a00 = 0, a01 = 0, a10 = 0, a11 = 0, a20 = 0, a21 = 0, a30 = 0, a31 = 0;
+        for (int j = d0; j < d1; j++) {
+            double u = centers[c0 + j];
+            double v = centers[c1 + j];
+            double t0 = tile[x0 + j];
+            double t1 = tile[x1 + j];
+            double t2 = tile[x2 + j];
+            double t3 = tile[x3 + j];
+            a00 += t0 * u;
+            a01 += t0 * v;
+            a10 += t1 * u;
+            a11 += t1 * v;
+            a20 += t2 * u;
+            a21 += t2 * v;
+            a30 += t3 * u;
+            a31 += t3 * v;
+        }
+        double[] dots = mDots;
+        int o = r * numDense + m;
+        dots[o] += a00;
+        dots[o + 1] += a01;
+        o += numDense;
+        dots[o] += a10;
+        dots[o + 1] += a11;
+        o += numDense;
+        dots[o] += a20;
+        dots[o + 1] += a21;
+        o += numDense;
+        dots[o] += a30;
+        dots[o + 1] += a31;
+    }
+
+    private double dot(int x, float[] centers, int c, int d0, int d1) {
+        float[] tile = mRowTile;
+        double sum = 0;
+        for (int j = d0; j < d1; j++) {
+            sum += (double) tile[x + j] * centers[c + j];
+        }
+        return sum;
+    }
+
+    /**
+     * Pack the centers of the clusters in contention into the context,
+     * with their squared norms.  Called on the controlling thread before
+     * the Workers use the engine.
+     */
+    static void packCenters(ClusteringContext context) {
+        ProtoCluster[] protoClusters = context.mProtoClusters;
+        int numDims = context.mCoordinates.numDimensions();
+        if (context.mPackedCenters == null) {
+            context.mPackedCenters = new float[protoClusters.length * numDims];
+            context.mCenterSquaredNorms = new double[protoClusters.length];
+        }
+        for (int c = 0; c < protoClusters.length; c++) {
+            ProtoCluster cluster = protoClusters[c];
+            if (!cluster.getConsiderForAssignment()) {
+                continue;
+            }
+            float[] center = cluster.getCenter();
+            System.arraycopy(center, 0, context.mPackedCenters, c * numDims, numDims);
+            double norm = 0;
+            for (int j = 0; j < numDims; j++) {
+                double v = center[j];
+                norm += v * v;
+            }
+            context.mCenterSquaredNorms[c] = norm;
+        }
+    }
+}
@@ -17,7 +17,9 @@
 
 package robust.concurrent.kmeans.clustering;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * Class to represent a cluster of coordinates.
@@ -40,6 +42,39 @@ public class Cluster {
         this.center = center;
     }
 
+    /**
+     * Build the clusters from an assignment array, leaving out the
+     * clusters that are inactive or have no members.  The members of
+     * each cluster are listed in ascending order.
+     *
+     * @param centers     the cluster centers.
+     * @param active      whether each cluster is still in contention.
+     * @param assignments the cluster of each coordinate.
+     */
+    static Cluster[] fromAssignments(float[][] centers, boolean[] active, int[] assignments) {
+        int k = centers.length;
+        int[] sizes = new int[k];
+        for (int c : assignments) {
+            sizes[c]++;
+        }
+        int[][] members = new int[k][];
+        for (int c = 0; c < k; c++) {
+            members[c] = new int[sizes[c]];
+        }
+        int[] filled = new int[k];
+        for (int i = 0; i < assignments.length; i++) {
+            int c = assignments[i];
+            members[c][filled[c]++] = i;
+        }
+        List<Cluster> clusterList = new ArrayList<>(k);
+        for (int c = 0; c < k; c++) {
+            if (active[c] && sizes[c] > 0) {
+                clusterList.add(new Cluster(members[c], centers[c]));
+            }
+        }
+        return clusterList.toArray(new Cluster[0]);
+    }
+
     /**
      * Get the member indices.
      *
@@ -0,0 +1,132 @@
+/*
+ *
+ * Original copyright:
+ * 2011 The ARIES Consortium and integratedmodelling.org
+ *
+ * Original file is part of Thinklab under the terms of GPLv3+.
+ * It is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * You should have received a copy of the License.
+ * If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Code modified by Muhammad Saad Shamim in 2021
+ * See README for details
+ *
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.metric.NanMasks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of a single clustering run.  One instance is created per
+ * call to run() and handed to the SubtaskManager, its Workers and the
+ * ProtoClusters, so several clusterings can run in the same JVM.
+ */
+class ClusteringContext {
+
+    // The coordinates to be clustered.
+    final CoordinateStore mCoordinates;
+    // NaN masks and non-NaN counts of the coordinates.
+    final NanMasks mRowMasks;
+    // Whether the centers are medians (manhattan metric) or means
+    // (euclidean metric).
+    final boolean useKMedians;
+    // Stride used when sampling members for the median.
+    final int medianSkip;
+    // Size of the member samples approximate medians are taken from, or
+    // 0 for exact medians, and the generator the samples are drawn with.
+    int mMedianSampleSize;
+    Random mMedianRandom;
+    // Runs the parallel phases of the run.
+    final ClusteringExecutor mExecutor;
+    // Temporary clusters used during the clustering process.
+    ProtoCluster[] mProtoClusters;
+    // Number of times the centers have been updated in this run.
+    int mCenterUpdates;
+    // The k-means centers to update from their running sums and those
+    // whose sums must be recomputed from all their members (for k-medians,
+    // the centers to update), and whether the moves of the last pass
+    // still need to be applied to the sums.
+    int[] mCentersFromSums;
+    int mNumCentersFromSums;
+    int[] mCentersToRecompute;
+    int mNumCentersToRecompute;
+    boolean mApplyMoves;
+    // Next task to be taken by a Worker in phases that share out their
+    // work dynamically.
+    final AtomicInteger mNextTask = new AtomicInteger();
+    // Cache of coordinate-to-cluster distances. Number of entries =
+    // number of clusters X number of coordinates.
+    float[][] mDistanceCache;
+    // Distance from each coordinate to its nearest center, kept instead
+    // of the cache when distances and assignments are fused.
+    float[] mBestDistances;
+    // The cluster assignment for coordinate n is found in
+    // mClusterAssignments[n] where the N coordinates are numbered
+    // 0 ... (N-1)
+    final int[] mClusterAssignments;
+    // The coordinates grouped by cluster: each ProtoCluster owns one
+    // contiguous segment, rebuilt from mClusterAssignments after every
+    // assignment pass.
+    final int[] mMembers;
+    // The rows sampled for the current mini-batch step, and the cluster
+    // and distance found for each of them.
+    int[] mBatch;
+    int mBatchSize;
+    int[] mBatchAssignments;
+    float[] mBatchDistances;
+    // Whether the Workers compute euclidean distances with the tiled
+    // engine, and the centers packed for it with their squared norms.
+    boolean useBlockedDistances;
+    float[] mPackedCenters;
+    double[] mCenterSquaredNorms;
+    // Per-coordinate bounds used by the accelerated assignment mode:
+    // an upper bound on the distance to the assigned cluster and a lower
+    // bound on the distance to every other cluster (Hamerly's algorithm).
+    float[] mUpperBounds;
+    float[] mLowerBounds;
+    // Distance each center moved in the last call to computeCenters() and
+    // half the distance from each center to its nearest neighbour center.
+    // The drifts are also tracked, without the bounds, for the center
+    // shift stopping rule.
+    float[] mCenterDrift;
+    float[] mHalfCenterSeparation;
+    // Copies of the centers taken before they are updated, to measure
+    // their drift.
+    float[][] mPreviousCenters;
+    // The largest and second largest center drift, and the index of the
+    // cluster that drifted the most.
+    float mMaxDrift, mSecondMaxDrift;
+    int mMaxDriftCluster;
+    // True if every center in contention is free of NaNs, so that the
+    // bounds may be used during this iteration.
+    boolean mBoundsValid;
+
+    /**
+     * Constructor
+     *
+     * @param coordinates the coordinates to be clustered.
+     * @param useKMedians true for k-medians, false for k-means.
+     * @param medianSkip  stride used when sampling members for the median.
+     * @param executor    runs the parallel phases of the run.
+     */
+    ClusteringContext(CoordinateStore coordinates, boolean useKMedians, int medianSkip,
+                      ClusteringExecutor executor) {
+        mCoordinates = coordinates;
+        mRowMasks = coordinates.getNanMasks();
+        this.useKMedians = useKMedians;
+        this.medianSkip = medianSkip;
+        mExecutor = executor;
+        mClusterAssignments = new int[coordinates.numRows()];
+        mMembers = new int[coordinates.numRows()];
+        // Initialize to -1 to indicate that they haven't been assigned yet.
+        Arrays.fill(mClusterAssignments, -1);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs the parallel phases of a clustering: assignments, center updates,
+ * seeding passes and so on.  Each phase is a batch of tasks submitted
+ * together, and the caller blocks until all of them are done.
+ * <p>
+ * An executor is backed by a ForkJoinPool whose size is fixed when it is
+ * created, so the number of threads does not depend on the number of
+ * clusters, iterations or runs.  Unless another one is injected, all
+ * clusterings in the JVM share the executor returned by getDefault().
+ */
+public class ClusteringExecutor {
+
+    private static volatile ClusteringExecutor sDefault;
+
+    // The pool running the tasks, or null if tasks run on the calling
+    // thread.
+    private final ForkJoinPool mPool;
+    // Whether shutdown() may shut the pool down.
+    private final boolean mOwnsPool;
+    private final int mParallelism;
+
+    /**
+     * Constructor that creates a pool with the given number of threads.
+     * A parallelism of 1 runs every task on the calling thread.
+     *
+     * @param parallelism the number of threads.
+     */
+    public ClusteringExecutor(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism <= 0: " + parallelism);
+        }
+        mPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        mOwnsPool = true;
+        mParallelism = parallelism;
+    }
+
+    /**
+     * Constructor that runs the tasks on an existing pool.  The pool is
+     * not shut down by shutdown().
+     *
+     * @param pool the pool to run on.
+     */
+    public ClusteringExecutor(ForkJoinPool pool) {
+        mPool = pool;
+        mOwnsPool = false;
+        mParallelism = pool.getParallelism();
+    }
+
+    /**
+     * Returns the executor shared by clusterings that were not given one,
+     * with one thread per available processor.  Its threads are daemon
+     * threads and it is never shut down.
+     */
+    public static ClusteringExecutor getDefault() {
+        ClusteringExecutor executor = sDefault;
+        if (executor == null) {
+            synchronized (ClusteringExecutor.class) {
+                executor = sDefault;
+                if (executor == null) {
+                    executor = new ClusteringExecutor(Runtime.getRuntime().availableProcessors());
+                    sDefault = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the number of tasks that can run at the same time.
+     */
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Runs the tasks and waits for all of them to finish.  An exception
+     * thrown by a task is rethrown.
+     *
+     * @param tasks the tasks to run.
+     */
+    public void invokeAll(Runnable... tasks) {
+        prepare(tasks).invoke();
+    }
+
+    /**
+     * Prepares tasks that are run together many times, such as the
+     * Workers of an iteration phase.  Invoking the returned batch does not
+     * allocate.
+     *
+     * @param tasks the tasks to run.
+     * @return the batch of tasks.
+     */
+    public Batch prepare(Runnable... tasks) {
+        return new Batch(tasks);
+    }
+
+    /**
+     * Runs the tasks, waits for all of them to finish and returns their
+     * results in order.  An exception thrown by a task is rethrown, wrapped
+     * in a RuntimeException if it is checked.
+     *
+     * @param tasks the tasks to run.
+     * @return the results of the tasks.
+     */
+    public <T> List<T> invokeAll(Collection<? extends Callable<T>> tasks) {
+        List<ForkJoinTask<T>> forkJoinTasks = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            forkJoinTasks.add(ForkJoinTask.adapt(task));
+        }
+        invoke(forkJoinTasks);
+        List<T> results = new ArrayList<>(forkJoinTasks.size());
+        for (ForkJoinTask<T> task : forkJoinTasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    /**
+     * Runs one copy of the task per thread and waits for all of them to
+     * finish.  The copies are expected to share their work through a
+     * common counter.
+     *
+     * @param task the task to run.
+     */
+    public void invokeOnEachThread(Runnable task) {
+        Runnable[] copies = new Runnable[mParallelism];
+        for (int i = 0; i < mParallelism; i++) {
+            copies[i] = task;
+        }
+        invokeAll(copies);
+    }
+
+    private void invoke(final Collection<? extends ForkJoinTask<?>> tasks) {
+        if (mPool == null || tasks.size() == 1) {
+            for (ForkJoinTask<?> task : tasks) {
+                task.invoke();
+            }
+        } else if (ForkJoinTask.getPool() == mPool) {
+            // Already on one of the pool's threads; fork the tasks from here.
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            mPool.invoke(ForkJoinTask.adapt(() -> {
+                ForkJoinTask.invokeAll(tasks);
+            }));
+        }
+    }
+
+    /**
+     * A fixed set of tasks run together on the executor.
+     */
+    public final class Batch {
+
+        private final Runnable[] mTasks;
+        private final ForkJoinTask<?>[] mForkJoinTasks;
+        // Forks the tasks from inside the pool when invoked from outside.
+        private final ForkJoinTask<?> mRoot;
+
+        private Batch(Runnable[] tasks) {
+            mTasks = tasks.clone();
+            mForkJoinTasks = new ForkJoinTask<?>[tasks.length];
+            for (int i = 0; i < tasks.length; i++) {
+                mForkJoinTasks[i] = ForkJoinTask.adapt(tasks[i]);
+            }
+            mRoot = ForkJoinTask.adapt(() -> {
+                ForkJoinTask.invokeAll(mForkJoinTasks);
+            });
+        }
+
+        /**
+         * Runs the tasks and waits for all of them to finish.  An
+         * exception thrown by a task is rethrown.
+         */
+        public void invoke() {
+            if (mPool == null || mTasks.length == 1) {
+                for (Runnable task : mTasks) {
+                    task.run();
+                }
+                return;
+            }
+            for (ForkJoinTask<?> task : mForkJoinTasks) {
+                task.reinitialize();
+            }
+            if (ForkJoinTask.getPool() == mPool) {
+                ForkJoinTask.invokeAll(mForkJoinTasks);
+            } else {
+                mRoot.reinitialize();
+                mPool.invoke(mRoot);
+            }
+        }
+    }
+
+    /**
+     * Shuts the pool down once the tasks already submitted are done.  Does
+     * nothing for the default executor or a pool passed in by the caller.
+     */
+    public void shutdown() {
+        if (mOwnsPool && mPool != null && this != sDefault) {
+            mPool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+/**
+ * How the coordinate-to-center distances are computed and stored
+ * during each iteration.
+ */
+public enum DistanceStrategy {
+
+    /**
+     * Keep a number of coordinates X number of clusters cache.  Only the
+     * distances to centers that moved are recomputed, and the assignments
+     * are made in a separate pass over the cache.
+     */
+    CACHED,
+
+    /**
+     * Compute the distances of each coordinate to every center, take the
+     * nearest and record the assignment in a single pass.  Only the best
+     * distance of each coordinate is kept.
+     */
+    FUSED,
+
+    /**
+     * Like FUSED, but blocks of coordinates are compared with all centers
+     * at once by the tiled engine of setUseBlockedDistances.  Only the
+     * best distance of each coordinate is kept.  Applies to k-means; runs
+     * as FUSED for k-medians.
+     */
+    TILED
+}
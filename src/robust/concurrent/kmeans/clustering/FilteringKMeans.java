@@ -0,0 +1,573 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * K-means by the filtering algorithm (Kanungo et al. 2002), for many
+ * coordinates of few dimensions, up to about 16.  The rows without NaNs
+ * are put once into a kd-tree (KdTree) whose nodes keep the bounding box
+ * and the sums of their rows.  Each iteration walks the tree with a list
+ * of candidate centers: at every node, a candidate is dropped if no point
+ * of the node's box can be closer to it than to the candidate nearest the
+ * box's midpoint, and a node left with a single candidate is assigned to
+ * it as a whole, from its sums, without computing any distance.  Only the
+ * leaves reached with several candidates are scanned row by row.
+ * <p>
+ * The kd-tree geometry does not hold for rows with NaNs, so those rows
+ * take an exact path: each is compared with every center using the
+ * robust euclidean distance, as in OutOfCoreKMeans.  Centers with NaNs,
+ * which only arise from such rows, are likewise never dropped nor given a
+ * whole node, so the assignments are the ones Lloyd's algorithm would
+ * make, up to ties.
+ * <p>
+ * The rows without NaNs are copied into the tree, so they may hold at
+ * most Integer.MAX_VALUE values.  The centers are seeded by
+ * farthest-point initialization on a random sample of the rows.
+ */
+public class FilteringKMeans implements KMeans {
+
+    private static final DistanceMetric euclidean = RobustEuclideanDistance.SINGLETON;
+
+    // The coordinates to be clustered.
+    private final CoordinateStore mCoordinates;
+    // The desired number of clusters and maximum number
+    // of iterations.
+    private final int mK;
+    private final int mMaxIterations;
+    // Seed for the random number generator used for seeding.
+    private final long mRandomSeed;
+    // Runs the tree build and the passes over the tree.
+    private ClusteringExecutor mExecutor = ClusteringExecutor.getDefault();
+    // Number of rows sampled to seed the centers.
+    private int mSeedSampleSize = 100000;
+    private final KMeansListeners mListeners = new KMeansListeners();
+    // An array of Cluster objects: the output of k-means.
+    private Cluster[] mClusters;
+    // The inertia found by the last assignment pass, NaN until a run
+    // completes.
+    private double mInertia = Double.NaN;
+
+    /**
+     * Constructor
+     *
+     * @param coordinates   the coordinates to be clustered.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed    seed used with the random number generator.
+     */
+    public FilteringKMeans(CoordinateStore coordinates, int k, int maxIterations, long randomSeed) {
+        mCoordinates = coordinates;
+        // Can't have more clusters than coordinates.
+        mK = Math.min(k, coordinates.numRows());
+        mMaxIterations = maxIterations;
+        mRandomSeed = randomSeed;
+    }
+
+    /**
+     * Sets the number of rows sampled to seed the centers.
+     *
+     * @param seedSampleSize the number of sampled rows.
+     */
+    public void setSeedSampleSize(int seedSampleSize) {
+        mSeedSampleSize = seedSampleSize;
+    }
+
+    /**
+     * Sets the executor that runs the time-consuming steps.  By default
+     * they run on ClusteringExecutor.getDefault().
+     *
+     * @param executor the executor.
+     */
+    public void setExecutor(ClusteringExecutor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void addKMeansListener(KMeansListener l) {
+        mListeners.add(l);
+    }
+
+    @Override
+    public void removeKMeansListener(KMeansListener l) {
+        mListeners.remove(l);
+    }
+
+    @Override
+    public Cluster[] getClusters() {
+        return mClusters;
+    }
+
+    /**
+     * Returns the sum over the coordinates of the squared distance to the
+     * center they were assigned to by the last iteration, before the
+     * centers were updated, or NaN if no run has completed.
+     */
+    public double getInertia() {
+        return mInertia;
+    }
+
+    /**
+     * Run the clustering algorithm.
+     */
+    public void run() {
+        try {
+            mListeners.postMessage("Filtering K-Means clustering started");
+
+            int numCoords = mCoordinates.numRows();
+            int numDims = mCoordinates.numDimensions();
+            float[][] centers = SmartInitialization.sampleCenters(mCoordinates, mK, mSeedSampleSize,
+                    new Random(mRandomSeed), mExecutor);
+            boolean[] active = new boolean[mK];
+            Arrays.fill(active, true);
+            boolean[] hasNaN = new boolean[mK];
+            mListeners.postMessage("... centers initialized");
+
+            int[] fallbackRows = findRowsWithNaN();
+            KdTree tree = buildTree(fallbackRows);
+            mListeners.postMessage("... kd-tree built: " + tree.numNodes() + " nodes, "
+                    + fallbackRows.length + " rows with NaNs");
+
+            // The assignments of the rows in the tree, in tree order, and
+            // of the other rows, by row.
+            int[] treeAssignments = new int[tree.mRowIndex.length];
+            Arrays.fill(treeAssignments, -1);
+            int[] assignments = new int[numCoords];
+            Arrays.fill(assignments, -1);
+
+            List<Pass> passes = new ArrayList<>();
+            for (int root : tree.mSubtreeRoots) {
+                passes.add(new FilterPass(tree, root, centers, active, hasNaN, treeAssignments));
+            }
+            int numThreads = Math.max(1, Math.min(mExecutor.getParallelism(), fallbackRows.length));
+            int start = 0;
+            for (int t = 0; t < numThreads && fallbackRows.length > 0; t++) {
+                int count = fallbackRows.length / numThreads + (t < fallbackRows.length % numThreads ? 1 : 0);
+                passes.add(new FallbackPass(fallbackRows, start, count, centers, active, assignments));
+                start += count;
+            }
+
+            double[] sums = new double[numDims];
+            long[] counts = new long[numDims];
+            int moves, it = 0;
+            double inertia;
+            do {
+                for (int c = 0; c < mK; c++) {
+                    hasNaN[c] = false;
+                    for (float v : centers[c]) {
+                        hasNaN[c] |= Float.isNaN(v);
+                    }
+                }
+                moves = 0;
+                for (int passMoves : mExecutor.invokeAll(passes)) {
+                    moves += passMoves;
+                }
+
+                // Reduce the per-pass sums into the new centers.
+                inertia = 0;
+                for (Pass pass : passes) {
+                    inertia += pass.mInertia;
+                }
+                for (int c = 0; c < mK; c++) {
+                    if (!active[c]) {
+                        continue;
+                    }
+                    Arrays.fill(sums, 0);
+                    Arrays.fill(counts, 0);
+                    long members = 0;
+                    for (Pass pass : passes) {
+                        members += pass.mMembers[c];
+                        for (int j = 0; j < numDims; j++) {
+                            sums[j] += pass.mSums[c][j];
+                            counts[j] += pass.mCounts[c][j];
+                        }
+                    }
+                    if (members == 0) {
+                        // When a cluster loses all of its members, it
+                        // falls out of contention.
+                        active[c] = false;
+                        continue;
+                    }
+                    for (int j = 0; j < numDims; j++) {
+                        centers[c][j] = counts[j] < 1 ? Float.NaN : (float) (sums[j] / counts[j]);
+                    }
+                }
+
+                it++;
+                mListeners.postMessage("... iteration " + it + " moves = " + moves);
+
+            } while (moves > 0 && it < mMaxIterations);
+
+            for (int p = 0; p < treeAssignments.length; p++) {
+                assignments[tree.mRowIndex[p]] = treeAssignments[p];
+            }
+            mInertia = inertia;
+            mClusters = Cluster.fromAssignments(centers, active, assignments);
+            mListeners.postComplete(mClusters);
+
+        } catch (Throwable t) {
+
+            mListeners.postError(t);
+
+        }
+    }
+
+    /**
+     * Lists the rows with at least one NaN, in ascending order.
+     */
+    private int[] findRowsWithNaN() {
+        int numCoords = mCoordinates.numRows();
+        float[] row = new float[mCoordinates.numDimensions()];
+        int[] rows = new int[16];
+        int count = 0;
+        for (int i = 0; i < numCoords; i++) {
+            mCoordinates.getRow(i, row);
+            if (hasNaN(row)) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, 2 * count);
+                }
+                rows[count++] = i;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Copies the rows without NaNs and builds the kd-tree over them.
+     *
+     * @param rowsWithNaN the other rows, in ascending order.
+     */
+    private KdTree buildTree(int[] rowsWithNaN) {
+        int numCoords = mCoordinates.numRows();
+        int numDims = mCoordinates.numDimensions();
+        int numDense = numCoords - rowsWithNaN.length;
+        long size = (long) numDense * numDims;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("too many values for a kd-tree: " + size);
+        }
+        float[] points = new float[(int) size];
+        int[] rowIndex = new int[numDense];
+        for (int i = 0, p = 0, skip = 0; i < numCoords; i++) {
+            if (skip < rowsWithNaN.length && rowsWithNaN[skip] == i) {
+                skip++;
+                continue;
+            }
+            mCoordinates.getRow(i, points, p * numDims);
+            rowIndex[p++] = i;
+        }
+        return new KdTree(points, rowIndex, numDims, mExecutor);
+    }
+
+    private static boolean hasNaN(float[] row) {
+        for (float v : row) {
+            if (Float.isNaN(v)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One thread's share of an iteration.  Accumulates the sums for the
+     * next centers and returns the number of moves.
+     */
+    private abstract class Pass implements Callable<Integer> {
+
+        final double[][] mSums;
+        final long[][] mCounts;
+        final long[] mMembers;
+        double mInertia;
+        int mMoves;
+
+        Pass() {
+            int numDims = mCoordinates.numDimensions();
+            mSums = new double[mK][numDims];
+            mCounts = new long[mK][numDims];
+            mMembers = new long[mK];
+        }
+
+        @Override
+        public Integer call() {
+            for (int c = 0; c < mK; c++) {
+                Arrays.fill(mSums[c], 0);
+                Arrays.fill(mCounts[c], 0);
+            }
+            Arrays.fill(mMembers, 0);
+            mInertia = 0;
+            mMoves = 0;
+            assign();
+            return mMoves;
+        }
+
+        abstract void assign();
+
+        /**
+         * Adds the non-NaN values of a row to the sums of a cluster.
+         */
+        void add(int c, float[] row, int offset) {
+            double[] sums = mSums[c];
+            long[] counts = mCounts[c];
+            for (int j = 0; j < sums.length; j++) {
+                float v = row[offset + j];
+                if (!Float.isNaN(v)) {
+                    sums[j] += v;
+                    counts[j]++;
+                }
+            }
+            mMembers[c]++;
+        }
+    }
+
+    /**
+     * Filters a subtree of the kd-tree.
+     */
+    private final class FilterPass extends Pass {
+
+        private final KdTree mTree;
+        private final int mRoot;
+        private final float[][] mCenters;
+        private final boolean[] mActive;
+        private final boolean[] mHasNaN;
+        private final int[] mAssignments;
+        // The candidates at each depth of the walk.
+        private final int[][] mCandidates;
+
+        FilterPass(KdTree tree, int root, float[][] centers, boolean[] active, boolean[] hasNaN,
+                   int[] assignments) {
+            mTree = tree;
+            mRoot = root;
+            mCenters = centers;
+            mActive = active;
+            mHasNaN = hasNaN;
+            mAssignments = assignments;
+            mCandidates = new int[tree.mDepth + 1][mK];
+        }
+
+        @Override
+        void assign() {
+            int[] candidates = mCandidates[0];
+            int numCandidates = 0;
+            for (int c = 0; c < mK; c++) {
+                if (mActive[c]) {
+                    candidates[numCandidates++] = c;
+                }
+            }
+            filter(mRoot, candidates, numCandidates, 0);
+        }
+
+        private void filter(int node, int[] candidates, int numCandidates, int depth) {
+            if (mTree.isLeaf(node)) {
+                scanLeaf(node, candidates, numCandidates);
+                return;
+            }
+            int numDims = mTree.mNumDims;
+            int base = node * numDims;
+            // The candidate nearest the midpoint of the box, among the
+            // centers without NaNs.
+            int best = -1;
+            double bestDistance = Double.MAX_VALUE;
+            boolean anyNaN = false;
+            for (int n = 0; n < numCandidates; n++) {
+                int c = candidates[n];
+                if (mHasNaN[c]) {
+                    anyNaN = true;
+                    continue;
+                }
+                float[] center = mCenters[c];
+                double d = 0;
+                for (int j = 0; j < numDims; j++) {
+                    double v = (mTree.mLow[base + j] + (double) mTree.mHigh[base + j]) / 2 - center[j];
+                    d += v * v;
+                }
+                if (d < bestDistance) {
+                    bestDistance = d;
+                    best = c;
+                }
+            }
+            int[] kept = mCandidates[depth + 1];
+            int numKept = 0;
+            for (int n = 0; n < numCandidates; n++) {
+                int c = candidates[n];
+                if (c == best || best < 0 || mHasNaN[c] || !isFarther(c, best, base)) {
+                    kept[numKept++] = c;
+                }
+            }
+            if (numKept == 1 && !anyNaN) {
+                assignNode(node, best);
+                return;
+            }
+            filter(node + 1, kept, numKept, depth + 1);
+            filter(mTree.mRight[node], kept, numKept, depth + 1);
+        }
+
+        /**
+         * Returns true if every point of the box starting at base is at
+         * least as close to center best as to center c.  It suffices to
+         * check the corner of the box furthest in the direction from best
+         * to c.
+         */
+        private boolean isFarther(int c, int best, int base) {
+            float[] center = mCenters[c];
+            float[] bestCenter = mCenters[best];
+            double difference = 0;
+            for (int j = 0; j < center.length; j++) {
+                double corner = center[j] > bestCenter[j] ? mTree.mHigh[base + j] : mTree.mLow[base + j];
+                double toCenter = center[j] - corner;
+                double toBest = bestCenter[j] - corner;
+                difference += toCenter * toCenter - toBest * toBest;
+            }
+            return difference >= 0;
+        }
+
+        /**
+         * Assigns all the rows of a node to a center from the node's sums.
+         */
+        private void assignNode(int node, int c) {
+            int numDims = mTree.mNumDims;
+            int base = node * numDims;
+            int start = mTree.mStart[node];
+            int end = mTree.mEnd[node];
+            float[] center = mCenters[c];
+            double[] sums = mSums[c];
+            long[] counts = mCounts[c];
+            double dot = 0, norm = 0;
+            for (int j = 0; j < numDims; j++) {
+                sums[j] += mTree.mSums[base + j];
+                counts[j] += end - start;
+                dot += center[j] * mTree.mSums[base + j];
+                norm += center[j] * (double) center[j];
+            }
+            mMembers[c] += end - start;
+            // sum |x - z|^2 = sum |x|^2 - 2 z . sum x + n |z|^2
+            mInertia += mTree.mSumSquares[node] - 2 * dot + (end - start) * norm;
+            for (int p = start; p < end; p++) {
+                if (mAssignments[p] != c) {
+                    mAssignments[p] = c;
+                    mMoves++;
+                }
+            }
+        }
+
+        /**
+         * Assigns each row of a leaf to the nearest candidate.
+         */
+        private void scanLeaf(int node, int[] candidates, int numCandidates) {
+            int numDims = mTree.mNumDims;
+            float[] points = mTree.mPoints;
+            for (int p = mTree.mStart[node]; p < mTree.mEnd[node]; p++) {
+                int nearest = -1;
+                double min = Double.MAX_VALUE;
+                for (int n = 0; n < numCandidates; n++) {
+                    int c = candidates[n];
+                    double d = euclidean.distance(points, p * numDims, mCenters[c], numDims);
+                    if (d < min) {
+                        min = d;
+                        nearest = c;
+                    }
+                }
+                if (mAssignments[p] != nearest) {
+                    mAssignments[p] = nearest;
+                    mMoves++;
+                }
+                mInertia += min * min;
+                add(nearest, points, p * numDims);
+            }
+        }
+    }
+
+    /**
+     * Assigns a range of the rows with NaNs exactly, comparing each with
+     * every active center.
+     */
+    private final class FallbackPass extends Pass {
+
+        private final int[] mRows;
+        private final int mStart;
+        private final int mCount;
+        private final float[][] mCenters;
+        private final boolean[] mActive;
+        private final int[] mAssignments;
+        private final float[] mRow;
+
+        FallbackPass(int[] rows, int start, int count, float[][] centers, boolean[] active,
+                     int[] assignments) {
+            mRows = rows;
+            mStart = start;
+            mCount = count;
+            mCenters = centers;
+            mActive = active;
+            mAssignments = assignments;
+            mRow = new float[mCoordinates.numDimensions()];
+        }
+
+        @Override
+        void assign() {
+            int numDims = mRow.length;
+            for (int r = mStart; r < mStart + mCount; r++) {
+                int i = mRows[r];
+                mCoordinates.getRow(i, mRow);
+                int nearest = -1;
+                double min = Double.MAX_VALUE;
+                for (int c = 0; c < mK; c++) {
+                    if (mActive[c]) {
+                        double d = euclidean.distance(mRow, 0, mCenters[c], numDims);
+                        if (d < min) {
+                            min = d;
+                            nearest = c;
+                        }
+                    }
+                }
+                if (mAssignments[i] != nearest) {
+                    mAssignments[i] = nearest;
+                    mMoves++;
+                }
+                // As in Worker, rows that are entirely NaN do not count
+                // towards the inertia.
+                if (!isAllNaN(mRow)) {
+                    mInertia += min * min;
+                }
+                add(nearest, mRow, 0);
+            }
+        }
+
+        private boolean isAllNaN(float[] row) {
+            for (float v : row) {
+                if (!Float.isNaN(v)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
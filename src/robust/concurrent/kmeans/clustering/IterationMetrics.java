@@ -0,0 +1,139 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+/**
+ * What happened in one iteration of a clustering run.  Iteration 0 is
+ * the initial assignment pass, which has no center update.
+ */
+public class IterationMetrics {
+
+    private final int iteration;
+    private final int moves;
+    private final double inertia;
+    private final int activeClusters;
+    private final long centerNanos;
+    private final long distanceNanos;
+    private final long assignmentNanos;
+    private final double loadImbalance;
+
+    /**
+     * Constructor.
+     *
+     * @param iteration       the iteration number.
+     * @param moves           the number of coordinates that changed clusters.
+     * @param inertia         the inertia after the assignments, or NaN if unknown.
+     * @param activeClusters  the number of clusters still in contention.
+     * @param centerNanos     wall time spent updating the centers.
+     * @param distanceNanos   wall time spent filling the distance cache or
+     *                        refreshing the center separations.
+     * @param assignmentNanos wall time spent assigning the coordinates and
+     *                        rebuilding the memberships.
+     * @param loadImbalance   the slowest Worker's share of the assignment
+     *                        pass relative to the mean.
+     */
+    public IterationMetrics(int iteration, int moves, double inertia, int activeClusters,
+                            long centerNanos, long distanceNanos, long assignmentNanos,
+                            double loadImbalance) {
+        this.iteration = iteration;
+        this.moves = moves;
+        this.inertia = inertia;
+        this.activeClusters = activeClusters;
+        this.centerNanos = centerNanos;
+        this.distanceNanos = distanceNanos;
+        this.assignmentNanos = assignmentNanos;
+        this.loadImbalance = loadImbalance;
+    }
+
+    /**
+     * Get the iteration number, 0 for the initial assignments.
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * Get the number of coordinates that changed clusters.
+     */
+    public int getMoves() {
+        return moves;
+    }
+
+    /**
+     * Get the inertia after the assignments.  NaN with triangle inequality
+     * pruning, unless an inertia tolerance is set.
+     */
+    public double getInertia() {
+        return inertia;
+    }
+
+    /**
+     * Get the number of clusters still in contention.
+     */
+    public int getActiveClusters() {
+        return activeClusters;
+    }
+
+    /**
+     * Get the wall time spent updating the centers, in nanoseconds.
+     */
+    public long getCenterNanos() {
+        return centerNanos;
+    }
+
+    /**
+     * Get the wall time spent filling the distance cache or refreshing the
+     * center separations, in nanoseconds.
+     */
+    public long getDistanceNanos() {
+        return distanceNanos;
+    }
+
+    /**
+     * Get the wall time spent assigning the coordinates and rebuilding
+     * the memberships, in nanoseconds.
+     */
+    public long getAssignmentNanos() {
+        return assignmentNanos;
+    }
+
+    /**
+     * Get the time the slowest Worker took for its share of the
+     * assignment pass divided by the mean over the Workers; 1 when the
+     * load is perfectly balanced.
+     */
+    public double getLoadImbalance() {
+        return loadImbalance;
+    }
+
+    @Override
+    public String toString() {
+        return "iteration " + iteration + " moves = " + moves + " inertia = " + inertia
+                + " clusters = " + activeClusters + " centers = " + centerNanos / 1000 + "us"
+                + " distances = " + distanceNanos / 1000 + "us"
+                + " assignments = " + assignmentNanos / 1000 + "us"
+                + " imbalance = " + loadImbalance;
+    }
+}
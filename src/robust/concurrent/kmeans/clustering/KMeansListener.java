@@ -28,6 +28,15 @@ public interface KMeansListener {
      */
     void kmeansMessage(String message);
 
+    /**
+     * An iteration is complete.  Implementations of KMeans that do not
+     * report their iterations never call this method.
+     *
+     * @param metrics what happened in the iteration.
+     */
+    default void kmeansIteration(IterationMetrics metrics) {
+    }
+
     /**
      * KMeans is complete.
      *
@@ -0,0 +1,184 @@
+/*
+ *
+ * Original copyright:
+ * 2011 The ARIES Consortium and integratedmodelling.org
+ *
+ * Original file is part of Thinklab under the terms of GPLv3+.
+ * It is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * You should have received a copy of the License.
+ * If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Code modified by Muhammad Saad Shamim in 2021
+ * See README for details
+ *
+ */
+
+
+package robust.concurrent.kmeans.clustering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The listeners registered with an implementation of KMeans, and the
+ * methods used to notify them.
+ */
+class KMeansListeners {
+
+    // Listeners to be notified of significant happenings.
+    private final List<KMeansListener> mListeners = new ArrayList<>(1);
+    // Whether the listeners are notified on a separate thread, and that
+    // thread, created with the first notification after a flush().
+    private volatile boolean mAsynchronous;
+    private ExecutorService mDispatcher;
+
+    /**
+     * Adds a KMeansListener to be notified of significant happenings.
+     *
+     * @param l the listener to be added.
+     */
+    void add(KMeansListener l) {
+        synchronized (mListeners) {
+            if (!mListeners.contains(l)) {
+                mListeners.add(l);
+            }
+        }
+    }
+
+    /**
+     * Removes a KMeansListener
+     *
+     * @param l the listener to be removed.
+     */
+    void remove(KMeansListener l) {
+        synchronized (mListeners) {
+            mListeners.remove(l);
+        }
+    }
+
+    /**
+     * Sets whether the listeners are notified on a separate thread, in
+     * the order of the posts, so that a slow listener does not hold up
+     * the clustering.
+     */
+    void setAsynchronous(boolean asynchronous) {
+        mAsynchronous = asynchronous;
+    }
+
+    /**
+     * Whether any listener is registered.
+     */
+    boolean hasListeners() {
+        return mListeners.size() > 0;
+    }
+
+    /**
+     * Waits until the listeners have been notified of everything posted
+     * so far, then lets the notification thread go.
+     */
+    void flush() {
+        ExecutorService dispatcher;
+        synchronized (this) {
+            dispatcher = mDispatcher;
+            mDispatcher = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            try {
+                while (!dispatcher.awaitTermination(1, TimeUnit.SECONDS)) {
+                    // Keep waiting for the slow listener.
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Notify the listeners, on the notification thread if asynchronous.
+     */
+    private void dispatch(Runnable notification) {
+        if (!mAsynchronous) {
+            notification.run();
+            return;
+        }
+        synchronized (this) {
+            if (mDispatcher == null) {
+                mDispatcher = Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "kmeans-listeners");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            mDispatcher.execute(notification);
+        }
+    }
+
+    /**
+     * Posts a message to registered KMeansListeners.
+     */
+    void postMessage(String message) {
+        if (mListeners.size() > 0) {
+            dispatch(() -> {
+                synchronized (mListeners) {
+                    for (KMeansListener mListener : mListeners) {
+                        mListener.kmeansMessage(message);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies registered listeners that an iteration is complete.
+     */
+    void postIteration(IterationMetrics metrics) {
+        if (mListeners.size() > 0) {
+            dispatch(() -> {
+                synchronized (mListeners) {
+                    for (KMeansListener mListener : mListeners) {
+                        mListener.kmeansIteration(metrics);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies registered listeners that k-means is complete.
+     *
+     * @param clusters the output of clustering.
+     */
+    void postComplete(Cluster[] clusters) {
+        if (mListeners.size() > 0) {
+            dispatch(() -> {
+                synchronized (mListeners) {
+                    for (KMeansListener mListener : mListeners) {
+                        mListener.kmeansComplete(clusters);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Notifies registered listeners that k-means has failed because of
+     * a Throwable caught in the run method.
+     */
+    void postError(Throwable err) {
+        if (mListeners.size() > 0) {
+            dispatch(() -> {
+                synchronized (mListeners) {
+                    for (KMeansListener mListener : mListeners) {
+                        mListener.kmeansError(err);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the progress of a clustering run.  Snapshots are
+ * immutable, so they can be read from any thread while the run goes on.
+ */
+public class KMeansMetrics {
+
+    private final long seedingNanos;
+    private final long cacheBytes;
+    private final long elapsedNanos;
+    private final List<IterationMetrics> iterations;
+
+    /**
+     * Constructor.
+     *
+     * @param seedingNanos wall time spent choosing the initial centers.
+     * @param cacheBytes   bytes allocated for the distance cache, the
+     *                     nearest distances and the bounds.
+     * @param elapsedNanos wall time since the run started.
+     * @param iterations   the iterations completed so far, starting with
+     *                     the initial assignments.
+     */
+    public KMeansMetrics(long seedingNanos, long cacheBytes, long elapsedNanos,
+                         List<IterationMetrics> iterations) {
+        this.seedingNanos = seedingNanos;
+        this.cacheBytes = cacheBytes;
+        this.elapsedNanos = elapsedNanos;
+        this.iterations = Collections.unmodifiableList(iterations);
+    }
+
+    /**
+     * Get the wall time spent choosing the initial centers, in nanoseconds.
+     */
+    public long getSeedingNanos() {
+        return seedingNanos;
+    }
+
+    /**
+     * Get the number of bytes allocated for the distance cache, the
+     * nearest distances and the bounds.
+     */
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Get the wall time from the start of the run to this snapshot, in
+     * nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the iterations completed so far.  Element 0 is the initial
+     * assignment pass.
+     */
+    public List<IterationMetrics> getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Get the most recent iteration, or null if there is none yet.
+     */
+    public IterationMetrics getLastIteration() {
+        return iterations.isEmpty() ? null : iterations.get(iterations.size() - 1);
+    }
+
+    /**
+     * Get the wall time spent updating the centers over all iterations,
+     * in nanoseconds.
+     */
+    public long getTotalCenterNanos() {
+        long total = 0;
+        for (IterationMetrics iteration : iterations) {
+            total += iteration.getCenterNanos();
+        }
+        return total;
+    }
+
+    /**
+     * Get the wall time spent on the distance cache or center separations
+     * over all iterations, in nanoseconds.
+     */
+    public long getTotalDistanceNanos() {
+        long total = 0;
+        for (IterationMetrics iteration : iterations) {
+            total += iteration.getDistanceNanos();
+        }
+        return total;
+    }
+
+    /**
+     * Get the wall time spent on the assignments over all iterations, in
+     * nanoseconds.
+     */
+    public long getTotalAssignmentNanos() {
+        long total = 0;
+        for (IterationMetrics iteration : iterations) {
+            total += iteration.getAssignmentNanos();
+        }
+        return total;
+    }
+}
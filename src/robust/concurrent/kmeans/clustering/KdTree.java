@@ -0,0 +1,325 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * A kd-tree over coordinates without NaNs, as used by FilteringKMeans.
+ * Each node splits its rows at the median of the widest dimension of
+ * their bounding box, and keeps that box and the sums and sums of squared
+ * norms of its rows, so a whole node can be assigned to a center without
+ * visiting the rows.  Nodes are numbered in preorder: the children of an
+ * internal node n are n + 1 and mRight[n].
+ * <p>
+ * The top levels are split on the calling thread until there are a few
+ * subtrees per thread, then the subtrees are built in parallel.
+ */
+final class KdTree {
+
+    // Nodes with at most this many rows are leaves.
+    static final int LEAF_SIZE = 16;
+    // Subtrees built, and later filtered, per thread.
+    private static final int SUBTREES_PER_THREAD = 4;
+
+    // The rows, row-major in tree order, and the index of each in the
+    // coordinates.
+    final float[] mPoints;
+    final int[] mRowIndex;
+    final int mNumDims;
+    // Node n covers rows mStart[n] ... mEnd[n] - 1; mRight[n] is -1 for
+    // a leaf.
+    final int[] mStart;
+    final int[] mEnd;
+    final int[] mRight;
+    // The bounding box of each node's rows, numDims values per node.
+    final float[] mLow;
+    final float[] mHigh;
+    // Per-dimension sums and the sum of squared norms of each node's rows.
+    final double[] mSums;
+    final double[] mSumSquares;
+    // Roots of the subtrees built in parallel, covering all the rows.
+    final int[] mSubtreeRoots;
+    // The most nodes on a path from a subtree root to a leaf.
+    final int mDepth;
+    // Number of nodes of a subtree, by its number of rows.
+    private final Map<Integer, Integer> mNodeCounts = new HashMap<>();
+
+    /**
+     * Builds the tree.  The rows are reordered in place.
+     *
+     * @param points   the rows, row-major.
+     * @param rowIndex the index of each row in the coordinates.
+     * @param numDims  the number of dimensions.
+     * @param executor runs the subtree builds.
+     */
+    KdTree(float[] points, int[] rowIndex, int numDims, ClusteringExecutor executor) {
+        mPoints = points;
+        mRowIndex = rowIndex;
+        mNumDims = numDims;
+        int numRows = rowIndex.length;
+        int numNodes = numRows == 0 ? 0 : countNodes(numRows);
+        mStart = new int[numNodes];
+        mEnd = new int[numNodes];
+        mRight = new int[numNodes];
+        mLow = new float[numNodes * numDims];
+        mHigh = new float[numNodes * numDims];
+        mSums = new double[numNodes * numDims];
+        mSumSquares = new double[numNodes];
+        int depth = 1;
+        for (int size = numRows; size > LEAF_SIZE; size = (size + 1) / 2) {
+            depth++;
+        }
+        mDepth = depth;
+        if (numRows == 0) {
+            mSubtreeRoots = new int[0];
+            return;
+        }
+
+        int numSubtrees = executor.getParallelism() * SUBTREES_PER_THREAD;
+        int levels = 32 - Integer.numberOfLeadingZeros(numSubtrees - 1);
+        List<Integer> roots = new ArrayList<>();
+        List<Integer> top = new ArrayList<>();
+        split(0, 0, numRows, levels, roots, top);
+
+        List<Callable<Void>> builds = new ArrayList<>(roots.size());
+        for (final int root : roots) {
+            builds.add(() -> {
+                build(root, mStart[root], mEnd[root]);
+                return null;
+            });
+        }
+        executor.invokeAll(builds);
+        // The top nodes were listed children first.
+        for (int node : top) {
+            combineSums(node);
+        }
+        mSubtreeRoots = new int[roots.size()];
+        for (int r = 0; r < mSubtreeRoots.length; r++) {
+            mSubtreeRoots[r] = roots.get(r);
+        }
+    }
+
+    /**
+     * @return the number of nodes.
+     */
+    int numNodes() {
+        return mStart.length;
+    }
+
+    /**
+     * @return true if the node is a leaf.
+     */
+    boolean isLeaf(int node) {
+        return mRight[node] < 0;
+    }
+
+    /**
+     * Returns the number of nodes of a subtree with the given number of
+     * rows.  Only called while building the top levels, so the cache is
+     * filled before the parallel builds read it.
+     */
+    private int countNodes(int numRows) {
+        if (numRows <= LEAF_SIZE) {
+            return 1;
+        }
+        Integer count = mNodeCounts.get(numRows);
+        if (count == null) {
+            count = 1 + countNodes(numRows / 2) + countNodes(numRows - numRows / 2);
+            mNodeCounts.put(numRows, count);
+        }
+        return count;
+    }
+
+    /**
+     * Splits the top levels of the tree, listing the roots of the
+     * subtrees left to build and the nodes split, children first.
+     */
+    private void split(int node, int start, int end, int levels, List<Integer> roots, List<Integer> top) {
+        mStart[node] = start;
+        mEnd[node] = end;
+        if (levels == 0 || end - start <= LEAF_SIZE) {
+            roots.add(node);
+            return;
+        }
+        int mid = splitRows(node, start, end);
+        split(node + 1, start, mid, levels - 1, roots, top);
+        split(mRight[node], mid, end, levels - 1, roots, top);
+        top.add(node);
+    }
+
+    /**
+     * Builds a subtree on the calling thread.
+     */
+    private void build(int node, int start, int end) {
+        mStart[node] = start;
+        mEnd[node] = end;
+        if (end - start <= LEAF_SIZE) {
+            mRight[node] = -1;
+            computeBox(node);
+            computeSums(node);
+            return;
+        }
+        int mid = splitRows(node, start, end);
+        build(node + 1, start, mid);
+        build(mRight[node], mid, end);
+        combineSums(node);
+    }
+
+    /**
+     * Computes the bounding box of an internal node and splits its rows
+     * at the median of the widest dimension.  Returns the first row of
+     * the right child.
+     */
+    private int splitRows(int node, int start, int end) {
+        computeBox(node);
+        int base = node * mNumDims;
+        int dim = 0;
+        for (int j = 1; j < mNumDims; j++) {
+            if (mHigh[base + j] - mLow[base + j] > mHigh[base + dim] - mLow[base + dim]) {
+                dim = j;
+            }
+        }
+        int mid = (start + end) >>> 1;
+        select(start, end - 1, mid, dim);
+        mRight[node] = node + 1 + countNodes(mid - start);
+        return mid;
+    }
+
+    private void computeBox(int node) {
+        int base = node * mNumDims;
+        for (int j = 0; j < mNumDims; j++) {
+            mLow[base + j] = Float.POSITIVE_INFINITY;
+            mHigh[base + j] = Float.NEGATIVE_INFINITY;
+        }
+        for (int p = mStart[node]; p < mEnd[node]; p++) {
+            int offset = p * mNumDims;
+            for (int j = 0; j < mNumDims; j++) {
+                float v = mPoints[offset + j];
+                if (v < mLow[base + j]) {
+                    mLow[base + j] = v;
+                }
+                if (v > mHigh[base + j]) {
+                    mHigh[base + j] = v;
+                }
+            }
+        }
+    }
+
+    private void computeSums(int node) {
+        int base = node * mNumDims;
+        double sumSquares = 0;
+        for (int p = mStart[node]; p < mEnd[node]; p++) {
+            int offset = p * mNumDims;
+            for (int j = 0; j < mNumDims; j++) {
+                double v = mPoints[offset + j];
+                mSums[base + j] += v;
+                sumSquares += v * v;
+            }
+        }
+        mSumSquares[node] = sumSquares;
+    }
+
+    private void combineSums(int node) {
+        int base = node * mNumDims;
+        int left = (node + 1) * mNumDims;
+        int right = mRight[node] * mNumDims;
+        for (int j = 0; j < mNumDims; j++) {
+            mSums[base + j] = mSums[left + j] + mSums[right + j];
+        }
+        mSumSquares[node] = mSumSquares[node + 1] + mSumSquares[mRight[node]];
+    }
+
+    /**
+     * Reorders rows low ... high so that row k holds the row it would
+     * hold if they were sorted by the given dimension, with no greater
+     * value before it and no smaller value after it.  Uses the same
+     * three-way partitioning as QuickMedian.select().
+     */
+    private void select(int low, int high, int k, int dim) {
+        while (high - low >= LEAF_SIZE) {
+            float pivot = medianOfThree(key(low, dim), key((low + high) >>> 1, dim), key(high, dim));
+            // Rows [low, lt) are below the pivot, [lt, gt] equal to it and
+            // (gt, high] above it.
+            int lt = low;
+            int gt = high;
+            int i = low;
+            while (i <= gt) {
+                float v = key(i, dim);
+                if (v < pivot) {
+                    swapRows(i++, lt++);
+                } else if (v > pivot) {
+                    swapRows(i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                high = lt - 1;
+            } else if (k > gt) {
+                low = gt + 1;
+            } else {
+                return;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && key(j - 1, dim) > key(j, dim); j--) {
+                swapRows(j - 1, j);
+            }
+        }
+    }
+
+    private float key(int row, int dim) {
+        return mPoints[row * mNumDims + dim];
+    }
+
+    private void swapRows(int a, int b) {
+        if (a == b) {
+            return;
+        }
+        int offsetA = a * mNumDims;
+        int offsetB = b * mNumDims;
+        for (int j = 0; j < mNumDims; j++) {
+            float v = mPoints[offsetA + j];
+            mPoints[offsetA + j] = mPoints[offsetB + j];
+            mPoints[offsetB + j] = v;
+        }
+        int index = mRowIndex[a];
+        mRowIndex[a] = mRowIndex[b];
+        mRowIndex[b] = index;
+    }
+
+    private static float medianOfThree(float a, float b, float c) {
+        if (a < b) {
+            return b < c ? b : Math.max(a, c);
+        } else {
+            return a < c ? a : Math.max(b, c);
+        }
+    }
+}
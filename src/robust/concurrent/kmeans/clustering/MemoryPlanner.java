@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+/**
+ * Estimates the heap a clustering run needs on top of the coordinates,
+ * and chooses the distance strategy accordingly.  The estimates cover the
+ * arrays whose size depends on the data shape: the assignments and
+ * memberships, the move logs, the centers and their sums, the distance
+ * cache or nearest distances, the bounds and the tiles of the blocked
+ * engine.  The heap available is the maximum heap less what is in use,
+ * which counts garbage not yet collected, so the estimate errs on the
+ * safe side without forcing a collection.
+ */
+class MemoryPlanner {
+
+    // Fraction of the available heap a run may plan to use.
+    private static final double HEADROOM = 0.9;
+    // Fewest dimensions for which the tiled engine is chosen over the
+    // fused pass when the distance cache does not fit.
+    static final int TILED_MIN_DIMS = 128;
+    // Size of an array header and of a reference, for the rows of the
+    // distance cache.
+    private static final long ARRAY_HEADER_BYTES = 16;
+    private static final long REFERENCE_BYTES = 8;
+
+    private final long mNumRows;
+    private final long mNumDims;
+    private final long mNumClusters;
+    private final int mNumWorkers;
+    private final boolean useKMedians;
+    private final boolean useTriangleInequality;
+    private final boolean useBlockedDistances;
+
+    /**
+     * Constructor
+     *
+     * @param numRows               the number of coordinates.
+     * @param numDims               the number of dimensions.
+     * @param numClusters           the number of clusters.
+     * @param numWorkers            the number of Workers.
+     * @param useKMedians           true for k-medians.
+     * @param useTriangleInequality true if the run prunes with bounds.
+     * @param useBlockedDistances   true if the tiled engine was enabled
+     *                              for every strategy.
+     */
+    MemoryPlanner(int numRows, int numDims, int numClusters, int numWorkers, boolean useKMedians,
+                  boolean useTriangleInequality, boolean useBlockedDistances) {
+        mNumRows = numRows;
+        mNumDims = numDims;
+        mNumClusters = numClusters;
+        mNumWorkers = numWorkers;
+        this.useKMedians = useKMedians;
+        this.useTriangleInequality = useTriangleInequality;
+        this.useBlockedDistances = useBlockedDistances;
+    }
+
+    /**
+     * Returns the heap that is free or can be grown into, in bytes.
+     */
+    static long availableBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Returns the estimated heap one run needs with the given strategy,
+     * in bytes.
+     */
+    long estimateBytes(DistanceStrategy strategy) {
+        // Assignments, members and, at worst, a move logged for every
+        // coordinate.
+        long bytes = 16 * mNumRows;
+        // The centers, with their sums and counts for k-means or the
+        // value buffers for k-medians, and a row buffer per Worker.
+        if (useKMedians) {
+            bytes += 4 * mNumClusters * mNumDims + 4 * mNumRows;
+        } else {
+            bytes += 16 * mNumClusters * mNumDims;
+        }
+        bytes += 4 * mNumWorkers * mNumDims;
+        if (useTriangleInequality) {
+            // Bounds and the previous centers; the strategy is ignored.
+            return bytes + 8 * mNumRows + 4 * mNumClusters * mNumDims;
+        }
+        if (usesTiles(strategy)) {
+            // The packed centers and each Worker's tiles.
+            bytes += 12 * mNumClusters * mNumDims + mNumWorkers
+                    * (long) BlockedDistances.ROW_BLOCK * (8 * mNumDims + 12 + 12 * mNumClusters);
+        }
+        if (strategy == DistanceStrategy.CACHED) {
+            long row = (ARRAY_HEADER_BYTES + 4 * mNumClusters + 7) / 8 * 8;
+            bytes += mNumRows * (row + REFERENCE_BYTES) + ARRAY_HEADER_BYTES;
+        } else {
+            bytes += 4 * mNumRows;
+        }
+        return bytes;
+    }
+
+    /**
+     * Whether the run computes its distances with the tiled engine.
+     */
+    boolean usesTiles(DistanceStrategy strategy) {
+        return !useKMedians && !useTriangleInequality
+                && (useBlockedDistances || strategy == DistanceStrategy.TILED);
+    }
+
+    /**
+     * Returns the fastest strategy that fits in the available heap, not
+     * faster than the one requested: the distance cache, then the tiled
+     * engine when the rows are wide enough for it to pay off, then the
+     * fused pass.  Returns FUSED when nothing fits.
+     */
+    DistanceStrategy choose(DistanceStrategy requested, int concurrentRuns, long availableBytes) {
+        if (useTriangleInequality) {
+            return DistanceStrategy.FUSED;
+        }
+        if (requested == DistanceStrategy.CACHED && fits(requested, concurrentRuns, availableBytes)) {
+            return requested;
+        }
+        if (requested != DistanceStrategy.FUSED && !useKMedians
+                && (requested == DistanceStrategy.TILED || mNumDims >= TILED_MIN_DIMS)
+                && fits(DistanceStrategy.TILED, concurrentRuns, availableBytes)) {
+            return DistanceStrategy.TILED;
+        }
+        return DistanceStrategy.FUSED;
+    }
+
+    /**
+     * Whether the given number of runs with the strategy fit in the
+     * available heap.
+     */
+    boolean fits(DistanceStrategy strategy, int concurrentRuns, long availableBytes) {
+        return (double) estimateBytes(strategy) * concurrentRuns <= HEADROOM * availableBytes;
+    }
+}
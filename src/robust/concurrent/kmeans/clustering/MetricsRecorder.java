@@ -0,0 +1,75 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+/**
+ * Records the metrics of clustering runs outside the listeners, for
+ * profilers.  The JFR recorder in the jfr directory is used when it is
+ * on the class path and the jdk.jfr module is present; otherwise nothing
+ * is recorded.
+ */
+abstract class MetricsRecorder {
+
+    static final MetricsRecorder NONE = new None();
+    static final MetricsRecorder DEFAULT = load();
+
+    private static MetricsRecorder load() {
+        try {
+            return (MetricsRecorder) Class.forName("robust.concurrent.kmeans.clustering.JfrMetricsRecorder")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            // Not compiled in, or the jdk.jfr module is missing.
+            return NONE;
+        }
+    }
+
+    /**
+     * Records an iteration of a run.
+     */
+    abstract void recordIteration(IterationMetrics metrics);
+
+    /**
+     * Records a finished run.
+     *
+     * @param numRows     the number of coordinates.
+     * @param numDims     the number of dimensions.
+     * @param numClusters the number of clusters.
+     * @param metrics     the metrics of the run, or null if it made no
+     *                    iteration.
+     * @param inertia     the final inertia.
+     */
+    abstract void recordRun(int numRows, int numDims, int numClusters, KMeansMetrics metrics, double inertia);
+
+    private static final class None extends MetricsRecorder {
+
+        @Override
+        void recordIteration(IterationMetrics metrics) {
+        }
+
+        @Override
+        void recordRun(int numRows, int numDims, int numClusters, KMeansMetrics metrics, double inertia) {
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Mini-batch k-means (Sculley, 2010) for very large numbers of
+ * coordinates.  Each step samples a batch of rows, assigns them to the
+ * nearest centers in parallel on the worker pool, and moves each center
+ * towards its batch members with a per-center, per-dimension learning
+ * rate of 1 / (number of non-NaN values seen so far).  NaNs never move
+ * a center, in the same way they are skipped by the full center update.
+ * After the last step every coordinate is assigned once to produce the
+ * final clusters.
+ */
+public class MiniBatchKMeans implements KMeans {
+
+    // The coordinates to be clustered.
+    private final CoordinateStore mCoordinates;
+    // The desired number of clusters, maximum number of steps and the
+    // number of rows sampled per step.
+    private final int mK;
+    private final int mMaxIterations;
+    private final int mBatchSize;
+    // Seed for the random number generator used for seeding and sampling.
+    private final long mRandomSeed;
+    // Runs the subtasks.
+    private ClusteringExecutor mExecutor = ClusteringExecutor.getDefault();
+    // Stop when no center moves further than this in one step.
+    private double mTolerance = 0;
+    // Stop after this many steps without improvement of the smoothed
+    // batch inertia.
+    private int mMaxNoImprovement = 10;
+    private final KMeansListeners mListeners = new KMeansListeners();
+    // An array of Cluster objects: the output of k-means.
+    private Cluster[] mClusters;
+
+    /**
+     * Constructor
+     *
+     * @param coordinates   the coordinates to be clustered.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of mini-batch steps.
+     * @param randomSeed    seed used with the random number generator.
+     * @param batchSize     the number of rows sampled per step.
+     */
+    public MiniBatchKMeans(CoordinateStore coordinates, int k, int maxIterations,
+                           long randomSeed, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batch size <= 0: " + batchSize);
+        }
+        mCoordinates = coordinates;
+        // Can't have more clusters than coordinates.
+        mK = Math.min(k, coordinates.numRows());
+        mMaxIterations = maxIterations;
+        mRandomSeed = randomSeed;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param coordinates   two-dimensional array containing the coordinates to be clustered.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of mini-batch steps.
+     * @param randomSeed    seed used with the random number generator.
+     * @param batchSize     the number of rows sampled per step.
+     */
+    public MiniBatchKMeans(float[][] coordinates, int k, int maxIterations,
+                           long randomSeed, int batchSize) {
+        this(CoordinateStore.of(coordinates), k, maxIterations, randomSeed, batchSize);
+    }
+
+    /**
+     * Stop once no center moves further than the tolerance in a single
+     * step.  With the default of 0 this only happens once the centers
+     * stop moving entirely.
+     *
+     * @param tolerance the largest center movement considered converged.
+     */
+    public void setTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must be >= 0: " + tolerance);
+        }
+        mTolerance = tolerance;
+    }
+
+    /**
+     * Stop after the given number of consecutive steps in which the
+     * exponentially smoothed batch inertia did not improve.  0 disables
+     * this criterion.
+     *
+     * @param maxNoImprovement the number of steps without improvement.
+     */
+    public void setMaxNoImprovement(int maxNoImprovement) {
+        mMaxNoImprovement = maxNoImprovement;
+    }
+
+    /**
+     * Sets the executor that runs the time-consuming steps.  By default
+     * they run on ClusteringExecutor.getDefault().
+     *
+     * @param executor the executor.
+     */
+    public void setExecutor(ClusteringExecutor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void addKMeansListener(KMeansListener l) {
+        mListeners.add(l);
+    }
+
+    @Override
+    public void removeKMeansListener(KMeansListener l) {
+        mListeners.remove(l);
+    }
+
+    @Override
+    public Cluster[] getClusters() {
+        return mClusters;
+    }
+
+    /**
+     * Run the clustering algorithm.
+     */
+    public void run() {
+        try {
+            mListeners.postMessage("Mini-batch K-Means clustering started");
+
+            ClusteringContext context = new ClusteringContext(mCoordinates, false, 0, mExecutor);
+            Random random = new Random(mRandomSeed);
+            int numCoords = mCoordinates.numRows();
+            int numDims = mCoordinates.numDimensions();
+
+            SmartInitialization initialization = new SmartInitialization(mCoordinates, mK,
+                    random.nextInt(numCoords), false);
+            initialization.setExecutor(mExecutor);
+            int[] indices = initialization.getSmartClusterInitialization();
+            ProtoCluster[] protoClusters = new ProtoCluster[mK];
+            for (int i = 0; i < mK; i++) {
+                // Membership is only built by the final assignment pass.
+                protoClusters[i] = new ProtoCluster(context, mCoordinates.copyRow(indices[i]));
+            }
+            context.mProtoClusters = protoClusters;
+            mListeners.postMessage("... centers initialized");
+
+            int batchSize = Math.min(mBatchSize, numCoords);
+            context.mBatch = new int[batchSize];
+            context.mBatchSize = batchSize;
+            context.mBatchAssignments = new int[batchSize];
+            context.mBatchDistances = new float[batchSize];
+            SubtaskManager subtaskManager = new SubtaskManager(context, mExecutor.getParallelism());
+
+            // Number of non-NaN values seen so far per center and dimension.
+            long[][] counts = new long[mK][numDims];
+            float[][] previousCenters = new float[mK][numDims];
+            float[] row = new float[numDims];
+            double smoothedInertia = Double.NaN;
+            double bestInertia = Double.MAX_VALUE;
+            double alpha = Math.min(1.0, 2.0 * batchSize / (numCoords + 1));
+            int noImprovement = 0;
+
+            int it = 0;
+            while (it < mMaxIterations) {
+                for (int b = 0; b < batchSize; b++) {
+                    context.mBatch[b] = random.nextInt(numCoords);
+                }
+                subtaskManager.assignBatch();
+
+                for (int c = 0; c < mK; c++) {
+                    System.arraycopy(protoClusters[c].getCenter(), 0, previousCenters[c], 0, numDims);
+                }
+
+                double inertia = 0;
+                int numCounted = 0;
+                for (int b = 0; b < batchSize; b++) {
+                    int i = context.mBatch[b];
+                    if (context.mRowMasks.isAllNaN(i)) {
+                        continue;
+                    }
+                    double d = context.mBatchDistances[b];
+                    inertia += d * d;
+                    numCounted++;
+                    int c = context.mBatchAssignments[b];
+                    float[] center = protoClusters[c].getCenter();
+                    long[] centerCounts = counts[c];
+                    mCoordinates.getRow(i, row);
+                    for (int j = 0; j < numDims; j++) {
+                        float v = row[j];
+                        if (!Float.isNaN(v)) {
+                            long n = ++centerCounts[j];
+                            if (Float.isNaN(center[j])) {
+                                center[j] = v;
+                            } else {
+                                center[j] += (v - center[j]) / n;
+                            }
+                        }
+                    }
+                }
+                // NaN when the batch drew only rows that are all NaN.
+                inertia /= numCounted;
+
+                double maxShift = 0;
+                for (int c = 0; c < mK; c++) {
+                    protoClusters[c].refreshCenterMask();
+                    maxShift = Math.max(maxShift, RobustEuclideanDistance.SINGLETON.distance(
+                            previousCenters[c], protoClusters[c].getCenter()));
+                }
+
+                it++;
+                if (numCounted > 0) {
+                    smoothedInertia = Double.isNaN(smoothedInertia) ? inertia
+                            : smoothedInertia * (1 - alpha) + inertia * alpha;
+                }
+                mListeners.postMessage("... iteration " + it + " batch inertia = " + inertia
+                        + " max center shift = " + maxShift);
+
+                if (maxShift <= mTolerance) {
+                    break;
+                }
+                if (smoothedInertia < bestInertia) {
+                    bestInertia = smoothedInertia;
+                    noImprovement = 0;
+                } else if (mMaxNoImprovement > 0 && ++noImprovement >= mMaxNoImprovement) {
+                    break;
+                }
+            }
+
+            // Assign every coordinate to its nearest center.
+            context.mBestDistances = new float[numCoords];
+            subtaskManager.computeDistancesAndAssign();
+
+            List<Cluster> clusterList = new ArrayList<>(mK);
+            for (ProtoCluster pcluster : protoClusters) {
+                if (pcluster.isNotEmpty()) {
+                    clusterList.add(new Cluster(pcluster.getMembership(), pcluster.getCenter()));
+                }
+            }
+            mClusters = clusterList.toArray(new Cluster[0]);
+
+            mListeners.postComplete(mClusters);
+
+        } catch (Throwable t) {
+
+            mListeners.postError(t);
+
+        }
+    }
+}
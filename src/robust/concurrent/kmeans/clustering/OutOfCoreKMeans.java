@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.clustering;
+
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.data.MappedCoordinateStore;
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * K-means over coordinates that do not fit in memory, typically a
+ * MappedCoordinateStore.  Every Lloyd iteration is a single sequential
+ * pass: each thread streams a contiguous range of rows, assigns every
+ * row to its nearest center and accumulates NaN-aware per-dimension sums
+ * and counts for the new centers.  Only the int assignment array and the
+ * per-thread sums are kept in memory; there is no distance cache, no NaN
+ * mask index and no per-cluster membership list until the end.
+ * <p>
+ * The centers are seeded by farthest-point initialization on a random
+ * sample of the rows.
+ */
+public class OutOfCoreKMeans implements KMeans {
+
+    private static final DistanceMetric euclidean = RobustEuclideanDistance.SINGLETON;
+
+    // The coordinates to be clustered.
+    private final CoordinateStore mCoordinates;
+    // The desired number of clusters and maximum number
+    // of iterations.
+    private final int mK;
+    private final int mMaxIterations;
+    // Seed for the random number generator used for seeding.
+    private final long mRandomSeed;
+    // Runs the threads streaming the rows.
+    private ClusteringExecutor mExecutor = ClusteringExecutor.getDefault();
+    // Number of rows sampled to seed the centers.
+    private int mSeedSampleSize = 100000;
+    private final KMeansListeners mListeners = new KMeansListeners();
+    // An array of Cluster objects: the output of k-means.
+    private Cluster[] mClusters;
+
+    /**
+     * Constructor
+     *
+     * @param coordinates   the coordinates to be clustered.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed    seed used with the random number generator.
+     */
+    public OutOfCoreKMeans(CoordinateStore coordinates, int k, int maxIterations, long randomSeed) {
+        mCoordinates = coordinates;
+        // Can't have more clusters than coordinates.
+        mK = Math.min(k, coordinates.numRows());
+        mMaxIterations = maxIterations;
+        mRandomSeed = randomSeed;
+    }
+
+    /**
+     * Constructor that maps a little-endian, row-major float32 file.
+     *
+     * @param file          the matrix file.
+     * @param numDims       the number of dimensions of each row.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed    seed used with the random number generator.
+     */
+    public OutOfCoreKMeans(Path file, int numDims, int k, int maxIterations, long randomSeed) throws IOException {
+        this(new MappedCoordinateStore(file, numDims), k, maxIterations, randomSeed);
+    }
+
+    /**
+     * Sets the number of rows sampled to seed the centers.
+     *
+     * @param seedSampleSize the number of sampled rows.
+     */
+    public void setSeedSampleSize(int seedSampleSize) {
+        mSeedSampleSize = seedSampleSize;
+    }
+
+    /**
+     * Sets the executor that runs the time-consuming steps.  By default
+     * they run on ClusteringExecutor.getDefault().
+     *
+     * @param executor the executor.
+     */
+    public void setExecutor(ClusteringExecutor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void addKMeansListener(KMeansListener l) {
+        mListeners.add(l);
+    }
+
+    @Override
+    public void removeKMeansListener(KMeansListener l) {
+        mListeners.remove(l);
+    }
+
+    @Override
+    public Cluster[] getClusters() {
+        return mClusters;
+    }
+
+    /**
+     * Run the clustering algorithm.
+     */
+    public void run() {
+        try {
+            mListeners.postMessage("Out-of-core K-Means clustering started");
+
+            int numCoords = mCoordinates.numRows();
+            int numDims = mCoordinates.numDimensions();
+            float[][] centers = SmartInitialization.sampleCenters(mCoordinates, mK, mSeedSampleSize,
+                    new Random(mRandomSeed), mExecutor);
+            boolean[] active = new boolean[mK];
+            Arrays.fill(active, true);
+            mListeners.postMessage("... centers initialized");
+
+            int[] assignments = new int[numCoords];
+            Arrays.fill(assignments, -1);
+
+            // Split the rows into one contiguous range per thread, so each
+            // thread reads the file sequentially.
+            int numThreads = Math.max(1, Math.min(mExecutor.getParallelism(), numCoords));
+            List<StreamingPass> passes = new ArrayList<>(numThreads);
+            int start = 0;
+            for (int t = 0; t < numThreads; t++) {
+                int count = numCoords / numThreads + (t < numCoords % numThreads ? 1 : 0);
+                passes.add(new StreamingPass(start, count, centers, active, assignments));
+                start += count;
+            }
+
+            double[] sums = new double[numDims];
+            long[] counts = new long[numDims];
+            int moves, it = 0;
+            do {
+                moves = 0;
+                for (int passMoves : mExecutor.invokeAll(passes)) {
+                    moves += passMoves;
+                }
+
+                // Reduce the per-thread sums into the new centers.
+                for (int c = 0; c < mK; c++) {
+                    if (!active[c]) {
+                        continue;
+                    }
+                    Arrays.fill(sums, 0);
+                    Arrays.fill(counts, 0);
+                    long members = 0;
+                    for (StreamingPass pass : passes) {
+                        members += pass.mMembers[c];
+                        for (int j = 0; j < numDims; j++) {
+                            sums[j] += pass.mSums[c][j];
+                            counts[j] += pass.mCounts[c][j];
+                        }
+                    }
+                    if (members == 0) {
+                        // When a cluster loses all of its members, it
+                        // falls out of contention.
+                        active[c] = false;
+                        continue;
+                    }
+                    for (int j = 0; j < numDims; j++) {
+                        centers[c][j] = counts[j] < 1 ? Float.NaN : (float) (sums[j] / counts[j]);
+                    }
+                }
+
+                it++;
+                mListeners.postMessage("... iteration " + it + " moves = " + moves);
+
+            } while (moves > 0 && it < mMaxIterations);
+
+            mClusters = Cluster.fromAssignments(centers, active, assignments);
+            mListeners.postComplete(mClusters);
+
+        } catch (Throwable t) {
+
+            mListeners.postError(t);
+
+        }
+    }
+
+    /**
+     * One thread's share of an iteration: streams a contiguous range of
+     * rows, assigns each to the nearest center and accumulates the sums
+     * for the next centers.  Returns the number of moves.
+     */
+    private class StreamingPass implements Callable<Integer> {
+
+        private final int mStart;
+        private final int mCount;
+        private final float[][] mCenters;
+        private final boolean[] mActive;
+        private final int[] mAssignments;
+        private final double[][] mSums;
+        private final long[][] mCounts;
+        private final long[] mMembers;
+        private final float[] mRow;
+
+        StreamingPass(int start, int count, float[][] centers, boolean[] active, int[] assignments) {
+            mStart = start;
+            mCount = count;
+            mCenters = centers;
+            mActive = active;
+            mAssignments = assignments;
+            int numDims = mCoordinates.numDimensions();
+            mSums = new double[mK][numDims];
+            mCounts = new long[mK][numDims];
+            mMembers = new long[mK];
+            mRow = new float[numDims];
+        }
+
+        @Override
+        public Integer call() {
+            for (int c = 0; c < mK; c++) {
+                Arrays.fill(mSums[c], 0);
+                Arrays.fill(mCounts[c], 0);
+            }
+            Arrays.fill(mMembers, 0);
+            int numDims = mRow.length;
+            int moves = 0;
+            int lim = mStart + mCount;
+            for (int i = mStart; i < lim; i++) {
+                mCoordinates.getRow(i, mRow);
+                int nearest = -1;
+                double min = Double.MAX_VALUE;
+                for (int c = 0; c < mK; c++) {
+                    if (mActive[c]) {
+                        double d = euclidean.distance(mRow, 0, mCenters[c], numDims);
+                        if (d < min) {
+                            min = d;
+                            nearest = c;
+                        }
+                    }
+                }
+                if (mAssignments[i] != nearest) {
+                    mAssignments[i] = nearest;
+                    moves++;
+                }
+                mMembers[nearest]++;
+                double[] sums = mSums[nearest];
+                long[] counts = mCounts[nearest];
+                for (int j = 0; j < numDims; j++) {
+                    float v = mRow[j];
+                    if (!Float.isNaN(v)) {
+                        sums[j] += v;
+                        counts[j]++;
+                    }
+                }
+            }
+            return moves;
+        }
+    }
+}
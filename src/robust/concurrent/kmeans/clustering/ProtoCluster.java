@@ -17,14 +17,12 @@
 
 package robust.concurrent.kmeans.clustering;
 
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.metric.NanMasks;
 import robust.concurrent.kmeans.metric.QuickMedian;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Random;
 
 /**
  * Cluster class used temporarily during clustering.  Upon completion,
@@ -33,34 +31,49 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class ProtoCluster {
 
+    // The state of the run this cluster belongs to.
+    private final ClusteringContext mContext;
     // The cluster center.
     private final float[] mCenter;
-    // The previous iteration's cluster membership and
-    // the current iteration's membership.  Compared to see if the
-    // cluster has changed during the last iteration.
-    private int[] mPreviousMembership;
-    private int[] mCurrentMembership;
+    // NaN mask of the center, refreshed whenever the center is updated.
+    private final NanMasks mCenterMask;
+    // The members are mContext.mMembers[mMemberOffset] ...
+    // mContext.mMembers[mMemberOffset + mCurrentSize - 1], in ascending
+    // order.  Rebuilt by the SubtaskManager after every assignment pass.
+    private int mMemberOffset;
     private int mCurrentSize;
     // Born true, so the first call to updateDistances() will set all the
     // distances.
     private boolean mUpdateFlag = true;
     // Whether or not this cluster takes part in the operations.
     private boolean mConsiderForAssignment = true;
+    // Running per-dimension sums and non-NaN counts of the members,
+    // used for k-means.  Updated from the coordinates that moved while
+    // valid, and summed again from all the members otherwise.
+    private double[] mSums;
+    private int[] mCounts;
+    private boolean mSumsValid;
+    // Positions within the members of a uniform random sample of them,
+    // in ascending order, used for approximate medians.  The sample is
+    // not used while mMedianSampleSize is 0.
+    private int[] mMedianSample;
+    private int mMedianSampleSize;
 
     /**
      * Constructor
      *
-     * @param center     the initial cluster center.
-     * @param coordIndex the initial member.
+     * @param context the state of the run.
+     * @param center  the initial cluster center.
      */
-    ProtoCluster(float[] center, int coordIndex) {
+    ProtoCluster(ClusteringContext context, float[] center) {
+        mContext = context;
         mCenter = center.clone();
-        // No previous membership.
-        mPreviousMembership = new int[0];
-        // Provide space for 10 members to be added initially.
-        mCurrentMembership = new int[10];
-        mCurrentSize = 0;
-        add(coordIndex);
+        mCenterMask = new NanMasks(1, mCenter.length);
+        mCenterMask.update(0, mCenter, 0);
+        if (!context.useKMedians) {
+            mSums = new double[mCenter.length];
+            mCounts = new int[mCenter.length];
+        }
     }
 
     /**
@@ -69,8 +82,7 @@ public class ProtoCluster {
      * @return an array of coordinate indices.
      */
     int[] getMembership() {
-        trimCurrentMembership();
-        return mCurrentMembership;
+        return Arrays.copyOfRange(mContext.mMembers, mMemberOffset, mMemberOffset + mCurrentSize);
     }
 
     /**
@@ -81,35 +93,31 @@ public class ProtoCluster {
     }
 
     /**
-     * Reduces the length of the array of current members to
-     * the number of members.
+     * Get the NaN mask of the protocluster's center, as vector 0.
      */
-    void trimCurrentMembership() {
-        if (mCurrentMembership.length > mCurrentSize) {
-            int[] temp = new int[mCurrentSize];
-            System.arraycopy(mCurrentMembership, 0, temp, 0, mCurrentSize);
-            mCurrentMembership = temp;
-        }
+    NanMasks getCenterMask() {
+        return mCenterMask;
     }
 
     /**
-     * Add a coordinate to the protocluster. Note that this
-     * method has to be synchronized, because multiple threads
-     * may be adding members to the cluster.
+     * Refresh the NaN mask after the center was modified in place.
+     */
+    void refreshCenterMask() {
+        mCenterMask.update(0, mCenter, 0);
+    }
+
+    /**
+     * Point the protocluster at its members after an assignment pass.
      *
-     * @param ndx index of the coordinate to be added.
+     * @param offset  index of the first member in the context's members.
+     * @param size    the number of members.
+     * @param changed whether any coordinate joined or left the cluster
+     *                in the pass; sets the update flag.
      */
-    synchronized void add(int ndx) {
-        // Ensure there's space to add the new member.
-        if (mCurrentSize == mCurrentMembership.length) {
-            // If not, double the size of mCurrentMembership.
-            int newCapacity = Math.max(10, 2 * mCurrentMembership.length);
-            int[] temp = new int[newCapacity];
-            System.arraycopy(mCurrentMembership, 0, temp, 0, mCurrentSize);
-            mCurrentMembership = temp;
-        }
-        // Add the index.
-        mCurrentMembership[mCurrentSize++] = ndx;
+    void setMembership(int offset, int size, boolean changed) {
+        mMemberOffset = offset;
+        mCurrentSize = size;
+        mUpdateFlag = changed;
     }
 
     /**
@@ -121,42 +129,6 @@ public class ProtoCluster {
         return mCurrentSize != 0;
     }
 
-    /**
-     * Compares the previous and the current membership.
-     * Sets the update flag to true if the membership
-     * changed in the previous call to makeAssignments().
-     */
-    void setUpdateFlag() {
-        // Trim the current membership array length down to the
-        // number of members.
-        trimCurrentMembership();
-        // Since members may have been added by multiple threads, they
-        // are probably not in order.  They must be sorted in order to
-        // do a valid comparison with mPreviousMembership.
-        Arrays.sort(mCurrentMembership);
-        mUpdateFlag = false;
-        if (mPreviousMembership.length == mCurrentSize) {
-            for (int i = 0; i < mCurrentSize; i++) {
-                if (mPreviousMembership[i] != mCurrentMembership[i]) {
-                    mUpdateFlag = true;
-                    break;
-                }
-            }
-        } else { // Number of members has changed.
-            mUpdateFlag = true;
-        }
-    }
-
-    /**
-     * Clears the current membership after copying it to the
-     * previous membership.
-     */
-    void checkPoint() {
-        mPreviousMembership = mCurrentMembership;
-        mCurrentMembership = new int[10];
-        mCurrentSize = 0;
-    }
-
     /**
      * Is this protocluster currently in contention?
      *
@@ -186,91 +158,159 @@ public class ProtoCluster {
     }
 
     public static void launchParallelizedCode(Runnable runnable) {
-        launchParallelizedCode(Runtime.getRuntime().availableProcessors(), runnable);
+        ClusteringExecutor.getDefault().invokeOnEachThread(runnable);
     }
 
-    private void updateCenterKMeans(float[][] coordinates) {
-        Arrays.fill(mCenter, 0f);
-        if (mCurrentSize > 0) {
-            int[] mCurrentSizeForIndex = new int[mCenter.length];
-            for (int i = 0; i < mCurrentSize; i++) {
-                float[] coord = coordinates[mCurrentMembership[i]];
-                for (int j = 0; j < coord.length; j++) {
-                    if (!Float.isNaN(coord[j])) {
-                        mCenter[j] += coord[j];
-                        mCurrentSizeForIndex[j]++;
-                    }
-                }
-            }
-            for (int i = 0; i < mCenter.length; i++) {
-                if (mCurrentSizeForIndex[i] < 1) {
-                    mCenter[i] = Float.NaN;
-                } else {
-                    mCenter[i] /= mCurrentSizeForIndex[i];
-                }
-            }
+    /**
+     * Add the dimensions fromDim to toDim of a coordinate that joined the
+     * cluster to the running sums.
+     */
+    void addToSums(int ndx, int fromDim, int toDim) {
+        if (mSumsValid) {
+            mContext.mCoordinates.accumulate(ndx, 1, mSums, mCounts, fromDim, toDim);
         }
     }
 
-    public static void launchParallelizedCode(int numCPUThreads, final Runnable runnable) {
-        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
-
-        for (int l = 0; l < numCPUThreads; ++l) {
-            Runnable worker = new Runnable() {
-                public void run() {
-                    runnable.run();
-                }
-            };
-            executor.execute(worker);
+    /**
+     * Remove the dimensions fromDim to toDim of a coordinate that left
+     * the cluster from the running sums.
+     */
+    void removeFromSums(int ndx, int fromDim, int toDim) {
+        if (mSumsValid) {
+            mContext.mCoordinates.accumulate(ndx, -1, mSums, mCounts, fromDim, toDim);
         }
+    }
 
-        executor.shutdown();
+    /**
+     * Forces the next k-means update to sum all the members again.
+     */
+    void invalidateSums() {
+        mSumsValid = false;
+    }
 
-        while (!executor.isTerminated()) {
-        }
+    /**
+     * Whether the running sums are up to date, so the k-means center can
+     * be computed from them without summing the members again.
+     */
+    boolean hasValidSums() {
+        return mSumsValid;
+    }
 
+    /**
+     * Mark the running sums up to date after recomputeSums().
+     */
+    void markSumsValid() {
+        mSumsValid = true;
     }
 
     /**
-     * Update the cluster center.
-     *
-     * @param coordinates the array of coordinates.
-     * @param medianSkip
+     * Sum all the members again.  The sums are only marked valid by
+     * markSumsValid(), so that moves applied concurrently to other
+     * dimensions or clusters keep skipping this cluster.
+     */
+    void recomputeSums() {
+        Arrays.fill(mSums, 0);
+        Arrays.fill(mCounts, 0);
+        CoordinateStore coordinates = mContext.mCoordinates;
+        int[] members = mContext.mMembers;
+        for (int i = mMemberOffset; i < mMemberOffset + mCurrentSize; i++) {
+            coordinates.accumulate(members[i], 1, mSums, mCounts);
+        }
+    }
+
+    /**
+     * Set the dimensions fromDim to toDim of the k-means center from the
+     * running sums.  The center mask is not refreshed.
      */
-    void updateCenter(float[][] coordinates, boolean useKMedians, int medianSkip) {
-        if (useKMedians) {
-            if (medianSkip > 1) {
-                updateCenterKMediansWithSkip(coordinates, medianSkip);
+    void updateCenterFromSums(int fromDim, int toDim) {
+        for (int i = fromDim; i < toDim; i++) {
+            if (mCounts[i] < 1) {
+                mCenter[i] = Float.NaN;
             } else {
-                updateCenterKMediansWithSkip(coordinates, 1);
+                mCenter[i] = (float) (mSums[i] / mCounts[i]);
             }
-        } else {
-            updateCenterKMeans(coordinates);
         }
     }
 
-    private void updateCenterKMediansWithSkip(float[][] coordinates, int skipVal) {
-        Arrays.fill(mCenter, 0f);
-        if (mCurrentSize > 0) {
-            AtomicInteger jIndex = new AtomicInteger(0);
-            launchParallelizedCode(() -> {
-                int j = jIndex.getAndIncrement();
-                while (j < mCenter.length) {
-                    List<Float> entries = new ArrayList<>();
-                    for (int i = 0; i < mCurrentSize; i += skipVal) {
-                        float[] coord = coordinates[mCurrentMembership[i]];
-                        if (!Float.isNaN(coord[j])) {
-                            entries.add(coord[j]);
-                        }
-                    }
-                    if (entries.size() > 0) {
-                        mCenter[j] = QuickMedian.fastMedian(entries);
-                    } else {
-                        mCenter[j] = Float.NaN;
-                    }
-                    j = jIndex.getAndIncrement();
+    /**
+     * Runs numCPUThreads copies of the runnable on the shared executor and
+     * waits for them to finish.
+     */
+    public static void launchParallelizedCode(int numCPUThreads, final Runnable runnable) {
+        Runnable[] copies = new Runnable[numCPUThreads];
+        Arrays.fill(copies, runnable);
+        ClusteringExecutor.getDefault().invokeAll(copies);
+    }
+
+    /**
+     * Draw a uniform random sample of sampleSize members, which the
+     * k-medians center is computed from until the next call.  If the
+     * cluster has no more members than that, all of them are used.
+     * Uses reservoir sampling with geometric skips (Li's Algorithm L), so
+     * the cost depends on the sample size rather than the cluster size.
+     */
+    void sampleMembers(int sampleSize, Random random) {
+        if (mCurrentSize <= sampleSize) {
+            mMedianSampleSize = 0;
+            return;
+        }
+        if (mMedianSample == null) {
+            mMedianSample = new int[sampleSize];
+        }
+        for (int i = 0; i < sampleSize; i++) {
+            mMedianSample[i] = i;
+        }
+        double w = Math.exp(Math.log(1 - random.nextDouble()) / sampleSize);
+        int i = sampleSize - 1;
+        while (true) {
+            double skip = Math.floor(Math.log(1 - random.nextDouble()) / Math.log(1 - w));
+            if (i + skip + 1 >= mCurrentSize) {
+                break;
+            }
+            i += (int) skip + 1;
+            mMedianSample[random.nextInt(sampleSize)] = i;
+            w *= Math.exp(Math.log(1 - random.nextDouble()) / sampleSize);
+        }
+        Arrays.sort(mMedianSample);
+        mMedianSampleSize = sampleSize;
+    }
+
+    /**
+     * Returns the most values updateMedian() gathers for one dimension.
+     */
+    int numMedianValues(int skip) {
+        return mMedianSampleSize > 0 ? mMedianSampleSize : (mCurrentSize + skip - 1) / skip;
+    }
+
+    /**
+     * Set one dimension of the k-medians center to the median of the
+     * members' non-NaN values in that dimension.  Only the members drawn
+     * by sampleMembers(), or else every skip-th member, are used.
+     *
+     * @param dim     the dimension.
+     * @param skip    stride between the members sampled.
+     * @param scratch buffer for the values, with room for
+     *                numMedianValues(skip) values.
+     */
+    void updateMedian(int dim, int skip, float[] scratch) {
+        CoordinateStore coordinates = mContext.mCoordinates;
+        int[] members = mContext.mMembers;
+        int count = 0;
+        if (mMedianSampleSize > 0) {
+            for (int s = 0; s < mMedianSampleSize; s++) {
+                float value = coordinates.get(members[mMemberOffset + mMedianSample[s]], dim);
+                if (!Float.isNaN(value)) {
+                    scratch[count++] = value;
                 }
-            });
+            }
+        } else {
+            for (int i = 0; i < mCurrentSize; i += skip) {
+                float value = coordinates.get(members[mMemberOffset + i], dim);
+                if (!Float.isNaN(value)) {
+                    scratch[count++] = value;
+                }
+            }
         }
+        mCenter[dim] = QuickMedian.median(scratch, count);
     }
 }
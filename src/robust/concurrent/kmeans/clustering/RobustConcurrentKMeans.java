@@ -17,10 +17,13 @@
 
 package robust.concurrent.kmeans.clustering;
 
+import robust.concurrent.kmeans.data.CoordinateStore;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 /**
  * The version of K-means clustering adapted for true concurrency
@@ -31,21 +34,50 @@ import java.util.Random;
 @SuppressWarnings("ForLoopReplaceableByForEach")
 public class RobustConcurrentKMeans implements KMeans {
 
-    // 2D array holding the coordinates to be clustered.
-    public static float[][] mCoordinates;
+    // Sampling rounds and candidates per round (as a multiple of the
+    // number of clusters) used by k-means|| seeding.
+    private static final int SEEDING_ROUNDS = 5;
+    private static final double SEEDING_OVERSAMPLING = 1.0;
+    // k-means centers are summed from all their members every this many
+    // updates, to keep rounding errors in the running sums from building up.
+    private static final int FULL_RECOMPUTE_INTERVAL = 10;
+    // Restarts are not abandoned before this many iterations, while their
+    // inertia still drops quickly.
+    private static final int ABANDON_MIN_ITERATIONS = 5;
+
+    // The coordinates to be clustered.
+    private final CoordinateStore mCoordinates;
     protected boolean useKMedians = false;
     protected int medianSkip = 0;
-    // Temporary clusters used during the clustering process.  Converted to
-    // an array of the simpler class Cluster at the conclusion.
-    public static ProtoCluster[] mProtoClusters;
-    // Cache of coordinate-to-cluster distances. Number of entries =
-    // number of clusters X number of coordinates.
-    public static float[][] mDistanceCache;
-    // Used in makeAssignments() to figure out how many moves are made
-    // during each iteration -- the cluster assignment for coordinate n is
-    // found in mClusterAssignments[n] where the N coordinates are numbered
-    // 0 ... (N-1)
-    public static int[] mClusterAssignments;
+    // Tolerated rank error of approximate medians, or 0 for exact ones.
+    protected double medianRankError = 0;
+    // Skip distance evaluations that cannot change an assignment,
+    // using triangle inequality bounds.
+    protected boolean useTriangleInequality = false;
+    // Whether distances are cached between iterations or fused with
+    // the assignments.
+    protected DistanceStrategy mDistanceStrategy = DistanceStrategy.CACHED;
+    // Compute k-means distances with the tiled engine.
+    protected boolean useBlockedDistances = false;
+    // Seed with k-means|| instead of farthest-point seeding.
+    protected boolean useScalableSeeding = false;
+    // Stopping rules checked after every iteration, each disabled by 0:
+    // the fraction of coordinates that moved, the relative improvement of
+    // the inertia and the largest distance a center moved.
+    protected double movedFractionTolerance = 0;
+    protected double inertiaTolerance = 0;
+    protected double centerShiftTolerance = 0;
+    // The distance strategy chosen for the heap available, which may be
+    // TILED or FUSED when mDistanceStrategy is CACHED.  Restarts are given
+    // the one chosen for all of them.
+    private DistanceStrategy mPlannedStrategy;
+    // Whether the run computes its distances with the tiled engine, for
+    // mPlannedStrategy.
+    private boolean mPlannedTiles;
+    // State of the current run: the temporary clusters, the distance
+    // cache and the cluster assignments.  Created fresh by run() and
+    // discarded by cleanup().
+    private ClusteringContext mContext;
     // The desired number of clusters and maximum number
     // of iterations.
     private final int mK;
@@ -55,33 +87,79 @@ public class RobustConcurrentKMeans implements KMeans {
     private final long mRandomSeed;
     // The number of threads used to perform the subtasks.
     private final int mThreadCount;
+    // Runs the subtasks, or null to use the shared default executor.
+    private ClusteringExecutor mExecutor;
     // Listeners to be notified of significant happenings.
-    private final List<KMeansListener> mListeners = new ArrayList<>(1);
-    // Subtask manager that handles the thread pool to which
-    // time-consuming tasks are delegated.
+    private final KMeansListeners mListeners = new KMeansListeners();
+    // Subtask manager that splits the time-consuming tasks between
+    // the executor's threads.
     private SubtaskManager mSubtaskManager;
     // An array of Cluster objects: the output of k-means.
     private Cluster[] mClusters;
+    // Inertia of the output, or NaN before a successful run.
+    private double mInertia = Double.NaN;
+    // Number of restarts run by run(), and how far behind the best
+    // finished restart a restart may fall before it is abandoned.
+    private int mNumRestarts = 1;
+    private double mRestartAbandonMargin = 0.2;
+    // For a restart, the clustering that runs it; null otherwise.
+    private RobustConcurrentKMeans mRestartParent;
+    // Lowest inertia of the restarts finished so far.
+    private volatile double mBestRestartInertia;
+    // The error a restart failed with.
+    private Throwable mError;
+    // The measurements of the current or last run, appended to by every
+    // iteration, and the snapshot of them getMetrics() last built, or null
+    // when it is out of date.  Guarded by mIterationMetrics.
+    private final List<IterationMetrics> mIterationMetrics = new ArrayList<>();
+    private KMeansMetrics mMetrics;
+    private long mCacheBytes, mElapsedNanos;
+    private long mRunStart, mSeedingNanos;
 
     /**
      * Constructor
      *
-     * @param coordinates   two-dimensional array containing the coordinates to be clustered.
+     * @param coordinates   the coordinates to be clustered.
      * @param k             the number of desired clusters.
      * @param maxIterations the maximum number of clustering iterations.
      * @param randomSeed    seed used with the random number generator.
      * @param threadCount   the number of threads to be used for computing time-consuming steps.
      */
-    private RobustConcurrentKMeans(float[][] coordinates, int k, int maxIterations,
+    private RobustConcurrentKMeans(CoordinateStore coordinates, int k, int maxIterations,
                                    long randomSeed, int threadCount) {
         mCoordinates = coordinates;
         // Can't have more clusters than coordinates.
-        mK = Math.min(k, mCoordinates.length);
+        mK = Math.min(k, mCoordinates.numRows());
         mMaxIterations = maxIterations;
         mRandomSeed = randomSeed;
         mThreadCount = threadCount;
     }
 
+    /**
+     * Constructor for one of the restarts of a clustering, with the same
+     * coordinates and settings but its own seed.
+     *
+     * @param parent     the clustering that runs the restarts.
+     * @param randomSeed seed used with the random number generator.
+     */
+    private RobustConcurrentKMeans(RobustConcurrentKMeans parent, long randomSeed) {
+        this(parent.mCoordinates, parent.mK, parent.mMaxIterations, randomSeed, parent.mThreadCount);
+        useKMedians = parent.useKMedians;
+        medianSkip = parent.medianSkip;
+        medianRankError = parent.medianRankError;
+        useTriangleInequality = parent.useTriangleInequality;
+        mDistanceStrategy = parent.mDistanceStrategy;
+        useBlockedDistances = parent.useBlockedDistances;
+        useScalableSeeding = parent.useScalableSeeding;
+        movedFractionTolerance = parent.movedFractionTolerance;
+        inertiaTolerance = parent.inertiaTolerance;
+        centerShiftTolerance = parent.centerShiftTolerance;
+        mExecutor = parent.mExecutor;
+        mPlannedStrategy = parent.mPlannedStrategy;
+        mPlannedTiles = parent.mPlannedTiles;
+        mRestartParent = parent;
+    }
+
     /**
      * Constructor that uses the return from
      * Runtime.getRuntime().availableProcessors() as the number
@@ -94,21 +172,198 @@ public class RobustConcurrentKMeans implements KMeans {
      */
     public RobustConcurrentKMeans(float[][] coordinates, int k, int maxIterations,
                                   long randomSeed) {
+        this(CoordinateStore.of(coordinates), k, maxIterations, randomSeed);
+    }
+
+    /**
+     * Constructor that clusters the rows of a CoordinateStore, using the
+     * return from Runtime.getRuntime().availableProcessors() as the number
+     * of threads for time-consuming steps.
+     *
+     * @param coordinates   the coordinates to be clustered.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed    seed used with the random number generator.
+     */
+    public RobustConcurrentKMeans(CoordinateStore coordinates, int k, int maxIterations,
+                                  long randomSeed) {
         this(coordinates, k, maxIterations, randomSeed,
                 Runtime.getRuntime().availableProcessors());
     }
 
+    /**
+     * Enables or disables the accelerated assignment mode.  When enabled,
+     * each coordinate keeps an upper bound on the distance to its cluster
+     * and a lower bound on the distance to all other clusters, and distances
+     * are only evaluated when the bounds cannot rule out a move.  Rows or
+     * centers containing NaNs fall back to exact computation, since the
+     * rescaling in the robust metrics breaks the triangle inequality.
+     *
+     * @param useTriangleInequality true to enable bound-based pruning.
+     */
+    public void setUseTriangleInequality(boolean useTriangleInequality) {
+        this.useTriangleInequality = useTriangleInequality;
+    }
+
+    /**
+     * Sets how distances are computed during each iteration.  The fused
+     * strategy does not allocate the number of coordinates X number of
+     * clusters distance cache and needs one pass per iteration instead
+     * of two, but recomputes the distances to centers that did not move.
+     * Ignored when triangle inequality pruning is enabled, which never
+     * uses the cache.  When the cache would not fit in the heap, the run
+     * falls back to the tiled strategy for k-means over rows with at least
+     * 128 dimensions, otherwise to the fused strategy, and tells the
+     * listeners.
+     *
+     * @param strategy the distance strategy.
+     */
+    public void setDistanceStrategy(DistanceStrategy strategy) {
+        mDistanceStrategy = strategy;
+    }
+
+    /**
+     * Enables or disables the tiled distance engine for k-means.  Blocks of
+     * rows are compared with all centers at once as
+     * ||x||^2 + ||c||^2 - 2 x.c, which pays off for dense rows with
+     * hundreds or thousands of dimensions.  Pairs involving NaNs are
+     * recomputed exactly.  Ignored for k-medians and when triangle
+     * inequality pruning is enabled.  Enabling it with the cached strategy
+     * fills the cache by tiles; DistanceStrategy.TILED uses the engine
+     * without the cache.
+     *
+     * @param useBlockedDistances true to enable the tiled engine.
+     */
+    public void setUseBlockedDistances(boolean useBlockedDistances) {
+        this.useBlockedDistances = useBlockedDistances;
+    }
+
+    /**
+     * Sets the executor that runs the time-consuming steps.  By default
+     * they run on ClusteringExecutor.getDefault(), which is shared by all
+     * clusterings in the JVM.
+     *
+     * @param executor the executor, or null for the default one.
+     */
+    public void setExecutor(ClusteringExecutor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Chooses the initial centers with scalable k-means++ (k-means||)
+     * instead of farthest-point seeding.  Farthest-point seeding makes one
+     * pass over the coordinates per center; k-means|| makes a fixed number
+     * of passes, which is much cheaper for large k, and is less drawn to
+     * outliers.
+     *
+     * @param useScalableSeeding true to seed with k-means||.
+     */
+    public void setUseScalableSeeding(boolean useScalableSeeding) {
+        this.useScalableSeeding = useScalableSeeding;
+    }
+
+    /**
+     * Stops the iterations once no more than this fraction of the
+     * coordinates changed clusters in an iteration, instead of waiting
+     * for none to move.  On noisy data a few coordinates on the cluster
+     * boundaries can flip back and forth until the maximum number of
+     * iterations.
+     *
+     * @param tolerance the fraction of moved coordinates, e.g. 0.001;
+     *                  0 (the default) to stop only when none move.
+     */
+    public void setMovedFractionTolerance(double tolerance) {
+        if (!(tolerance >= 0 && tolerance < 1)) {
+            throw new IllegalArgumentException("tolerance must be in [0, 1): " + tolerance);
+        }
+        movedFractionTolerance = tolerance;
+    }
+
+    /**
+     * Stops the iterations once an iteration changes the inertia by no
+     * more than this fraction.  The inertia comes with the assignments at
+     * no extra cost, except with triangle inequality pruning, where it
+     * takes one more distance per coordinate and iteration.
+     *
+     * @param tolerance the relative improvement, e.g. 1e-4; 0 (the
+     *                  default) to disable the rule.
+     */
+    public void setInertiaTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must be >= 0: " + tolerance);
+        }
+        inertiaTolerance = tolerance;
+    }
+
+    /**
+     * Stops the iterations once no center moved further than this
+     * distance when the centers were last updated.  Distances are
+     * measured with the clustering's metric.
+     *
+     * @param tolerance the distance; 0 (the default) to disable the rule.
+     */
+    public void setCenterShiftTolerance(double tolerance) {
+        if (!(tolerance >= 0)) {
+            throw new IllegalArgumentException("tolerance must be >= 0: " + tolerance);
+        }
+        centerShiftTolerance = tolerance;
+    }
+
+    /**
+     * Sets the number of times the clustering is run, each time seeded
+     * differently.  The restarts run concurrently on the executor, sharing
+     * the coordinates and its threads, and the clusters of the restart
+     * with the lowest inertia are kept.  Each restart running at the same
+     * time has its own cluster assignments and, with the cached distance
+     * strategy, its own distance cache, so the fused strategy is better
+     * suited to large inputs.
+     *
+     * @param numRestarts the number of restarts, 1 by default.
+     */
+    public void setNumRestarts(int numRestarts) {
+        if (numRestarts < 1) {
+            throw new IllegalArgumentException("number of restarts < 1: " + numRestarts);
+        }
+        mNumRestarts = numRestarts;
+    }
+
+    /**
+     * Sets how far a restart may fall behind before it is abandoned.
+     * After a few iterations, a restart whose inertia exceeds that of the
+     * best finished restart by more than this fraction stops without
+     * results.  Since a restart only finishes at its own pace, which
+     * restarts are abandoned may depend on the thread timing.  Restarts
+     * using triangle inequality pruning only know their inertia at the
+     * end, and are never abandoned unless an inertia tolerance is set.
+     *
+     * @param margin the tolerated fraction, 0.2 by default;
+     *               Double.POSITIVE_INFINITY to run every restart to the end.
+     */
+    public void setRestartAbandonMargin(double margin) {
+        if (!(margin >= 0)) {
+            throw new IllegalArgumentException("margin must be >= 0: " + margin);
+        }
+        mRestartAbandonMargin = margin;
+    }
+
+    /**
+     * Sets whether listeners are notified on a separate thread, so that
+     * a slow listener does not hold up the iterations.  The notifications
+     * keep their order, and run() returns once all of them are delivered.
+     *
+     * @param asynchronous true to notify the listeners asynchronously.
+     */
+    public void setAsynchronousListeners(boolean asynchronous) {
+        mListeners.setAsynchronous(asynchronous);
+    }
+
     /**
      * Adds a KMeansListener to be notified of significant happenings.
      *
      * @param l the listener to be added.
      */
     public void addKMeansListener(KMeansListener l) {
-        synchronized (mListeners) {
-            if (!mListeners.contains(l)) {
-                mListeners.add(l);
-            }
-        }
+        mListeners.add(l);
     }
 
     /**
@@ -117,22 +372,14 @@ public class RobustConcurrentKMeans implements KMeans {
      * @param l the listener to be removed.
      */
     public void removeKMeansListener(KMeansListener l) {
-        synchronized (mListeners) {
-            mListeners.remove(l);
-        }
+        mListeners.remove(l);
     }
 
     /**
      * Posts a message to registered KMeansListeners.
      */
     private void postKMeansMessage(String message) {
-        if (mListeners.size() > 0) {
-            synchronized (mListeners) {
-                for (KMeansListener mListener : mListeners) {
-                    mListener.kmeansMessage(message);
-                }
-            }
-        }
+        mListeners.postMessage(message);
     }
 
     /**
@@ -141,13 +388,7 @@ public class RobustConcurrentKMeans implements KMeans {
      * @param clusters the output of clustering.
      */
     private void postKMeansComplete(Cluster[] clusters) {
-        if (mListeners.size() > 0) {
-            synchronized (mListeners) {
-                for (KMeansListener mListener : mListeners) {
-                    mListener.kmeansComplete(clusters);
-                }
-            }
-        }
+        mListeners.postComplete(clusters);
     }
 
     /**
@@ -155,13 +396,7 @@ public class RobustConcurrentKMeans implements KMeans {
      * a Throwable caught in the run method.
      */
     private void postKMeansError(Throwable err) {
-        if (mListeners.size() > 0) {
-            synchronized (mListeners) {
-                for (KMeansListener mListener : mListeners) {
-                    mListener.kmeansError(err);
-                }
-            }
-        }
+        mListeners.postError(err);
     }
 
     /**
@@ -174,44 +409,126 @@ public class RobustConcurrentKMeans implements KMeans {
         return mClusters;
     }
 
+    /**
+     * Get a snapshot of the progress of the current or last run.  May be
+     * called from any thread while the clustering runs.  After restarts,
+     * describes the restart whose clusters were kept.
+     *
+     * @return the metrics, or null before the first iteration.
+     */
+    public KMeansMetrics getMetrics() {
+        synchronized (mIterationMetrics) {
+            if (mMetrics == null && !mIterationMetrics.isEmpty()) {
+                mMetrics = new KMeansMetrics(mSeedingNanos, mCacheBytes, mElapsedNanos,
+                        new ArrayList<>(mIterationMetrics));
+            }
+            return mMetrics;
+        }
+    }
+
+    /**
+     * Get the inertia of the clusters computed by the algorithm: the sum
+     * over the coordinates of the squared robust euclidean distance to
+     * their cluster's center, or for k-medians of the robust manhattan
+     * distance.  Rows that are entirely NaN do not contribute.
+     *
+     * @return the inertia, or NaN if clustering has not completed
+     * successfully.
+     */
+    public double getInertia() {
+        return mInertia;
+    }
+
     /**
      * Run the clustering algorithm.
      */
     public void run() {
 
+        if (mNumRestarts > 1) {
+            runRestarts();
+            return;
+        }
+
         try {
             postKMeansMessage("K-Means clustering started");
+            mRunStart = System.nanoTime();
+            synchronized (mIterationMetrics) {
+                mIterationMetrics.clear();
+                mMetrics = null;
+            }
+
+            ClusteringExecutor executor = mExecutor != null ? mExecutor : ClusteringExecutor.getDefault();
+            int threadCount = mExecutor != null ? mExecutor.getParallelism() : mThreadCount;
+            if (mRestartParent == null) {
+                mPlannedStrategy = planDistanceStrategy(threadCount, 1);
+            }
+            mContext = new ClusteringContext(mCoordinates, useKMedians, medianSkip, executor);
+            mContext.useBlockedDistances = mPlannedTiles;
+            mContext.mCentersFromSums = new int[mK];
+            mContext.mCentersToRecompute = new int[mK];
+            if (useKMedians && medianRankError > 0) {
+                // Dvoretzky-Kiefer-Wolfowitz bound with 99% confidence.
+                mContext.mMedianSampleSize = (int) Math.ceil(
+                        Math.log(2 / 0.01) / (2 * medianRankError * medianRankError));
+                mContext.mMedianRandom = new Random(mRandomSeed);
+            }
 
             // Randomly initialize the cluster centers creating the
             // array mProtoClusters.
             initCenters();
+            mSeedingNanos = System.nanoTime() - mRunStart;
             postKMeansMessage("... centers initialized");
 
             // Instantiate the subtask manager.
-            mSubtaskManager = new SubtaskManager(mThreadCount, useKMedians);
+            mSubtaskManager = new SubtaskManager(mContext, threadCount);
+
+            if (useTriangleInequality || centerShiftTolerance > 0) {
+                mContext.mCenterDrift = new float[mK];
+                mContext.mPreviousCenters = new float[mK][mCoordinates.numDimensions()];
+            }
+            if (useTriangleInequality) {
+                initBounds();
+                postKMeansMessage("... triangle inequality pruning enabled");
+            }
 
             // Post a message about the state of concurrent subprocessing.
-            if (mThreadCount > 1) {
+            if (threadCount > 1) {
                 postKMeansMessage("... concurrent processing mode with "
-                        + mThreadCount + " subtask threads");
+                        + threadCount + " subtask threads");
             } else {
                 postKMeansMessage("... non-concurrent processing mode");
             }
 
-            // Perform the initial computation of distances.
-            computeDistances();
+            long start = System.nanoTime();
+            if (usesDistanceCache()) {
+                // Perform the initial computation of distances.
+                computeDistances();
+            } else if (!useTriangleInequality) {
+                mContext.mBestDistances = new float[mCoordinates.numRows()];
+                postKMeansMessage(mContext.useBlockedDistances ? "... tiled distance and assignment mode"
+                        : "... fused distance and assignment mode");
+            }
+            long distancesDone = System.nanoTime();
 
             // Make the initial cluster assignments.
-            makeAssignments();
+            int moves = makeAssignments();
+            double inertia = currentInertia();
+            recordIteration(0, moves, inertia, 0, distancesDone - start, System.nanoTime() - distancesDone);
 
-            // Number of moves in the iteration and the iteration counter.
-            int moves, it = 0;
+            // The iteration counter.
+            int it = 0;
+            double previousInertia, shift;
 
             // Main Loop:
             //
-            // Two stopping criteria:
-            // - no moves in makeAssignments
-            //   (moves == 0)
+            // Stopping criteria:
+            // - no moves in makeAssignments, or no more than the tolerated
+            //   fraction of the coordinates
+            //   (moves <= movedFractionTolerance * N)
+            // OR
+            // - the inertia improved by no more than the tolerated fraction
+            // OR
+            // - no center moved further than the tolerated distance
             // OR
             // - the maximum number of iterations has been reached
             //   (it == mMaxIterations)
@@ -219,37 +536,228 @@ public class RobustConcurrentKMeans implements KMeans {
             do {
 
                 // Compute the centers of the clusters that need updating.
-                computeCenters();
+                start = System.nanoTime();
+                shift = computeCenters();
+                long centersDone = System.nanoTime();
 
-                // Compute the stored distances between the updated clusters and the
-                // coordinates.
-                computeDistances();
+                if (useTriangleInequality) {
+                    // Refresh the center separations used to prune the
+                    // distance evaluations.
+                    computeCenterSeparations();
+                } else if (usesDistanceCache()) {
+                    // Compute the stored distances between the updated clusters and the
+                    // coordinates.
+                    computeDistances();
+                }
+                distancesDone = System.nanoTime();
 
                 // Make this iteration's assignments.
                 moves = makeAssignments();
+                previousInertia = inertia;
+                inertia = currentInertia();
 
                 it++;
 
+                recordIteration(it, moves, inertia, centersDone - start, distancesDone - centersDone,
+                        System.nanoTime() - distancesDone);
                 postKMeansMessage("... iteration " + it + " moves = " + moves);
 
-            } while (moves > 0 && it < mMaxIterations);
+                if (mRestartParent != null && it >= ABANDON_MIN_ITERATIONS
+                        && mRestartParent.isHopeless(inertia)) {
+                    postKMeansMessage("... abandoned");
+                    return;
+                }
+
+            } while (!hasConverged(moves, previousInertia, inertia, shift) && it < mMaxIterations);
+
+            if (useTriangleInequality && inertiaTolerance == 0) {
+                // The assignment pass only bounded the distances of the
+                // rows that stayed put.
+                mSubtaskManager.computeInertia();
+            }
+            mInertia = mSubtaskManager.inertia();
 
             // Transform the array of ProtoClusters to an array
             // of the simpler class Cluster.
             mClusters = generateFinalClusters();
 
+            MetricsRecorder.DEFAULT.recordRun(mCoordinates.numRows(), mCoordinates.numDimensions(), mK,
+                    getMetrics(), mInertia);
             postKMeansComplete(mClusters);
 
         } catch (Throwable t) {
 
+            mError = t;
             postKMeansError(t);
 
         } finally {
 
             // Clean up temporary data structures used during the algorithm.
             cleanup();
+            mListeners.flush();
+
+        }
+    }
+
+    /**
+     * Run the restarts concurrently and keep the clusters of the one
+     * with the lowest inertia.  Restart 0 uses the clustering's own seed,
+     * so it gives the same result as a single run; ties go to the lowest
+     * restart.
+     */
+    private void runRestarts() {
+
+        try {
+            postKMeansMessage("K-Means clustering started with " + mNumRestarts + " restarts");
+
+            ClusteringExecutor executor = mExecutor != null ? mExecutor : ClusteringExecutor.getDefault();
+            int threadCount = mExecutor != null ? mExecutor.getParallelism() : mThreadCount;
+            mPlannedStrategy = planDistanceStrategy(threadCount,
+                    Math.min(mNumRestarts, executor.getParallelism()));
+            mBestRestartInertia = Double.POSITIVE_INFINITY;
+            Random random = new Random(mRandomSeed);
+            List<Callable<RobustConcurrentKMeans>> restarts = new ArrayList<>(mNumRestarts);
+            for (int r = 0; r < mNumRestarts; r++) {
+                final RobustConcurrentKMeans restart = new RobustConcurrentKMeans(this,
+                        r == 0 ? mRandomSeed : random.nextLong());
+                final int index = r;
+                restarts.add(() -> {
+                    restart.run();
+                    if (restart.mClusters != null) {
+                        restartFinished(restart.mInertia);
+                        postKMeansMessage("... restart " + index + " inertia = " + restart.mInertia);
+                    } else if (restart.mError == null) {
+                        postKMeansMessage("... restart " + index + " abandoned");
+                    }
+                    return restart;
+                });
+            }
+
+            RobustConcurrentKMeans best = null;
+            for (RobustConcurrentKMeans restart : executor.invokeAll(restarts)) {
+                if (restart.mError != null) {
+                    throw restart.mError;
+                }
+                if (restart.mClusters != null && (best == null || restart.mInertia < best.mInertia)) {
+                    best = restart;
+                }
+            }
+            if (best == null) {
+                throw new IllegalStateException("every restart was abandoned");
+            }
+
+            mClusters = best.mClusters;
+            mInertia = best.mInertia;
+            KMeansMetrics metrics = best.getMetrics();
+            synchronized (mIterationMetrics) {
+                mIterationMetrics.clear();
+                mMetrics = metrics;
+            }
+
+            postKMeansComplete(mClusters);
+
+        } catch (Throwable t) {
+
+            postKMeansError(t);
+
+        } finally {
+
+            mListeners.flush();
+
+        }
+    }
+
+    /**
+     * Record the inertia of a finished restart.
+     */
+    private synchronized void restartFinished(double inertia) {
+        if (inertia < mBestRestartInertia) {
+            mBestRestartInertia = inertia;
+        }
+    }
+
+    /**
+     * Whether a restart with the given inertia has fallen so far behind
+     * the best finished restart that it should be abandoned.  An unknown
+     * (NaN) inertia never is.
+     */
+    private boolean isHopeless(double inertia) {
+        return inertia > mBestRestartInertia * (1 + mRestartAbandonMargin);
+    }
+
+    /**
+     * Returns the inertia of the last assignment pass.  With triangle
+     * inequality pruning it takes an extra pass, which is only made for
+     * the inertia tolerance; NaN is returned otherwise.
+     */
+    private double currentInertia() {
+        if (useTriangleInequality) {
+            if (inertiaTolerance == 0) {
+                return Double.NaN;
+            }
+            mSubtaskManager.computeInertia();
+        }
+        return mSubtaskManager.inertia();
+    }
+
+    /**
+     * Record the measurements of an iteration for the next metrics
+     * snapshot and the profiler, and notify the listeners.
+     */
+    private void recordIteration(int iteration, int moves, double inertia, long centerNanos,
+                                 long distanceNanos, long assignmentNanos) {
+        int activeClusters = 0;
+        for (ProtoCluster cluster : mContext.mProtoClusters) {
+            if (cluster.getConsiderForAssignment()) {
+                activeClusters++;
+            }
+        }
+        IterationMetrics metrics = new IterationMetrics(iteration, moves, inertia, activeClusters,
+                centerNanos, distanceNanos, assignmentNanos, mSubtaskManager.loadImbalance());
+        long cacheBytes = cacheBytes();
+        synchronized (mIterationMetrics) {
+            mIterationMetrics.add(metrics);
+            mCacheBytes = cacheBytes;
+            mElapsedNanos = System.nanoTime() - mRunStart;
+            mMetrics = null;
+        }
+        MetricsRecorder.DEFAULT.recordIteration(metrics);
+        mListeners.postIteration(metrics);
+    }
+
+    /**
+     * Returns the number of bytes allocated for the distance cache, the
+     * nearest distances and the bounds.
+     */
+    private long cacheBytes() {
+        long numCoords = mCoordinates.numRows();
+        long bytes = 0;
+        if (mContext.mDistanceCache != null) {
+            bytes += 4L * numCoords * mContext.mProtoClusters.length;
+        }
+        if (mContext.mBestDistances != null) {
+            bytes += 4L * numCoords;
+        }
+        if (mContext.mUpperBounds != null) {
+            bytes += 8L * numCoords;
+        }
+        return bytes;
+    }
 
+    /**
+     * Whether an iteration with the given number of moves, inertia and
+     * largest center shift meets one of the stopping rules.
+     */
+    private boolean hasConverged(int moves, double previousInertia, double inertia, double shift) {
+        if (moves <= movedFractionTolerance * mCoordinates.numRows()) {
+            return true;
+        }
+        // The robust metrics rescale partial rows, so the inertia is not
+        // bound to decrease, and may rise while centers lose their NaNs.
+        if (inertiaTolerance > 0 && Math.abs(previousInertia - inertia) <= inertiaTolerance * previousInertia) {
+            return true;
         }
+        return centerShiftTolerance > 0 && shift <= centerShiftTolerance;
     }
 
     /**
@@ -259,48 +767,80 @@ public class RobustConcurrentKMeans implements KMeans {
 
         Random random = new Random(mRandomSeed);
 
-        int coordCount = mCoordinates.length;
+        int coordCount = mCoordinates.numRows();
 
-        // The array mClusterAssignments is used only to keep track of the cluster
-        // membership for each coordinate.  The method makeAssignments() uses it
-        // to keep track of the number of moves.
-        if (mClusterAssignments == null) {
-            mClusterAssignments = new int[coordCount];
-            // Initialize to -1 to indicate that they haven't been assigned yet.
-            Arrays.fill(mClusterAssignments, -1);
+        SmartInitialization initialization = new SmartInitialization(mCoordinates, mK,
+                random.nextInt(coordCount), useKMedians);
+        initialization.setExecutor(mContext.mExecutor);
+        int[] indices;
+        if (useScalableSeeding) {
+            indices = initialization.getScalableClusterInitialization(SEEDING_ROUNDS,
+                    SEEDING_OVERSAMPLING, random.nextLong());
+        } else {
+            indices = initialization.getSmartClusterInitialization();
         }
-
-
-        int[] indices = new SmartInitialization(mCoordinates, mK,
-                random.nextInt(coordCount), useKMedians).getSmartClusterInitialization();
-        mProtoClusters = new ProtoCluster[mK];
+        ProtoCluster[] protoClusters = new ProtoCluster[mK];
         for (int i = 0; i < mK; i++) {
             int coordIndex = indices[i];
-            mProtoClusters[i] = new ProtoCluster(mCoordinates[coordIndex], coordIndex);
-            mClusterAssignments[indices[i]] = i;
+            protoClusters[i] = new ProtoCluster(mContext, mCoordinates.copyRow(coordIndex));
+            mContext.mClusterAssignments[indices[i]] = i;
         }
+        mContext.mProtoClusters = protoClusters;
     }
 
     /**
      * Recompute the centers of the protoclusters with
      * update flags set to true.
+     *
+     * @return the largest distance a center moved, or 0 if the center
+     * drifts are not tracked.
      */
-    private void computeCenters() {
+    private float computeCenters() {
+
+        ClusteringContext ctx = mContext;
+        ProtoCluster[] protoClusters = ctx.mProtoClusters;
+        boolean trackDrift = ctx.mCenterDrift != null;
+        if (trackDrift) {
+            Arrays.fill(ctx.mCenterDrift, 0f);
+        }
 
-        // Sets the update flags of the protoclusters that haven't been deleted and
-        // whose memberships have changed in the iteration just completed.
+        // k-means centers are updated from their running sums, after moving
+        // the coordinates that changed clusters between the sums, unless so
+        // many moved that summing the members again is cheaper, or it is
+        // time for the periodic full recompute.
+        // k-medians centers are always recomputed.
+        boolean recomputeAll = true;
+        if (!useKMedians) {
+            long moves = mSubtaskManager.numberOfMoves();
+            recomputeAll = ++ctx.mCenterUpdates % FULL_RECOMPUTE_INTERVAL == 0
+                    || 2 * moves > mCoordinates.numRows();
+        }
+        ctx.mApplyMoves = !recomputeAll;
+        ctx.mNumCentersFromSums = 0;
+        ctx.mNumCentersToRecompute = 0;
+
+        // The update flags of the protoclusters were set when the
+        // membership was rebuilt, for those whose membership changed in
+        // the iteration just completed.
         //
-        for (int q = 0; q < mProtoClusters.length; q++) {
-            ProtoCluster cluster = mProtoClusters[q];
+        for (int q = 0; q < protoClusters.length; q++) {
+            ProtoCluster cluster = protoClusters[q];
             if (cluster.getConsiderForAssignment()) {
                 if (cluster.isNotEmpty()) {
-                    // This sets the protocluster's update flag to
-                    // true only if its membership changed in last call
-                    // to makeAssignments().
-                    cluster.setUpdateFlag();
                     // If the update flag was set, update the center.
                     if (cluster.needsUpdate()) {
-                        cluster.updateCenter(mCoordinates, useKMedians, medianSkip);
+                        if (trackDrift) {
+                            System.arraycopy(cluster.getCenter(), 0, ctx.mPreviousCenters[q], 0, ctx.mPreviousCenters[q].length);
+                        }
+                        if (!recomputeAll && cluster.hasValidSums()) {
+                            ctx.mCentersFromSums[ctx.mNumCentersFromSums++] = q;
+                        } else {
+                            if (ctx.mMedianSampleSize > 0) {
+                                cluster.sampleMembers(ctx.mMedianSampleSize, ctx.mMedianRandom);
+                            }
+                            cluster.invalidateSums();
+                            ctx.mCentersToRecompute[ctx.mNumCentersToRecompute++] = q;
+                        }
                     }
                 } else {
                     // When a cluster loses all of its members, it
@@ -310,6 +850,139 @@ public class RobustConcurrentKMeans implements KMeans {
                 }
             }
         }
+
+        // The listed centers are updated in parallel.
+        if (useKMedians) {
+            mSubtaskManager.updateMedians();
+        } else {
+            mSubtaskManager.updateCenters();
+        }
+
+        float maxDrift = 0f;
+        for (int q = 0; q < protoClusters.length; q++) {
+            ProtoCluster cluster = protoClusters[q];
+            if (cluster.getConsiderForAssignment() && cluster.needsUpdate()) {
+                cluster.refreshCenterMask();
+                if (trackDrift) {
+                    ctx.mCenterDrift[q] = Worker.distance(ctx.mPreviousCenters[q], cluster.getCenter(), useKMedians);
+                    maxDrift = Math.max(maxDrift, ctx.mCenterDrift[q]);
+                }
+            }
+        }
+        return maxDrift;
+    }
+
+    /**
+     * Whether this run keeps the distance cache between iterations.
+     */
+    private boolean usesDistanceCache() {
+        return !useTriangleInequality && mPlannedStrategy == DistanceStrategy.CACHED;
+    }
+
+    /**
+     * Choose the distance strategy from the heap available before the
+     * run allocates anything.  The distance cache is given up for the
+     * tiled or fused strategy when it does not fit, and the decision is
+     * reported to the listeners.
+     *
+     * @param threadCount    the number of Workers of each run.
+     * @param concurrentRuns the number of runs that may hold their
+     *                       memory at the same time.
+     */
+    private DistanceStrategy planDistanceStrategy(int threadCount, int concurrentRuns) {
+        int numCoords = mCoordinates.numRows();
+        MemoryPlanner planner = new MemoryPlanner(numCoords, mCoordinates.numDimensions(), mK,
+                Math.max(1, Math.min(threadCount, numCoords)), useKMedians, useTriangleInequality,
+                useBlockedDistances);
+        long available = MemoryPlanner.availableBytes();
+        DistanceStrategy strategy = planner.choose(mDistanceStrategy, concurrentRuns, available);
+        if (mDistanceStrategy == DistanceStrategy.CACHED && strategy != DistanceStrategy.CACHED
+                && !useTriangleInequality) {
+            postKMeansMessage("... the distance cache needs " + megabytes(concurrentRuns
+                    * planner.estimateBytes(mDistanceStrategy)) + " MB but " + megabytes(available)
+                    + " MB of heap are available; using "
+                    + (strategy == DistanceStrategy.TILED ? "tiled" : "fused") + " distances");
+        }
+        mPlannedTiles = planner.usesTiles(strategy);
+        long required = concurrentRuns * planner.estimateBytes(strategy);
+        if (!planner.fits(strategy, concurrentRuns, available)) {
+            // The heap in use may be mostly garbage, so the run goes on.
+            postKMeansMessage("... warning: about " + megabytes(required) + " MB are needed but only "
+                    + megabytes(available) + " MB of heap are available; OutOfCoreKMeans over a "
+                    + "MappedCoordinateStore needs less");
+        } else {
+            postKMeansMessage("... memory plan: " + (useTriangleInequality ? "bounds" : strategy.toString())
+                    + ", about " + megabytes(required) + " MB of " + megabytes(available) + " MB available");
+        }
+        return strategy;
+    }
+
+    private static long megabytes(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
+    }
+
+    /**
+     * Allocate the bounds used by the accelerated assignment mode.
+     */
+    private void initBounds() {
+        int numCoords = mCoordinates.numRows();
+        mContext.mUpperBounds = new float[numCoords];
+        mContext.mLowerBounds = new float[numCoords];
+        mContext.mHalfCenterSeparation = new float[mK];
+        // Unassigned rows start with a full scan, while the seed rows
+        // are at distance zero from their own centers.
+        computeCenterSeparations();
+    }
+
+    /**
+     * Find the largest center drifts and half the distance from each
+     * center to its closest neighbour.  The bounds are only valid if
+     * no center in contention has missing values.
+     */
+    private void computeCenterSeparations() {
+        ClusteringContext ctx = mContext;
+        ProtoCluster[] protoClusters = ctx.mProtoClusters;
+        int numClusters = protoClusters.length;
+
+        ctx.mBoundsValid = true;
+        for (int c = 0; c < numClusters; c++) {
+            ProtoCluster cluster = protoClusters[c];
+            if (cluster.getConsiderForAssignment() && !cluster.getCenterMask().isDense(0)) {
+                ctx.mBoundsValid = false;
+                break;
+            }
+        }
+        if (!ctx.mBoundsValid) {
+            return;
+        }
+
+        ctx.mMaxDrift = 0f;
+        ctx.mSecondMaxDrift = 0f;
+        ctx.mMaxDriftCluster = -1;
+        for (int c = 0; c < numClusters; c++) {
+            if (protoClusters[c].getConsiderForAssignment()) {
+                float drift = ctx.mCenterDrift[c];
+                if (drift > ctx.mMaxDrift) {
+                    ctx.mSecondMaxDrift = ctx.mMaxDrift;
+                    ctx.mMaxDrift = drift;
+                    ctx.mMaxDriftCluster = c;
+                } else if (drift > ctx.mSecondMaxDrift) {
+                    ctx.mSecondMaxDrift = drift;
+                }
+            }
+        }
+
+        Arrays.fill(ctx.mHalfCenterSeparation, Float.MAX_VALUE);
+        for (int c = 0; c < numClusters; c++) {
+            if (!protoClusters[c].getConsiderForAssignment()) continue;
+            for (int d = c + 1; d < numClusters; d++) {
+                if (!protoClusters[d].getConsiderForAssignment()) continue;
+                float half = Worker.distance(protoClusters[c].getCenter(),
+                        protoClusters[d].getCenter(), useKMedians) / 2;
+                ctx.mHalfCenterSeparation[c] = Math.min(ctx.mHalfCenterSeparation[c], half);
+                ctx.mHalfCenterSeparation[d] = Math.min(ctx.mHalfCenterSeparation[d], half);
+            }
+        }
     }
 
     /**
@@ -318,23 +991,16 @@ public class RobustConcurrentKMeans implements KMeans {
      * need to be computed are computed.  This is determined by
      * distanceChi2 update flags in the protocluster objects.
      */
-    private void computeDistances() throws InsufficientMemoryException {
-
-        if (mDistanceCache == null) {
-            int numCoords = mCoordinates.length;
-            int numClusters = mProtoClusters.length;
-            // Explicit garbage collection to reduce likelihood of insufficient
-            // memory.
-            System.gc();
-            // Ensure there is enough memory available for the distances.
-            // Throw an exception if not.
-            long memRequired = 8L * numCoords * numClusters;
-            if (Runtime.getRuntime().freeMemory() < memRequired) {
-                throw new InsufficientMemoryException("Not enough memory for compute distances");
-            }
+    private void computeDistances() {
+
+        if (mContext.mDistanceCache == null) {
             // Instantiate an array to hold the distances between coordinates
-            // and cluster centers
-            mDistanceCache = new float[numCoords][numClusters];
+            // and cluster centers.  The memory plan made sure it fits.
+            mContext.mDistanceCache = new float[mCoordinates.numRows()][mContext.mProtoClusters.length];
+        }
+
+        if (mContext.useBlockedDistances) {
+            BlockedDistances.packCenters(mContext);
         }
 
         // Bulk of the work is delegated to the
@@ -349,18 +1015,17 @@ public class RobustConcurrentKMeans implements KMeans {
      */
     private int makeAssignments() {
 
-        // Checkpoint the clusters, so we'll be able to tell
-        // which one have changed after all the assignments have been
-        // made.
-        for (int q = 0; q < mProtoClusters.length; q++) {
-            ProtoCluster mProtoCluster = mProtoClusters[q];
-            if (mProtoCluster.getConsiderForAssignment()) {
-                mProtoCluster.checkPoint();
+        // Bulk of the work is delegated to the SubtaskManager.
+        if (useTriangleInequality) {
+            mSubtaskManager.makeAssignmentsWithBounds();
+        } else if (usesDistanceCache()) {
+            mSubtaskManager.makeAssignments();
+        } else {
+            if (mContext.useBlockedDistances) {
+                BlockedDistances.packCenters(mContext);
             }
+            mSubtaskManager.computeDistancesAndAssign();
         }
-
-        // Bulk of the work is delegated to the SubtaskManager.
-        mSubtaskManager.makeAssignments();
         // Get the number of moves from the SubtaskManager.
         return mSubtaskManager.numberOfMoves();
     }
@@ -372,13 +1037,14 @@ public class RobustConcurrentKMeans implements KMeans {
      */
     private Cluster[] generateFinalClusters() {
 
-        int numClusters = mProtoClusters.length;
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        int numClusters = protoClusters.length;
 
         // Convert the proto-clusters to the final Clusters.
         //
         // - accumulate in a list.
         List<Cluster> clusterList = new ArrayList<>(numClusters);
-        for (ProtoCluster pcluster : mProtoClusters) {
+        for (ProtoCluster pcluster : protoClusters) {
             if (pcluster.isNotEmpty()) {
                 Cluster cluster = new Cluster(pcluster.getMembership(), pcluster.getCenter());
                 clusterList.add(cluster);
@@ -396,12 +1062,7 @@ public class RobustConcurrentKMeans implements KMeans {
      * Clean up items used by the clustering algorithm that are no longer needed.
      */
     private void cleanup() {
-        mProtoClusters = null;
-        mDistanceCache = null;
-        mClusterAssignments = null;
-        if (mSubtaskManager != null) {
-            mSubtaskManager.shutdown();
-            mSubtaskManager = null;
-        }
+        mContext = null;
+        mSubtaskManager = null;
     }
 }
@@ -1,5 +1,7 @@
 package robust.concurrent.kmeans.clustering;
 
+import robust.concurrent.kmeans.data.CoordinateStore;
+
 public class RobustConcurrentKMedians extends RobustConcurrentKMeans {
     /**
      * Constructor that uses the return from
@@ -13,10 +15,43 @@ public class RobustConcurrentKMedians extends RobustConcurrentKMeans {
      */
     public RobustConcurrentKMedians(float[][] coordinates, int k, int maxIterations,
                                     long randomSeed, int medianSkip) {
+        this(CoordinateStore.of(coordinates), k, maxIterations, randomSeed, medianSkip);
+    }
+
+    /**
+     * Constructor that clusters the rows of a CoordinateStore.
+     *
+     * @param coordinates   the coordinates to be clustered.
+     * @param k             the number of desired clusters.
+     * @param maxIterations the maximum number of clustering iterations.
+     * @param randomSeed    seed used with the random number generator.
+     * @param medianSkip    stride used when sampling members for the median.
+     */
+    public RobustConcurrentKMedians(CoordinateStore coordinates, int k, int maxIterations,
+                                    long randomSeed, int medianSkip) {
         super(coordinates, k, maxIterations, randomSeed);
         useKMedians = true;
         if (medianSkip > 1) {
             super.medianSkip = medianSkip;
         }
     }
+
+    /**
+     * Approximates the medians of large clusters from a uniform random
+     * sample of their members, redrawn every iteration.  The sample is
+     * sized so that, with 99% probability, the rank of the approximate
+     * median among a dimension's values is within rankError * n of the
+     * true median's.  Clusters with no more members than the sample size
+     * get exact medians.  For large clusters the sample replaces
+     * medianSkip, which is biased when the rows are ordered.
+     *
+     * @param rankError the tolerated rank error as a fraction of the
+     *                  cluster size, e.g. 0.01; 0 for exact medians.
+     */
+    public void setMedianRankError(double rankError) {
+        if (rankError < 0 || rankError >= 0.5) {
+            throw new IllegalArgumentException("rank error must be in [0, 0.5): " + rankError);
+        }
+        medianRankError = rankError;
+    }
 }
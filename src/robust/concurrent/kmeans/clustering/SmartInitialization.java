@@ -24,29 +24,54 @@
 
 package robust.concurrent.kmeans.clustering;
 
+import robust.concurrent.kmeans.data.CoordinateStore;
+import robust.concurrent.kmeans.data.FlatCoordinateStore;
 import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
 import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
 import robust.concurrent.kmeans.metric.RobustManhattanDistance;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Picks the rows used as initial cluster centers.  Two methods are
+ * available: farthest-point seeding, which adds the row farthest from
+ * the centers chosen so far one center at a time, and scalable k-means++
+ * (k-means||, Bahmani et al. 2012), which oversamples candidates in a
+ * few parallel rounds and then reclusters the weighted candidates.
+ * Both run their passes over the rows on a ClusteringExecutor.
+ */
 public class SmartInitialization {
 
-    private final float[][] data;
+    // Rows handed out to a thread at a time.
+    private static final int CHUNK_SIZE = 1024;
+
+    private final CoordinateStore data;
     private final int numClusters;
     private final int[] bestIndices;
     private final float[] distFromClosestPoint;
     private final DistanceMetric metric;
+    private final boolean useKMedians;
+    // Candidate closest to each row; only tracked by k-means||.
+    private int[] closestCandidate;
+    private ClusteringExecutor executor = ClusteringExecutor.getDefault();
+    private UpdateTask[] tasks;
 
     public SmartInitialization(float[][] data, int numClusters, int initialID, boolean useKMedians) {
+        this(CoordinateStore.of(data), numClusters, initialID, useKMedians);
+    }
+
+    public SmartInitialization(CoordinateStore data, int numClusters, int initialID, boolean useKMedians) {
         this.data = data;
         this.numClusters = numClusters;
+        this.useKMedians = useKMedians;
         bestIndices = new int[numClusters];
         bestIndices[0] = initialID;
-        distFromClosestPoint = new float[data.length];
+        distFromClosestPoint = new float[data.numRows()];
         Arrays.fill(distFromClosestPoint, Float.MAX_VALUE);
         if (useKMedians) {
             metric = RobustManhattanDistance.SINGLETON;
@@ -55,50 +80,398 @@ public class SmartInitialization {
         }
     }
 
-    public int[] getSmartClusterInitialization() {
+    /**
+     * Seeds k-means centers by farthest-point initialization on a random
+     * sample of the rows held in memory, for coordinates too many to
+     * seed from directly.
+     *
+     * @param data        the coordinates.
+     * @param numClusters the number of centers.
+     * @param sampleSize  the number of rows sampled.
+     * @param random      source of the sample and of the first center.
+     * @param executor    runs the passes over the sample.
+     * @return copies of the rows chosen as centers.
+     */
+    static float[][] sampleCenters(CoordinateStore data, int numClusters, int sampleSize, Random random,
+                                   ClusteringExecutor executor) {
+        int numCoords = data.numRows();
+        int numDims = data.numDimensions();
+        sampleSize = Math.max(numClusters, Math.min(numCoords, sampleSize));
+        int[] sample = new int[sampleSize];
+        if (sampleSize == numCoords) {
+            for (int i = 0; i < sampleSize; i++) {
+                sample[i] = i;
+            }
+        } else {
+            // Reservoir sampling, then sorted so the rows are read in
+            // file order.
+            for (int i = 0; i < numCoords; i++) {
+                if (i < sampleSize) {
+                    sample[i] = i;
+                } else {
+                    int r = random.nextInt(i + 1);
+                    if (r < sampleSize) {
+                        sample[r] = i;
+                    }
+                }
+            }
+            Arrays.sort(sample);
+        }
+        float[] rows = new float[sampleSize * numDims];
+        for (int s = 0; s < sampleSize; s++) {
+            data.getRow(sample[s], rows, s * numDims);
+        }
+        SmartInitialization initialization = new SmartInitialization(
+                new FlatCoordinateStore(rows, sampleSize, numDims), numClusters, random.nextInt(sampleSize), false);
+        initialization.setExecutor(executor);
+        int[] indices = initialization.getSmartClusterInitialization();
+        float[][] centers = new float[numClusters][numDims];
+        for (int c = 0; c < numClusters; c++) {
+            System.arraycopy(rows, indices[c] * numDims, centers[c], 0, numDims);
+        }
+        return centers;
+    }
+
+    /**
+     * Sets the executor that runs the passes over the rows.
+     *
+     * @param executor the executor.
+     */
+    public void setExecutor(ClusteringExecutor executor) {
+        this.executor = executor;
+    }
 
-        for (int c = 0; c < numClusters - 1; c++) {
-            updateDistances(bestIndices[c]);
-            bestIndices[c + 1] = getIndexOfMaxVal();
+    /**
+     * Farthest-point seeding: each new center is the row farthest from
+     * all the centers chosen so far.  The search for the farthest row is
+     * fused into the pass that updates the distances.
+     */
+    public int[] getSmartClusterInitialization() {
+        try {
+            start();
+            for (int c = 0; c < numClusters - 1; c++) {
+                bestIndices[c + 1] = updateDistances(new int[]{bestIndices[c]}, -1);
+            }
+        } finally {
+            stop();
         }
+        return bestIndices;
+    }
 
+    /**
+     * Scalable k-means++ seeding.  Starting from the initial row, each
+     * round samples every row independently with probability proportional
+     * to its potential (its distance to the closest candidate, squared for
+     * k-means), expecting oversampling * numClusters new candidates.  The
+     * candidates are then weighted by the number of rows closest to them,
+     * and numClusters of them are picked by weighted k-means++ sampling.
+     *
+     * @param rounds       the number of sampling rounds, typically 5.
+     * @param oversampling the expected number of candidates per round, as
+     *                     a multiple of numClusters, usually between 0.5
+     *                     and 2; RobustConcurrentKMeans uses 1.
+     * @param seed         seed for the random sampling.
+     * @return the indices of the rows chosen as centers.
+     */
+    public int[] getScalableClusterInitialization(int rounds, double oversampling, long seed) {
+        int numRows = data.numRows();
+        Random random = new Random(seed);
+        List<Integer> candidates = new ArrayList<>();
+        candidates.add(bestIndices[0]);
+        closestCandidate = new int[numRows];
+        try {
+            start();
+            updateDistances(new int[]{bestIndices[0]}, 0);
+            double expected = oversampling * numClusters;
+            for (int r = 0; r < rounds; r++) {
+                double total = totalPotential();
+                if (total <= 0) {
+                    break;
+                }
+                long roundSeed = random.nextLong();
+                int[] sampled = sampleRows(expected / total, roundSeed);
+                if (sampled.length == 0) {
+                    continue;
+                }
+                int firstNew = candidates.size();
+                for (int row : sampled) {
+                    candidates.add(row);
+                }
+                updateDistances(sampled, firstNew);
+            }
+
+            int numCandidates = candidates.size();
+            double[] weights = new double[numCandidates];
+            for (int i = 0; i < numRows; i++) {
+                weights[closestCandidate[i]]++;
+            }
+            int[] chosen = recluster(candidates, weights, random);
+            System.arraycopy(chosen, 0, bestIndices, 0, chosen.length);
+
+            // Too few distinct candidates; fall back to farthest-point
+            // seeding for the remaining centers.
+            if (chosen.length < numClusters) {
+                Arrays.fill(distFromClosestPoint, Float.MAX_VALUE);
+                int next = updateDistances(chosen, -1);
+                for (int c = chosen.length; c < numClusters; c++) {
+                    bestIndices[c] = next;
+                    if (c + 1 < numClusters) {
+                        next = updateDistances(new int[]{next}, -1);
+                    }
+                }
+            }
+        } finally {
+            stop();
+            closestCandidate = null;
+        }
         return bestIndices;
     }
 
-    private void updateDistances(Integer index) {
+    /**
+     * Weighted k-means++ over the candidates: the first center is drawn
+     * in proportion to the weights, each following one in proportion to
+     * weight times potential with respect to the centers drawn so far.
+     */
+    private int[] recluster(List<Integer> candidates, double[] weights, Random random) {
+        int numCandidates = candidates.size();
+        int numDims = data.numDimensions();
+        float[][] rows = new float[numCandidates][];
+        for (int n = 0; n < numCandidates; n++) {
+            rows[n] = data.copyRow(candidates.get(n));
+        }
+        double[] potential = new double[numCandidates];
+        Arrays.fill(potential, Double.MAX_VALUE);
+        boolean[] taken = new boolean[numCandidates];
+        int[] chosen = new int[Math.min(numClusters, numCandidates)];
+        int count = 0;
+        int pick = drawWeighted(weights, null, taken, random);
+        while (pick >= 0 && count < chosen.length) {
+            chosen[count++] = candidates.get(pick);
+            taken[pick] = true;
+            for (int n = 0; n < numCandidates; n++) {
+                if (!taken[n]) {
+                    potential[n] = Math.min(potential[n], potentialOf(metric.distance(rows[n], rows[pick])));
+                }
+            }
+            pick = count < chosen.length ? drawWeighted(weights, potential, taken, random) : -1;
+        }
+        return count == chosen.length ? chosen : Arrays.copyOf(chosen, count);
+    }
 
-        int numCPUThreads = Runtime.getRuntime().availableProcessors();
-        AtomicInteger currRowIndex = new AtomicInteger(0);
-        ExecutorService executor = Executors.newFixedThreadPool(numCPUThreads);
-        for (int l = 0; l < numCPUThreads; l++) {
-            executor.execute(() -> {
-                int k = currRowIndex.getAndIncrement();
-                while (k < data.length) {
-                    float newDist = 0;
-                    if (k != index) {
-                        newDist = metric.distance(data[k], data[index]);
+    private static int drawWeighted(double[] weights, double[] potential, boolean[] taken, Random random) {
+        double total = 0;
+        for (int n = 0; n < weights.length; n++) {
+            if (!taken[n]) {
+                total += weights[n] * (potential == null ? 1 : potential[n]);
+            }
+        }
+        if (total <= 0) {
+            return -1;
+        }
+        double target = random.nextDouble() * total;
+        int last = -1;
+        for (int n = 0; n < weights.length; n++) {
+            if (!taken[n]) {
+                double w = weights[n] * (potential == null ? 1 : potential[n]);
+                if (w > 0) {
+                    last = n;
+                    target -= w;
+                    if (target < 0) {
+                        return n;
                     }
-                    distFromClosestPoint[k] = Math.min(distFromClosestPoint[k], newDist);
-                    k = currRowIndex.getAndIncrement();
                 }
-            });
+            }
+        }
+        return last;
+    }
+
+    private double potentialOf(float distance) {
+        return useKMedians ? distance : (double) distance * distance;
+    }
+
+    private double totalPotential() {
+        double total = 0;
+        for (UpdateTask task : tasks) {
+            total += task.mPotential;
         }
-        executor.shutdown();
-        //noinspection StatementWithEmptyBody
-        while (!executor.isTerminated()) {
+        return total;
+    }
+
+    /**
+     * Independently samples each row with probability
+     * min(1, scale * potential), using a per-row hash of the seed so the
+     * result does not depend on how the rows are split between threads.
+     * The draw is a chunked pass of its own, since the scale depends on
+     * the total potential left by the previous update.
+     */
+    private int[] sampleRows(double scale, long seed) {
+        AtomicInteger nextChunk = new AtomicInteger(0);
+        for (UpdateTask task : tasks) {
+            task.prepareSample(scale, seed, nextChunk);
         }
+        executor.invokeAll(tasks);
+
+        int count = 0;
+        for (UpdateTask task : tasks) {
+            count += task.mNumSampled;
+        }
+        int[] sampled = new int[count];
+        count = 0;
+        for (UpdateTask task : tasks) {
+            System.arraycopy(task.mSampled, 0, sampled, count, task.mNumSampled);
+            count += task.mNumSampled;
+        }
+        // Chunks are taken in whatever order the threads get to them.
+        Arrays.sort(sampled);
+        return sampled;
     }
 
-    private int getIndexOfMaxVal() {
-        float max = distFromClosestPoint[0];
-        int index = 0;
+    private static double uniform(long seed, int row) {
+        // SplitMix64 finalizer.
+        long z = seed + (row + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
 
-        for (int i = 0; i < distFromClosestPoint.length; i++) {
-            if (distFromClosestPoint[i] > max) {
-                index = i;
-                max = distFromClosestPoint[i];
+    private void start() {
+        int numThreads = Math.max(1, Math.min(executor.getParallelism(),
+                (data.numRows() + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        tasks = new UpdateTask[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            tasks[t] = new UpdateTask();
+        }
+    }
+
+    private void stop() {
+        tasks = null;
+    }
+
+    /**
+     * Lowers each row's distance to its closest center using the given
+     * new centers, and returns the index of the row that is now farthest
+     * from all centers (the lowest such index on ties).  When
+     * firstCandidate >= 0 the closest candidate of each row is tracked,
+     * the new centers being candidates firstCandidate, firstCandidate + 1...
+     */
+    private int updateDistances(int[] newCenters, int firstCandidate) {
+        float[][] centers = new float[newCenters.length][];
+        for (int n = 0; n < newCenters.length; n++) {
+            centers[n] = data.copyRow(newCenters[n]);
+        }
+        AtomicInteger nextChunk = new AtomicInteger(0);
+        for (UpdateTask task : tasks) {
+            task.prepare(newCenters, centers, firstCandidate, nextChunk);
+        }
+        executor.invokeAll(tasks);
+
+        float max = -1;
+        int index = 0;
+        for (UpdateTask task : tasks) {
+            if (task.mMax > max || (task.mMax == max && task.mMaxIndex < index)) {
+                max = task.mMax;
+                index = task.mMaxIndex;
             }
         }
         return index;
     }
+
+    /**
+     * One thread's share of a distance update, or of a k-means|| draw.
+     * Takes chunks of rows until none are left, keeping its own farthest
+     * row and total potential, or its own list of sampled rows.
+     */
+    private final class UpdateTask implements Runnable {
+
+        private final float[] scratch = new float[data.numDimensions()];
+        private int[] newCenters;
+        private float[][] centers;
+        private int firstCandidate;
+        private AtomicInteger nextChunk;
+        private boolean sampling;
+        private double sampleScale;
+        private long sampleSeed;
+        private float mMax;
+        private int mMaxIndex;
+        private double mPotential;
+        private int[] mSampled = new int[16];
+        private int mNumSampled;
+
+        void prepare(int[] newCenters, float[][] centers, int firstCandidate, AtomicInteger nextChunk) {
+            this.newCenters = newCenters;
+            this.centers = centers;
+            this.firstCandidate = firstCandidate;
+            this.nextChunk = nextChunk;
+            sampling = false;
+        }
+
+        void prepareSample(double scale, long seed, AtomicInteger nextChunk) {
+            this.sampleScale = scale;
+            this.sampleSeed = seed;
+            this.nextChunk = nextChunk;
+            sampling = true;
+        }
+
+        @Override
+        public void run() {
+            if (sampling) {
+                sample();
+            } else {
+                update();
+            }
+        }
+
+        private void sample() {
+            int numRows = distFromClosestPoint.length;
+            mNumSampled = 0;
+            int start;
+            while ((start = nextChunk.getAndAdd(CHUNK_SIZE)) < numRows) {
+                int lim = Math.min(numRows, start + CHUNK_SIZE);
+                for (int k = start; k < lim; k++) {
+                    double p = sampleScale * potentialOf(distFromClosestPoint[k]);
+                    if (p > 0 && uniform(sampleSeed, k) < p) {
+                        if (mNumSampled == mSampled.length) {
+                            mSampled = Arrays.copyOf(mSampled, 2 * mNumSampled);
+                        }
+                        mSampled[mNumSampled++] = k;
+                    }
+                }
+            }
+        }
+
+        private void update() {
+            NanMasks masks = data.getNanMasks();
+            int numRows = distFromClosestPoint.length;
+            mMax = -1;
+            mMaxIndex = Integer.MAX_VALUE;
+            mPotential = 0;
+            int start;
+            while ((start = nextChunk.getAndAdd(CHUNK_SIZE)) < numRows) {
+                int lim = Math.min(numRows, start + CHUNK_SIZE);
+                for (int k = start; k < lim; k++) {
+                    float dist = distFromClosestPoint[k];
+                    for (int n = 0; n < newCenters.length; n++) {
+                        int index = newCenters[n];
+                        float newDist = 0;
+                        if (k != index) {
+                            newDist = data.distance(k, centers[n], masks, index, metric, scratch);
+                        }
+                        if (newDist < dist) {
+                            dist = newDist;
+                            if (firstCandidate >= 0) {
+                                closestCandidate[k] = firstCandidate + n;
+                            }
+                        }
+                    }
+                    distFromClosestPoint[k] = dist;
+                    if (dist > mMax) {
+                        mMax = dist;
+                        mMaxIndex = k;
+                    }
+                    mPotential += potentialOf(dist);
+                }
+            }
+        }
+    }
 }
@@ -18,7 +18,6 @@
 package robust.concurrent.kmeans.clustering;
 
 import java.util.Arrays;
-import java.util.concurrent.*;
 
 /**
  * The class which manages the SMT-adapted subtasks.
@@ -26,35 +25,34 @@ import java.util.concurrent.*;
 public class SubtaskManager {
 
 
-    // A Barrier to wait on multiple Workers to finish up the current task.
-    // In single-processor mode, there is no need for a barrier, so it
-    // is not set.
-    public static CyclicBarrier mBarrier;
-    // The executor that runs the Workers.
-    // When in multiple processor mode, this is a ThreadPoolExecutor
-    // with a fixed number of threads. In single-processor mode, it's
-    // a simple implementation that calls the single worker's run
-    // method directly.
-    private final Executor mExecutor;
+    // Code identifying the subtask the Workers are to perform next.
+    private volatile int mDoing = Worker.DOING_NOTHING;
+    // The state of the run the Workers operate on.
+    private final ClusteringContext mContext;
     // The worker objects which implement Runnable.
     private final Worker[] mWorkers;
-    // True if the at least one of the Workers is doing something.
-    private boolean mWorking;
+    // The Workers prepared to run on the run's executor, which may have
+    // fewer threads than there are Workers.
+    private final ClusteringExecutor.Batch mBatch;
+    // The slowest Worker's time in the last assignment pass relative to
+    // the mean.
+    private double mLoadImbalance = 1;
 
     /**
      * Constructor
      *
-     * @param numThreads the number of worker threads to be used for
-     *                   the subtasks.
+     * @param context    the state of the run the Workers operate on.
+     * @param numThreads the number of Workers the coordinates are split
+     *                   between.
      */
-    SubtaskManager(int numThreads, boolean useKMedians) {
+    SubtaskManager(ClusteringContext context, int numThreads) {
 
         if (numThreads <= 0) {
             throw new IllegalArgumentException("number of threads <= 0: "
                     + numThreads);
         }
 
-        int coordCount = RobustConcurrentKMeans.mCoordinates.length;
+        int coordCount = context.mCoordinates.numRows();
 
         // There would be no point in having more workers than
         // coordinates, since some of the workers would have nothing
@@ -85,152 +83,188 @@ public class SubtaskManager {
         for (int i = 0; i < numThreads; i++) {
             // Each worker needs to know its starting coordinate and the number of
             // coordinates it handles.
-            mWorkers[i] = new Worker(startCoord, coordsPerWorker[i], useKMedians);
+            mWorkers[i] = new Worker(context, this, startCoord, coordsPerWorker[i]);
             startCoord += coordsPerWorker[i];
         }
 
-        if (numThreads == 1) { // Single-processor mode.
-
-            // Create a simple executor that directly calls the single
-            // worker's run method.  Do not set the barrier.
-            mExecutor = runnable -> {
-                if (!Thread.interrupted()) {
-                    runnable.run();
-                } else {
-                    throw new RejectedExecutionException();
-                }
-            };
-
-        } else { // Multiple-processor mode.
-
-            // Need the barrier to notify the controlling thread when the
-            // Workers are done.
-            // Method called after all workers have called await() on the
-            // barrier.  The call to workersDone()
-            // unblocks the controlling thread.
-            mBarrier = new CyclicBarrier(numThreads, this::workersDone);
-
-            // Set the executor to a fixed thread pool with
-            // threads that do not time out.
-            mExecutor = Executors.newFixedThreadPool(numThreads);
-        }
+        mContext = context;
+        mBatch = context.mExecutor.prepare(mWorkers);
+    }
+
+    /**
+     * Returns the code of the subtask currently being performed.
+     */
+    int getDoing() {
+        return mDoing;
     }
 
     /**
      * Make the cluster assignments.
      */
     void makeAssignments() {
-        Worker.mDoing = Worker.MAKING_ASSIGNMENTS;
+        mDoing = Worker.MAKING_ASSIGNMENTS;
+        work();
+        measureLoadImbalance();
+        buildMembership();
+    }
+
+    /**
+     * Compute the distances to all centers and make the cluster
+     * assignments in a single pass.
+     */
+    void computeDistancesAndAssign() {
+        mDoing = Worker.COMPUTING_AND_ASSIGNING;
+        work();
+        measureLoadImbalance();
+        buildMembership();
+    }
+
+    /**
+     * Find the nearest cluster for each row of the current mini-batch.
+     */
+    void assignBatch() {
+        mDoing = Worker.ASSIGNING_BATCH;
         work();
     }
 
+    /**
+     * Make the cluster assignments, computing only the distances that
+     * the triangle inequality bounds cannot rule out.
+     */
+    void makeAssignmentsWithBounds() {
+        mDoing = Worker.ASSIGNING_WITH_BOUNDS;
+        work();
+        measureLoadImbalance();
+        buildMembership();
+    }
+
     /**
      * Compute the distances between the coordinates and those centers with
      * update flags.
      */
     void computeDistances() {
-        Worker.mDoing = Worker.COMPUTING_DISTANCES;
+        mDoing = Worker.COMPUTING_DISTANCES;
         work();
     }
 
+    /**
+     * Group the coordinates by cluster after an assignment pass.  A prefix
+     * sum over the Workers' per-cluster counts tells each Worker where to
+     * write its members of each cluster, then the Workers fill the
+     * members array in parallel.  A cluster's update flag is set if any
+     * coordinate joined or left it.
+     */
+    private void buildMembership() {
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        int position = 0;
+        for (int c = 0; c < protoClusters.length; c++) {
+            int start = position;
+            int moves = 0;
+            for (Worker mWorker : mWorkers) {
+                mWorker.setClusterCursor(c, position);
+                position += mWorker.clusterSize(c);
+                moves += mWorker.clusterMoves(c);
+            }
+            protoClusters[c].setMembership(start, position - start, moves > 0);
+        }
+        mDoing = Worker.BUILDING_MEMBERSHIP;
+        work();
+    }
+
+    /**
+     * Compare the Workers' times for the subtask just performed.
+     */
+    private void measureLoadImbalance() {
+        long max = 0, total = 0;
+        for (Worker mWorker : mWorkers) {
+            long nanos = mWorker.lastNanos();
+            max = Math.max(max, nanos);
+            total += nanos;
+        }
+        mLoadImbalance = total > 0 ? (double) max * mWorkers.length / total : 1;
+    }
+
+    /**
+     * Returns the time the slowest Worker took in the last assignment
+     * pass divided by the mean over the Workers.
+     */
+    double loadImbalance() {
+        return mLoadImbalance;
+    }
+
     /**
      * Perform the current subtask, waiting until all the workers
      * finish their part of the current task before returning.
-     *
-     * @return true if the subtask succeeded.
      */
-    private boolean work() {
-        boolean ok = false;
-        // Set the working flag to true.
-        mWorking = true;
+    private void work() {
         try {
-            if (mBarrier != null) {
-                // Resets the barrier so it can be reused if
-                // this is not the first call to this method.
-                mBarrier.reset();
-            }
-            // Now execute the run methods on the Workers.
-            for (Worker mWorker : mWorkers) {
-                mExecutor.execute(mWorker);
-            }
-            if (mBarrier != null) {
-                // Block until the workers are done.  The barrier
-                // triggers the unblocking.
-                waitOnWorkers();
-                // If the isBroken() method of the barrier returns false,
-                // no problems.
-                ok = !mBarrier.isBroken();
-            } else {
-                // No barrier, so the run() method of a single worker
-                // was called directly and everything must have worked
-                // if we made it here.
-                ok = true;
-            }
-        } catch (RejectedExecutionException ree) {
-            // Possibly thrown by the executor.
+            mBatch.invoke();
         } finally {
-            mWorking = false;
+            mDoing = Worker.DOING_NOTHING;
         }
-        return ok;
     }
 
     /**
-     * Called from work() to put the controlling thread into
-     * wait mode until the barrier calls workersDone().
+     * Update the k-medians centers listed for recomputation in the
+     * context, in parallel over all their dimensions.  The center masks
+     * are not refreshed.
      */
-    private synchronized void waitOnWorkers() {
-        // It is possible for the workers to have finished so quickly that
-        // workersDone() has already been called.  Since workersDone() sets
-        // mWorking to false, check this flag before going into wait mode.
-        // Not doing so could result in hanging the SubtaskManager.
-        while (mWorking) {
-            try {
-                // Blocks until workersDone() is called.
-                wait();
-            } catch (InterruptedException ie) {
-                // mBarrier.isBroken() will return true.
-                break;
-            }
-        }
+    void updateMedians() {
+        mContext.mNextTask.set(0);
+        mDoing = Worker.UPDATING_MEDIANS;
+        work();
     }
 
     /**
-     * Notifies the controlling thread that it can come out of
-     * wait mode.
+     * Apply the moves of the last assignment pass to the dimensions
+     * fromDim to toDim of the running sums of the clusters.  The moves
+     * are applied in worker order, so the sums do not depend on the
+     * thread timing.
      */
-    private synchronized void workersDone() {
-        // If this gets called before waitOnWorkers(), setting this
-        // to false prevents waitOnWorkers() from entering a
-        // permanent wait.
-        mWorking = false;
-        notifyAll();
+    void updateCenterSums(int fromDim, int toDim) {
+        for (Worker mWorker : mWorkers) {
+            mWorker.updateCenterSums(fromDim, toDim);
+        }
     }
 
     /**
-     * Shutdown the thread pool when k-means is finished.
+     * Update the k-means centers listed in the context, in parallel over
+     * blocks of dimensions and over the clusters whose sums must be
+     * recomputed.  The center masks are not refreshed.
      */
-    void shutdown() {
-        if (mExecutor instanceof ThreadPoolExecutor) {
-            shutdownAndAwaitTermination((ThreadPoolExecutor) mExecutor);
+    void updateCenters() {
+        mContext.mNextTask.set(0);
+        mDoing = Worker.UPDATING_CENTERS;
+        work();
+        for (int n = 0; n < mContext.mNumCentersToRecompute; n++) {
+            mContext.mProtoClusters[mContext.mCentersToRecompute[n]].markSumsValid();
         }
     }
 
-    private void shutdownAndAwaitTermination(ExecutorService pool) {
-        pool.shutdown(); // Disable new tasks from being submitted
-        try {
-            // Wait a while for existing tasks to terminate
-            if (!pool.awaitTermination(10, TimeUnit.MINUTES)) {
-                pool.shutdownNow(); // Cancel currently executing tasks
-                // Wait a while for tasks to respond to being cancelled
-                if (!pool.awaitTermination(10, TimeUnit.MINUTES))
-                    System.err.println("Pool did not terminate");
-            }
-        } catch (InterruptedException ie) {
-            System.err.println("Thread Interruption");
-            pool.shutdownNow();
-            // Preserve interrupt status
-            Thread.currentThread().interrupt();
+    /**
+     * Returns the inertia found by the last assignment pass: the sum over
+     * the coordinates of the squared distance (for k-medians, the
+     * distance) to their assigned centers.  With triangle inequality
+     * bounds it is only an upper bound; call computeInertia() first for
+     * the exact value.  The Workers' shares are added in order, so the
+     * result does not depend on the thread timing.
+     */
+    double inertia() {
+        double inertia = 0;
+        for (Worker mWorker : mWorkers) {
+            inertia += mWorker.inertia();
         }
+        return inertia;
+    }
+
+    /**
+     * Compute the exact inertia with respect to the current assignments
+     * and centers, which inertia() returns until the next assignment
+     * pass.
+     */
+    void computeInertia() {
+        mDoing = Worker.COMPUTING_INERTIA;
+        work();
     }
 
     /**
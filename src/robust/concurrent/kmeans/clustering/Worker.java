@@ -18,10 +18,11 @@
 package robust.concurrent.kmeans.clustering;
 
 import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
 import robust.concurrent.kmeans.metric.RobustEuclideanDistance;
 import robust.concurrent.kmeans.metric.RobustManhattanDistance;
 
-import java.util.concurrent.BrokenBarrierException;
+import java.util.Arrays;
 
 /**
  * The class which does the hard work of the subtasks.
@@ -31,9 +32,19 @@ public class Worker implements Runnable {
     static final int DOING_NOTHING = 0;
     static final int COMPUTING_DISTANCES = 1;
     static final int MAKING_ASSIGNMENTS = 2;
-    // Codes used to identify what step is being done.
-    // What the object is currently doing
-    public static int mDoing = Worker.DOING_NOTHING;
+    static final int ASSIGNING_WITH_BOUNDS = 3;
+    static final int COMPUTING_AND_ASSIGNING = 4;
+    static final int ASSIGNING_BATCH = 5;
+    static final int BUILDING_MEMBERSHIP = 6;
+    static final int UPDATING_CENTERS = 7;
+    static final int UPDATING_MEDIANS = 8;
+    static final int COMPUTING_INERTIA = 9;
+    // Number of dimensions in one center update task.
+    private static final int CENTER_DIM_BLOCK = 64;
+    // The state of the run this worker belongs to.
+    private final ClusteringContext mContext;
+    // The manager that tells this worker what subtask to perform.
+    private final SubtaskManager mManager;
     // Defines range of coordinates to cover.
     private final int mStartCoord;
     private final int mNumCoords;
@@ -41,21 +52,58 @@ public class Worker implements Runnable {
     // to workerMakeAssignments().  The SubtaskManager totals up
     // this value from all the workers in numberOfMoves().
     private int mMoves;
-    private final DistanceMetric euclidean = RobustEuclideanDistance.SINGLETON;
-    private final DistanceMetric manhattan = RobustManhattanDistance.SINGLETON;
+    // Sum over the covered coordinates of the squared distance (for
+    // k-medians, the distance) to the assigned center, as found in the
+    // last assignment pass.  Rows the bounds kept in their cluster add
+    // their upper bound, so with bounds this overestimates the inertia.
+    private double mInertia;
+    // Wall time of this worker's part of the last subtask.
+    private long mLastNanos;
+    // The coordinates moved in the last assignment pass and the
+    // clusters they left (-1 if they were not assigned yet).
+    private int[] mMovedCoords = new int[0];
+    private int[] mMovedFrom = new int[0];
+    // Per cluster, the number of covered coordinates assigned to it and
+    // the number that joined or left it in the last assignment pass, and
+    // where the next member goes in the context's members array.
+    private int[] mClusterSizes;
+    private int[] mClusterMoves;
+    private int[] mClusterCursors;
+    // Buffer the values of one dimension of a cluster are gathered into
+    // to find their median.  Grows to the largest cluster seen.
+    private float[] mMedianScratch = new float[0];
+    // Closest and second closest distances found by the last call
+    // to scanNearest().
+    private double mScanMin, mScanSecond;
+    private static final DistanceMetric euclidean = RobustEuclideanDistance.SINGLETON;
+    private static final DistanceMetric manhattan = RobustManhattanDistance.SINGLETON;
     private final boolean useKMedians;
+    // The metric used between coordinates and centers, and a buffer
+    // stores that cannot hand out their rows may copy a row into.
+    private final DistanceMetric mMetric;
+    private final float[] mRow;
+    // Tiled distance engine and the list of clusters it compares
+    // against, when the run uses blocked distances.
+    private BlockedDistances mBlocked;
+    private int[] mListedClusters;
 
     /**
      * Constructor
      *
+     * @param context    the state of the run.
+     * @param manager    the SubtaskManager that owns this Worker.
      * @param startCoord index of the first coordinate covered by
      *                   this Worker.
      * @param numCoords  the number of coordinates covered.
      */
-    Worker(int startCoord, int numCoords, boolean useKMedians) {
+    Worker(ClusteringContext context, SubtaskManager manager, int startCoord, int numCoords) {
+        mContext = context;
+        mManager = manager;
         mStartCoord = startCoord;
         mNumCoords = numCoords;
-        this.useKMedians = useKMedians;
+        this.useKMedians = context.useKMedians;
+        mMetric = useKMedians ? manhattan : euclidean;
+        mRow = new float[context.mCoordinates.numDimensions()];
     }
 
     /**
@@ -67,33 +115,57 @@ public class Worker implements Runnable {
     }
 
     /**
-     * The run method.  It accesses the SubtaskManager field mDoing
-     * to determine what subtask to perform.
+     * Returns this worker's share of the inertia found in the last
+     * assignment pass or computed by workerComputeInertia().
+     */
+    double inertia() {
+        return mInertia;
+    }
+
+    /**
+     * Returns the wall time of this worker's part of the last subtask,
+     * in nanoseconds.
+     */
+    long lastNanos() {
+        return mLastNanos;
+    }
+
+    /**
+     * The run method.  It asks the SubtaskManager what subtask
+     * to perform.
      */
     public void run() {
-        try {
-            switch (mDoing) {
-                case COMPUTING_DISTANCES:
-                    workerComputeDistances(RobustConcurrentKMeans.mProtoClusters);
-                    break;
-                case MAKING_ASSIGNMENTS:
-                    workerMakeAssignments();
-                    break;
-            }
-        } finally {
-            // If there's a barrier, call its await() method.  To ensure it
-            // gets done, it's placed in the finally clause.
-            if (SubtaskManager.mBarrier != null) {
-                try {
-                    SubtaskManager.mBarrier.await();
-                    // barrier.isBroken() will return true if either of these
-                    // exceptions happens, so the SubtaskManager will detect
-                    // the problem.
-                } catch (InterruptedException | BrokenBarrierException ignored) {
-                }
-            }
+        long start = System.nanoTime();
+        switch (mManager.getDoing()) {
+            case COMPUTING_DISTANCES:
+                workerComputeDistances(mContext.mProtoClusters);
+                break;
+            case MAKING_ASSIGNMENTS:
+                workerMakeAssignments();
+                break;
+            case ASSIGNING_WITH_BOUNDS:
+                workerAssignWithBounds();
+                break;
+            case COMPUTING_AND_ASSIGNING:
+                workerComputeAndAssign();
+                break;
+            case ASSIGNING_BATCH:
+                workerAssignBatch();
+                break;
+            case BUILDING_MEMBERSHIP:
+                workerBuildMembership();
+                break;
+            case UPDATING_CENTERS:
+                workerUpdateCenters();
+                break;
+            case UPDATING_MEDIANS:
+                workerUpdateMedians();
+                break;
+            case COMPUTING_INERTIA:
+                workerComputeInertia();
+                break;
         }
-
+        mLastNanos = System.nanoTime() - start;
     }
 
     /**
@@ -101,39 +173,452 @@ public class Worker implements Runnable {
      * to the updated centers.
      */
     private void workerComputeDistances(ProtoCluster[] mProtoClusters) {
+        if (mContext.useBlockedDistances) {
+            workerComputeBlockedDistances(mProtoClusters);
+            return;
+        }
+        NanMasks rowMasks = mContext.mRowMasks;
         int lim = mStartCoord + mNumCoords;
         for (int i = mStartCoord; i < lim; i++) {
+            if (rowMasks.isAllNaN(i)) {
+                // Equally far from every center; see workerMakeAssignments().
+                continue;
+            }
             int numClusters = mProtoClusters.length;
             for (int c = 0; c < numClusters; c++) {
                 ProtoCluster cluster = mProtoClusters[c];
                 if (cluster.getConsiderForAssignment() && cluster.needsUpdate()) {
-                    RobustConcurrentKMeans.mDistanceCache[i][c] = distanceL2Norm(RobustConcurrentKMeans.mCoordinates[i],
-                            cluster.getCenter());
+                    mContext.mDistanceCache[i][c] = distanceL2Norm(i, cluster);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clear the move log and the per-cluster counts before an
+     * assignment pass.
+     */
+    private void startAssignments() {
+        mMoves = 0;
+        mInertia = 0;
+        int numClusters = mContext.mProtoClusters.length;
+        if (mClusterSizes == null || mClusterSizes.length != numClusters) {
+            mClusterSizes = new int[numClusters];
+            mClusterMoves = new int[numClusters];
+            mClusterCursors = new int[numClusters];
+        } else {
+            Arrays.fill(mClusterSizes, 0);
+            Arrays.fill(mClusterMoves, 0);
+        }
+    }
+
+    /**
+     * Assign a coordinate to a cluster, logging a move if it was
+     * assigned to a different cluster before.
+     *
+     * @param distance the distance from the coordinate to the center,
+     *                 added to the inertia.
+     */
+    private void assign(int i, int c, double distance) {
+        int previous = mContext.mClusterAssignments[i];
+        mClusterSizes[c]++;
+        mInertia += useKMedians ? distance : distance * distance;
+        if (previous != c) {
+            mContext.mClusterAssignments[i] = c;
+            mClusterMoves[c]++;
+            if (previous >= 0) {
+                mClusterMoves[previous]++;
+            }
+            if (mMoves == mMovedCoords.length) {
+                int capacity = Math.min(mNumCoords, Math.max(64, 2 * mMoves));
+                mMovedCoords = Arrays.copyOf(mMovedCoords, capacity);
+                mMovedFrom = Arrays.copyOf(mMovedFrom, capacity);
+            }
+            mMovedCoords[mMoves] = i;
+            mMovedFrom[mMoves] = previous;
+            mMoves++;
+        }
+    }
+
+    /**
+     * Returns the number of covered coordinates assigned to a cluster in
+     * the last assignment pass.
+     */
+    int clusterSize(int c) {
+        return mClusterSizes[c];
+    }
+
+    /**
+     * Returns the number of covered coordinates that joined or left a
+     * cluster in the last assignment pass.
+     */
+    int clusterMoves(int c) {
+        return mClusterMoves[c];
+    }
+
+    /**
+     * Sets the position in the context's members array where this
+     * worker writes its first member of a cluster.
+     */
+    void setClusterCursor(int c, int position) {
+        mClusterCursors[c] = position;
+    }
+
+    /**
+     * Write the covered coordinates into the context's members array,
+     * grouped by cluster.  The Workers cover increasing ranges of
+     * coordinates and their cursors are laid out in the same order, so
+     * every cluster's members end up in ascending order.
+     */
+    private void workerBuildMembership() {
+        int[] assignments = mContext.mClusterAssignments;
+        int[] members = mContext.mMembers;
+        int lim = mStartCoord + mNumCoords;
+        for (int i = mStartCoord; i < lim; i++) {
+            members[mClusterCursors[assignments[i]]++] = i;
+        }
+    }
+
+    /**
+     * Move the dimensions fromDim to toDim of the coordinates that changed
+     * clusters in the last assignment pass from the running sums of the
+     * clusters they left to those of the clusters they joined.
+     */
+    void updateCenterSums(int fromDim, int toDim) {
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        int[] assignments = mContext.mClusterAssignments;
+        for (int m = 0; m < mMoves; m++) {
+            int i = mMovedCoords[m];
+            if (mMovedFrom[m] >= 0) {
+                protoClusters[mMovedFrom[m]].removeFromSums(i, fromDim, toDim);
+            }
+            protoClusters[assignments[i]].addToSums(i, fromDim, toDim);
+        }
+    }
+
+    /**
+     * Take k-medians center update tasks until none are left.  Each task
+     * is one dimension of one of the centers listed for recomputation.
+     */
+    private void workerUpdateMedians() {
+        ClusteringContext ctx = mContext;
+        ProtoCluster[] protoClusters = ctx.mProtoClusters;
+        int numDims = ctx.mCoordinates.numDimensions();
+        int skip = Math.max(1, ctx.medianSkip);
+        int numTasks = ctx.mNumCentersToRecompute * numDims;
+        int task;
+        while ((task = ctx.mNextTask.getAndIncrement()) < numTasks) {
+            ProtoCluster cluster = protoClusters[ctx.mCentersToRecompute[task / numDims]];
+            int sampled = cluster.numMedianValues(skip);
+            if (mMedianScratch.length < sampled) {
+                mMedianScratch = new float[Math.max(sampled, 2 * mMedianScratch.length)];
+            }
+            cluster.updateMedian(task % numDims, skip, mMedianScratch);
+        }
+    }
+
+    /**
+     * Take k-means center update tasks until none are left.  The first
+     * tasks each cover a block of dimensions: the moves of the last pass
+     * are applied to those dimensions of the running sums, then the
+     * centers with valid sums are set from them.  The remaining tasks
+     * each sum all the members of one center whose sums are not valid.
+     * No two tasks write the same sums or center values.
+     */
+    private void workerUpdateCenters() {
+        ClusteringContext ctx = mContext;
+        ProtoCluster[] protoClusters = ctx.mProtoClusters;
+        int numDims = ctx.mCoordinates.numDimensions();
+        int numBlocks = (numDims + CENTER_DIM_BLOCK - 1) / CENTER_DIM_BLOCK;
+        int numTasks = numBlocks + ctx.mNumCentersToRecompute;
+        int task;
+        while ((task = ctx.mNextTask.getAndIncrement()) < numTasks) {
+            if (task < numBlocks) {
+                int fromDim = task * CENTER_DIM_BLOCK;
+                int toDim = Math.min(numDims, fromDim + CENTER_DIM_BLOCK);
+                if (ctx.mApplyMoves) {
+                    mManager.updateCenterSums(fromDim, toDim);
+                }
+                for (int n = 0; n < ctx.mNumCentersFromSums; n++) {
+                    protoClusters[ctx.mCentersFromSums[n]].updateCenterFromSums(fromDim, toDim);
                 }
+            } else {
+                ProtoCluster cluster = protoClusters[ctx.mCentersToRecompute[task - numBlocks]];
+                cluster.recomputeSums();
+                cluster.updateCenterFromSums(0, numDims);
             }
         }
     }
 
+    /**
+     * Compute the exact inertia of the covered coordinates with respect
+     * to their assigned centers.
+     */
+    private void workerComputeInertia() {
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        int[] assignments = mContext.mClusterAssignments;
+        NanMasks rowMasks = mContext.mRowMasks;
+        double inertia = 0;
+        int lim = mStartCoord + mNumCoords;
+        for (int i = mStartCoord; i < lim; i++) {
+            if (!rowMasks.isAllNaN(i)) {
+                double d = distanceL2Norm(i, protoClusters[assignments[i]]);
+                inertia += useKMedians ? d : d * d;
+            }
+        }
+        mInertia = inertia;
+    }
+
     /**
      * Assign each covered coordinate to the nearest cluster.
      */
     private void workerMakeAssignments() {
-        mMoves = 0;
+        startAssignments();
+        NanMasks rowMasks = mContext.mRowMasks;
         int lim = mStartCoord + mNumCoords;
         for (int i = mStartCoord; i < lim; i++) {
-            int c = nearestCluster(i);
-            RobustConcurrentKMeans.mProtoClusters[c].add(i);
-            if (RobustConcurrentKMeans.mClusterAssignments[i] != c) {
-                RobustConcurrentKMeans.mClusterAssignments[i] = c;
-                mMoves++;
+            if (rowMasks.isAllNaN(i)) {
+                assign(i, firstInContention(mContext.mProtoClusters), 0);
+            } else {
+                int c = nearestCluster(i);
+                assign(i, c, mContext.mDistanceCache[i][c]);
             }
         }
     }
 
     /**
-     * Compute the euclidean distance between the two arguments.
+     * Assign each covered coordinate to the nearest cluster, skipping
+     * the distance evaluations that the triangle inequality bounds show
+     * cannot change the assignment.  Rows with NaNs, and all rows during
+     * iterations where a center has NaNs, are assigned by a full scan.
+     */
+    private void workerAssignWithBounds() {
+        startAssignments();
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        ClusteringContext ctx = mContext;
+        float[] upper = ctx.mUpperBounds;
+        float[] lower = ctx.mLowerBounds;
+        NanMasks rowMasks = ctx.mRowMasks;
+        boolean boundsValid = ctx.mBoundsValid;
+        int lim = mStartCoord + mNumCoords;
+        for (int i = mStartCoord; i < lim; i++) {
+            int current = ctx.mClusterAssignments[i];
+            boolean useBounds = boundsValid && rowMasks.isDense(i) && current >= 0;
+
+            if (useBounds) {
+                // Loosen the bounds by the distance the centers moved.
+                upper[i] += ctx.mCenterDrift[current];
+                lower[i] -= current == ctx.mMaxDriftCluster ?
+                        ctx.mSecondMaxDrift : ctx.mMaxDrift;
+                float bound = Math.max(lower[i], ctx.mHalfCenterSeparation[current]);
+                if (upper[i] < bound) {
+                    assign(i, current, upper[i]);
+                    continue;
+                }
+                // Tighten the upper bound and try again.
+                upper[i] = distanceL2Norm(i, protoClusters[current]);
+                if (upper[i] < bound) {
+                    assign(i, current, upper[i]);
+                    continue;
+                }
+            }
+
+            int nearest = scanNearest(i, protoClusters);
+
+            if (boundsValid && rowMasks.isDense(i)) {
+                upper[i] = (float) mScanMin;
+                lower[i] = (float) mScanSecond;
+            } else {
+                // The distances are not metric, so they cannot seed the
+                // bounds.  Force an exact evaluation next time.
+                upper[i] = Float.MAX_VALUE;
+                lower[i] = 0f;
+            }
+            assign(i, nearest, mScanMin);
+        }
+    }
+
+    /**
+     * Compute the distances from each covered coordinate to every
+     * center in contention and assign it to the nearest, without
+     * going through the distance cache.
+     */
+    private void workerComputeAndAssign() {
+        if (mContext.useBlockedDistances) {
+            workerComputeAndAssignBlocked();
+            return;
+        }
+        startAssignments();
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        float[] bestDistances = mContext.mBestDistances;
+        int lim = mStartCoord + mNumCoords;
+        for (int i = mStartCoord; i < lim; i++) {
+            int c = scanNearest(i, protoClusters);
+            bestDistances[i] = (float) mScanMin;
+            assign(i, c, mScanMin);
+        }
+    }
+
+    /**
+     * Find the nearest cluster for this worker's share of the
+     * mini-batch.  The batch is split between the workers in the same
+     * proportions as the coordinates.
+     */
+    private void workerAssignBatch() {
+        ClusteringContext ctx = mContext;
+        long numCoords = ctx.mCoordinates.numRows();
+        int from = (int) (ctx.mBatchSize * (long) mStartCoord / numCoords);
+        int to = (int) (ctx.mBatchSize * (long) (mStartCoord + mNumCoords) / numCoords);
+        for (int b = from; b < to; b++) {
+            ctx.mBatchAssignments[b] = scanNearest(ctx.mBatch[b], ctx.mProtoClusters);
+            ctx.mBatchDistances[b] = (float) mScanMin;
+        }
+    }
+
+    /**
+     * Compute the distances for the covered coordinates to the updated
+     * centers, one block of rows at a time with the tiled engine.
+     */
+    private void workerComputeBlockedDistances(ProtoCluster[] protoClusters) {
+        int numListed = listClusters(protoClusters, true);
+        if (numListed == 0) {
+            return;
+        }
+        float[][] cache = mContext.mDistanceCache;
+        int lim = mStartCoord + mNumCoords;
+        for (int start = mStartCoord; start < lim; start += BlockedDistances.ROW_BLOCK) {
+            int count = Math.min(BlockedDistances.ROW_BLOCK, lim - start);
+            mBlocked.compute(start, count, mListedClusters, numListed);
+            float[] distances = mBlocked.getDistances();
+            for (int r = 0; r < count; r++) {
+                float[] row = cache[start + r];
+                for (int n = 0; n < numListed; n++) {
+                    row[mListedClusters[n]] = distances[r * numListed + n];
+                }
+            }
+        }
+    }
+
+    /**
+     * Fused distance and assignment pass using the tiled engine.
+     */
+    private void workerComputeAndAssignBlocked() {
+        startAssignments();
+        ProtoCluster[] protoClusters = mContext.mProtoClusters;
+        NanMasks rowMasks = mContext.mRowMasks;
+        float[] bestDistances = mContext.mBestDistances;
+        int numListed = listClusters(protoClusters, false);
+        int lim = mStartCoord + mNumCoords;
+        for (int start = mStartCoord; start < lim; start += BlockedDistances.ROW_BLOCK) {
+            int count = Math.min(BlockedDistances.ROW_BLOCK, lim - start);
+            mBlocked.compute(start, count, mListedClusters, numListed);
+            float[] distances = mBlocked.getDistances();
+            for (int r = 0; r < count; r++) {
+                int i = start + r;
+                int nearest;
+                double min = Double.MAX_VALUE;
+                if (rowMasks.isAllNaN(i)) {
+                    nearest = firstInContention(protoClusters);
+                    min = 0;
+                } else {
+                    nearest = -1;
+                    for (int n = 0; n < numListed; n++) {
+                        double d = distances[r * numListed + n];
+                        if (d < min) {
+                            min = d;
+                            nearest = mListedClusters[n];
+                        }
+                    }
+                }
+                bestDistances[i] = (float) min;
+                assign(i, nearest, min);
+            }
+        }
+    }
+
+    /**
+     * Fill mListedClusters with the indices of the clusters in
+     * contention, optionally only those whose centers were updated,
+     * and return how many were listed.
+     */
+    private int listClusters(ProtoCluster[] protoClusters, boolean updatedOnly) {
+        if (mBlocked == null) {
+            mBlocked = new BlockedDistances(mContext);
+            mListedClusters = new int[protoClusters.length];
+        }
+        int numListed = 0;
+        for (int c = 0; c < protoClusters.length; c++) {
+            ProtoCluster cluster = protoClusters[c];
+            if (cluster.getConsiderForAssignment() && (!updatedOnly || cluster.needsUpdate())) {
+                mListedClusters[numListed++] = c;
+            }
+        }
+        return numListed;
+    }
+
+    /**
+     * Find the nearest cluster to the coordinate identified by the
+     * specified index by computing the distance to every center in
+     * contention.  The closest and second closest distances are left
+     * in mScanMin and mScanSecond.
+     */
+    private int scanNearest(int ndx, ProtoCluster[] protoClusters) {
+        if (mContext.mRowMasks.isAllNaN(ndx)) {
+            // A row without values carries no information about where
+            // it belongs, so it goes to the first cluster at no cost.
+            mScanMin = 0;
+            mScanSecond = 0;
+            return firstInContention(protoClusters);
+        }
+        int nearest = -1;
+        double min = Double.MAX_VALUE;
+        double second = Double.MAX_VALUE;
+        int numClusters = protoClusters.length;
+        for (int c = 0; c < numClusters; c++) {
+            ProtoCluster cluster = protoClusters[c];
+            if (cluster.getConsiderForAssignment()) {
+                double d = distanceL2Norm(ndx, cluster);
+                if (d < min) {
+                    second = min;
+                    min = d;
+                    nearest = c;
+                } else if (d < second) {
+                    second = d;
+                }
+            }
+        }
+        mScanMin = min;
+        mScanSecond = second;
+        return nearest;
+    }
+
+    /**
+     * Returns the index of the first cluster still in contention, where
+     * rows that are entirely NaN are assigned.
+     */
+    private static int firstInContention(ProtoCluster[] protoClusters) {
+        for (int c = 0; c < protoClusters.length; c++) {
+            if (protoClusters[c].getConsiderForAssignment()) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compute the distance between the coordinate identified by the
+     * specified index and the center of the cluster.
+     */
+    private float distanceL2Norm(int ndx, ProtoCluster cluster) {
+        return mContext.mCoordinates.distance(ndx, cluster.getCenter(), cluster.getCenterMask(), 0,
+                mMetric, mRow);
+    }
+
+    /**
+     * Compute the robust distance between the two arguments, using the
+     * manhattan metric for k-medians and the euclidean metric otherwise.
      */
-    private float distanceL2Norm(float[] coord, float[] center) {
+    static float distance(float[] coord, float[] center, boolean useKMedians) {
         if (useKMedians) {
             return manhattan.distance(coord, center);
         } else {
@@ -148,10 +633,10 @@ public class Worker implements Runnable {
     private int nearestCluster(int ndx) {
         int nearest = -1;
         double min = Double.MAX_VALUE;
-        int numClusters = RobustConcurrentKMeans.mProtoClusters.length;
+        int numClusters = mContext.mProtoClusters.length;
         for (int c = 0; c < numClusters; c++) {
-            if (RobustConcurrentKMeans.mProtoClusters[c].getConsiderForAssignment()) {
-                double d = RobustConcurrentKMeans.mDistanceCache[ndx][c];
+            if (mContext.mProtoClusters[c].getConsiderForAssignment()) {
+                double d = mContext.mDistanceCache[ndx][c];
                 if (d < min) {
                     min = d;
                     nearest = c;
@@ -0,0 +1,90 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+
+/**
+ * Adapter exposing a two-dimensional array as a CoordinateStore.
+ * The rows are used in place, without copying.
+ */
+public class ArrayCoordinateStore extends CoordinateStore {
+
+    private final float[][] rows;
+    private final int numDims;
+
+    public ArrayCoordinateStore(float[][] rows) {
+        this.rows = rows;
+        numDims = rows.length > 0 ? rows[0].length : 0;
+    }
+
+    @Override
+    public int numRows() {
+        return rows.length;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        return rows[row][dim];
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        System.arraycopy(rows[row], 0, dest, 0, numDims);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        System.arraycopy(rows[row], 0, dest, destOffset, numDims);
+    }
+
+    @Override
+    public float distance(int row, float[] center, DistanceMetric metric, float[] scratch) {
+        return metric.distance(rows[row], center);
+    }
+
+    @Override
+    public float distance(int row, float[] center, NanMasks centerMasks, int centerVector,
+                          DistanceMetric metric, float[] scratch) {
+        return metric.distance(rows[row], 0, getNanMasks(), row, center, centerMasks, centerVector);
+    }
+
+    @Override
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        float[] coord = rows[row];
+        for (int j = fromDim; j < toDim; j++) {
+            if (!Float.isNaN(coord[j])) {
+                sums[j] += weight * (double) coord[j];
+                counts[j] += weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+
+/**
+ * Read-only matrix of coordinates to be clustered, one row per
+ * coordinate.  Missing values are stored as NaN.
+ */
+public abstract class CoordinateStore {
+
+    // NaN masks of the rows, computed on first use.
+    private volatile NanMasks nanMasks;
+
+    /**
+     * Wraps a two-dimensional array without copying it.
+     *
+     * @param coordinates the rows to be clustered.
+     * @return a store backed by the array.
+     */
+    public static CoordinateStore of(float[][] coordinates) {
+        return new ArrayCoordinateStore(coordinates);
+    }
+
+    /**
+     * @return the number of rows (coordinates).
+     */
+    public abstract int numRows();
+
+    /**
+     * @return the number of dimensions of each row.
+     */
+    public abstract int numDimensions();
+
+    /**
+     * @return the value at the given row and dimension.
+     */
+    public abstract float get(int row, int dim);
+
+    /**
+     * Copies a row into the destination array.
+     *
+     * @param row  index of the row.
+     * @param dest array of length numDimensions().
+     */
+    public abstract void getRow(int row, float[] dest);
+
+    /**
+     * Copies a row into the destination array, starting at destOffset.
+     * Used to pack several rows into one contiguous tile.
+     */
+    public void getRow(int row, float[] dest, int destOffset) {
+        int numDims = numDimensions();
+        for (int j = 0; j < numDims; j++) {
+            dest[destOffset + j] = get(row, j);
+        }
+    }
+
+    /**
+     * @return a newly allocated copy of the row.
+     */
+    public float[] copyRow(int row) {
+        float[] dest = new float[numDimensions()];
+        getRow(row, dest);
+        return dest;
+    }
+
+    /**
+     * Distance between a row and a center.  Stores that can hand their
+     * rows to the metric directly override this to avoid the copy.
+     *
+     * @param row     index of the row.
+     * @param center  the center.
+     * @param metric  the distance metric.
+     * @param scratch array of length numDimensions() the row may be
+     *                copied into.
+     */
+    public float distance(int row, float[] center, DistanceMetric metric, float[] scratch) {
+        getRow(row, scratch);
+        return metric.distance(scratch, center);
+    }
+
+    /**
+     * Distance between a row and a center using the NaN masks of both,
+     * so that dense pairs skip the NaN checks.
+     *
+     * @param row          index of the row.
+     * @param center       array holding the center.
+     * @param centerMasks  masks describing the center.
+     * @param centerVector index of the center in centerMasks.
+     * @param metric       the distance metric.
+     * @param scratch      array of length numDimensions() the row may be
+     *                     copied into.
+     */
+    public float distance(int row, float[] center, NanMasks centerMasks, int centerVector,
+                          DistanceMetric metric, float[] scratch) {
+        getRow(row, scratch);
+        return metric.distance(scratch, 0, getNanMasks(), row, center, centerMasks, centerVector);
+    }
+
+    /**
+     * Returns the NaN masks and non-NaN counts of the rows.  They are
+     * computed on the first call and shared by all later callers, so the
+     * store must not be modified afterwards.
+     */
+    public NanMasks getNanMasks() {
+        NanMasks masks = nanMasks;
+        if (masks == null) {
+            synchronized (this) {
+                masks = nanMasks;
+                if (masks == null) {
+                    masks = computeNanMasks();
+                    nanMasks = masks;
+                }
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * Computes the masks returned by getNanMasks(), by default from every
+     * row.  Called once, under the store's lock.
+     */
+    protected NanMasks computeNanMasks() {
+        int numRows = numRows();
+        NanMasks masks = new NanMasks(numRows, numDimensions());
+        float[] row = new float[numDimensions()];
+        for (int i = 0; i < numRows; i++) {
+            getRow(i, row);
+            masks.update(i, row, 0);
+        }
+        masks.trim();
+        return masks;
+    }
+
+    /**
+     * Adds the non-NaN values of a row, multiplied by the weight, to the
+     * sums and adds the weight to the count of each dimension with a
+     * value.  A weight of -1 removes a row that was added before.
+     *
+     * @param row    index of the row.
+     * @param weight multiplier of the row, usually 1 or -1.
+     * @param sums   per-dimension sums.
+     * @param counts per-dimension number of non-NaN values.
+     */
+    public void accumulate(int row, int weight, double[] sums, int[] counts) {
+        accumulate(row, weight, sums, counts, 0, numDimensions());
+    }
+
+    /**
+     * Same as accumulate(row, weight, sums, counts), restricted to the
+     * dimensions fromDim (inclusive) to toDim (exclusive).
+     *
+     * @param row     index of the row.
+     * @param weight  multiplier of the row, usually 1 or -1.
+     * @param sums    per-dimension sums.
+     * @param counts  per-dimension number of non-NaN values.
+     * @param fromDim the first dimension.
+     * @param toDim   the end of the range of dimensions.
+     */
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        for (int j = fromDim; j < toDim; j++) {
+            float v = get(row, j);
+            if (!Float.isNaN(v)) {
+                sums[j] += weight * (double) v;
+                counts[j] += weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+
+/**
+ * Coordinates held in a single row-major float array, so that rows are
+ * contiguous in memory and no per-row object is needed.  Limited to
+ * Integer.MAX_VALUE values in total; see OffHeapCoordinateStore for
+ * larger matrices.
+ */
+public class FlatCoordinateStore extends CoordinateStore {
+
+    private final float[] data;
+    private final int numRows;
+    private final int numDims;
+
+    /**
+     * @param data    row-major values, numRows * numDims long.
+     * @param numRows the number of rows.
+     * @param numDims the number of dimensions.
+     */
+    public FlatCoordinateStore(float[] data, int numRows, int numDims) {
+        if ((long) numRows * numDims != data.length) {
+            throw new IllegalArgumentException("data length " + data.length + " != "
+                    + numRows + " x " + numDims);
+        }
+        this.data = data;
+        this.numRows = numRows;
+        this.numDims = numDims;
+    }
+
+    /**
+     * Copies a two-dimensional array into flat storage.
+     */
+    public static FlatCoordinateStore copyOf(float[][] rows) {
+        int numDims = rows.length > 0 ? rows[0].length : 0;
+        long size = (long) rows.length * numDims;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many values for a flat store: " + size);
+        }
+        float[] data = new float[(int) size];
+        for (int i = 0; i < rows.length; i++) {
+            System.arraycopy(rows[i], 0, data, i * numDims, numDims);
+        }
+        return new FlatCoordinateStore(data, rows.length, numDims);
+    }
+
+    /**
+     * @return the backing row-major array.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the index in getData() of the first value of the row.
+     */
+    public int offset(int row) {
+        return row * numDims;
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        return data[row * numDims + dim];
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        System.arraycopy(data, row * numDims, dest, 0, numDims);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        System.arraycopy(data, row * numDims, dest, destOffset, numDims);
+    }
+
+    @Override
+    public float distance(int row, float[] center, DistanceMetric metric, float[] scratch) {
+        return metric.distance(data, row * numDims, center, numDims);
+    }
+
+    @Override
+    public float distance(int row, float[] center, NanMasks centerMasks, int centerVector,
+                          DistanceMetric metric, float[] scratch) {
+        return metric.distance(data, row * numDims, getNanMasks(), row, center, centerMasks, centerVector);
+    }
+
+    @Override
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        int offset = row * numDims;
+        for (int j = fromDim; j < toDim; j++) {
+            float v = data[offset + j];
+            if (!Float.isNaN(v)) {
+                sums[j] += weight * (double) v;
+                counts[j] += weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+import robust.concurrent.kmeans.metric.ReducedPrecision;
+
+/**
+ * Coordinates held in IEEE half precision, two bytes per value instead of
+ * four.  Values are rounded to 11 significant bits, a relative error of
+ * at most 2^-11 within the half precision range (see ReducedPrecision);
+ * NaN is kept.  Distances are computed straight from the codes, and rows
+ * are decoded on the fly into the caller's buffer, so a pass over the
+ * store reads half the memory of a float store.  Rows are
+ * split over several arrays, each holding a whole number of rows, so the
+ * total number of values may exceed Integer.MAX_VALUE.
+ */
+public class HalfPrecisionCoordinateStore extends CoordinateStore {
+
+    // Largest number of values a single array may hold.
+    private static final long MAX_CHUNK_VALUES = Integer.MAX_VALUE - 8;
+
+    private final short[][] chunks;
+    private final int numRows;
+    private final int numDims;
+    private final int rowsPerChunk;
+
+    /**
+     * Allocates a store of the given shape, initially filled with zeros.
+     *
+     * @param numRows the number of rows.
+     * @param numDims the number of dimensions.
+     */
+    public HalfPrecisionCoordinateStore(int numRows, int numDims) {
+        this.numRows = numRows;
+        this.numDims = numDims;
+        rowsPerChunk = (int) Math.max(1, MAX_CHUNK_VALUES / Math.max(numDims, 1));
+        int numChunks = (int) ((numRows + (long) rowsPerChunk - 1) / rowsPerChunk);
+        chunks = new short[numChunks][];
+        for (int c = 0; c < numChunks; c++) {
+            int rows = Math.min(rowsPerChunk, numRows - c * rowsPerChunk);
+            chunks[c] = new short[rows * numDims];
+        }
+    }
+
+    /**
+     * Copies a two-dimensional array into half precision.
+     */
+    public static HalfPrecisionCoordinateStore copyOf(float[][] rows) {
+        return copyOf(CoordinateStore.of(rows));
+    }
+
+    /**
+     * Copies another store into half precision.
+     */
+    public static HalfPrecisionCoordinateStore copyOf(CoordinateStore source) {
+        HalfPrecisionCoordinateStore store = new HalfPrecisionCoordinateStore(source.numRows(),
+                source.numDimensions());
+        float[] row = new float[source.numDimensions()];
+        for (int i = 0; i < source.numRows(); i++) {
+            source.getRow(i, row);
+            store.setRow(i, row);
+        }
+        return store;
+    }
+
+    /**
+     * Sets a single value, rounded to half precision.
+     */
+    public void set(int row, int dim, float value) {
+        chunks[row / rowsPerChunk][(row % rowsPerChunk) * numDims + dim] = ReducedPrecision.toHalf(value);
+    }
+
+    /**
+     * Sets all the values of a row, rounded to half precision.
+     */
+    public void setRow(int row, float[] values) {
+        short[] chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            chunk[offset + j] = ReducedPrecision.toHalf(values[j]);
+        }
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        return ReducedPrecision.fromHalf(chunks[row / rowsPerChunk][(row % rowsPerChunk) * numDims + dim]);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        getRow(row, dest, 0);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        ReducedPrecision.decodeHalf(chunks[row / rowsPerChunk], (row % rowsPerChunk) * numDims,
+                dest, destOffset, numDims);
+    }
+
+    @Override
+    public float distance(int row, float[] center, DistanceMetric metric, float[] scratch) {
+        return ReducedPrecision.halfDistance(metric, chunks[row / rowsPerChunk], (row % rowsPerChunk) * numDims,
+                false, center, numDims, scratch);
+    }
+
+    @Override
+    public float distance(int row, float[] center, NanMasks centerMasks, int centerVector,
+                          DistanceMetric metric, float[] scratch) {
+        boolean dense = getNanMasks().isDense(row) && centerMasks.isDense(centerVector);
+        return ReducedPrecision.halfDistance(metric, chunks[row / rowsPerChunk], (row % rowsPerChunk) * numDims,
+                dense, center, numDims, scratch);
+    }
+
+    @Override
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        ReducedPrecision.accumulateHalf(chunks[row / rowsPerChunk], (row % rowsPerChunk) * numDims,
+                weight, sums, counts, fromDim, toDim);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a row-major float32 matrix file, mapped into memory
+ * with FileChannel.map in windows of whole rows.  The operating system
+ * pages the file in and out as it is read, so the matrix may be larger
+ * than the available RAM.  Rows are best read sequentially.
+ */
+public class MappedCoordinateStore extends CoordinateStore {
+
+    // Largest number of bytes mapped by a single window.
+    private static final long MAX_WINDOW_BYTES = Integer.MAX_VALUE - 8;
+
+    private final FloatBuffer[] windows;
+    private final int numRows;
+    private final int numDims;
+    private final int rowsPerWindow;
+
+    /**
+     * Maps a little-endian float32 file.
+     *
+     * @param file    the file holding numRows * numDims values, row-major.
+     * @param numDims the number of dimensions of each row.
+     */
+    public MappedCoordinateStore(Path file, int numDims) throws IOException {
+        this(file, numDims, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @param file    the file holding numRows * numDims values, row-major.
+     * @param numDims the number of dimensions of each row.
+     * @param order   the byte order of the values in the file.
+     */
+    public MappedCoordinateStore(Path file, int numDims, ByteOrder order) throws IOException {
+        if (numDims <= 0) {
+            throw new IllegalArgumentException("number of dimensions <= 0: " + numDims);
+        }
+        this.numDims = numDims;
+        long rowBytes = 4L * numDims;
+        rowsPerWindow = (int) Math.max(1, MAX_WINDOW_BYTES / rowBytes);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size % rowBytes != 0) {
+                throw new IOException("file size " + size + " is not a multiple of the row size " + rowBytes);
+            }
+            long rows = size / rowBytes;
+            if (rows > Integer.MAX_VALUE) {
+                throw new IOException("too many rows: " + rows);
+            }
+            numRows = (int) rows;
+            int numWindows = (int) ((rows + rowsPerWindow - 1) / rowsPerWindow);
+            windows = new FloatBuffer[numWindows];
+            for (int w = 0; w < numWindows; w++) {
+                long firstRow = (long) w * rowsPerWindow;
+                long windowRows = Math.min(rowsPerWindow, rows - firstRow);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        firstRow * rowBytes, windowRows * rowBytes);
+                windows[w] = buffer.order(order).asFloatBuffer();
+            }
+        }
+    }
+
+    /**
+     * Writes the rows of a store to a file in the layout read by this
+     * class.
+     *
+     * @param store the rows to write.
+     * @param file  the destination file, replaced if it exists.
+     * @param order the byte order of the values.
+     */
+    public static void write(CoordinateStore store, Path file, ByteOrder order) throws IOException {
+        int numDims = store.numDimensions();
+        float[] row = new float[numDims];
+        ByteBuffer buffer = ByteBuffer.allocate(4 * numDims).order(order);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < store.numRows(); i++) {
+                store.getRow(i, row);
+                buffer.clear();
+                buffer.asFloatBuffer().put(row);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        return windows[row / rowsPerWindow].get((row % rowsPerWindow) * numDims + dim);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        getRow(row, dest, 0);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        FloatBuffer window = windows[row / rowsPerWindow];
+        int offset = (row % rowsPerWindow) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            dest[destOffset + j] = window.get(offset + j);
+        }
+    }
+}
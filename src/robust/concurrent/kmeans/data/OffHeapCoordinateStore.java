@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Coordinates held outside the Java heap in direct buffers.  Rows are
+ * stored row-major and split over several buffers, each holding a whole
+ * number of rows, so the total number of values may exceed
+ * Integer.MAX_VALUE.
+ */
+public class OffHeapCoordinateStore extends CoordinateStore {
+
+    // Largest number of bytes a single direct buffer may hold.
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE - 8;
+
+    private final FloatBuffer[] chunks;
+    private final int numRows;
+    private final int numDims;
+    private final int rowsPerChunk;
+
+    /**
+     * Allocates a store of the given shape, initially filled with zeros.
+     *
+     * @param numRows the number of rows.
+     * @param numDims the number of dimensions.
+     */
+    public OffHeapCoordinateStore(int numRows, int numDims) {
+        this(numRows, numDims, (int) Math.max(1, MAX_CHUNK_BYTES / (4L * Math.max(numDims, 1))));
+    }
+
+    OffHeapCoordinateStore(int numRows, int numDims, int rowsPerChunk) {
+        this.numRows = numRows;
+        this.numDims = numDims;
+        this.rowsPerChunk = rowsPerChunk;
+        int numChunks = (int) ((numRows + (long) rowsPerChunk - 1) / rowsPerChunk);
+        chunks = new FloatBuffer[numChunks];
+        for (int c = 0; c < numChunks; c++) {
+            int rows = Math.min(rowsPerChunk, numRows - c * rowsPerChunk);
+            chunks[c] = ByteBuffer.allocateDirect((int) (4L * rows * numDims))
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Copies a two-dimensional array into off-heap storage.
+     */
+    public static OffHeapCoordinateStore copyOf(float[][] rows) {
+        int numDims = rows.length > 0 ? rows[0].length : 0;
+        OffHeapCoordinateStore store = new OffHeapCoordinateStore(rows.length, numDims);
+        for (int i = 0; i < rows.length; i++) {
+            store.setRow(i, rows[i]);
+        }
+        return store;
+    }
+
+    /**
+     * Sets a single value.
+     */
+    public void set(int row, int dim, float value) {
+        chunks[row / rowsPerChunk].put((row % rowsPerChunk) * numDims + dim, value);
+    }
+
+    /**
+     * Sets all the values of a row.
+     */
+    public void setRow(int row, float[] values) {
+        FloatBuffer chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            chunk.put(offset + j, values[j]);
+        }
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        return chunks[row / rowsPerChunk].get((row % rowsPerChunk) * numDims + dim);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        FloatBuffer chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            dest[j] = chunk.get(offset + j);
+        }
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        FloatBuffer chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            dest[destOffset + j] = chunk.get(offset + j);
+        }
+    }
+
+    @Override
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        FloatBuffer chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = fromDim; j < toDim; j++) {
+            float v = chunk.get(offset + j);
+            if (!Float.isNaN(v)) {
+                sums[j] += weight * (double) v;
+                counts[j] += weight;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+import robust.concurrent.kmeans.metric.ReducedPrecision;
+
+import java.util.Arrays;
+
+/**
+ * Coordinates quantized to one byte per value, a quarter of the memory of
+ * a float store.  A value is stored as a code in [-127, 127] and decoded
+ * as zero + scale * code, where the zero and scale are shared either by
+ * all the values of a row or by all the values of a dimension; code -128
+ * marks NaN, so missing values are kept.  With scale = (max - min) / 254
+ * over the values sharing it, each value is decoded with an absolute
+ * error of at most scale / 2 (see ReducedPrecision).  Per-row scaling
+ * suits rows of very different magnitudes, per-column scaling dimensions
+ * of very different magnitudes.  Distances are computed straight from the
+ * codes, rows are decoded on the fly into the caller's buffer, and rows
+ * are split over several arrays, each holding a whole number of rows, so
+ * the total number of values may exceed Integer.MAX_VALUE.
+ */
+public class QuantizedCoordinateStore extends CoordinateStore {
+
+    /**
+     * Which values share a zero and scale.
+     */
+    public enum Scaling {
+        PER_ROW, PER_COLUMN
+    }
+
+    // Largest number of values a single array may hold.
+    private static final long MAX_CHUNK_VALUES = Integer.MAX_VALUE - 8;
+
+    private final byte[][] chunks;
+    private final int numRows;
+    private final int numDims;
+    private final int rowsPerChunk;
+    private final Scaling scaling;
+    // The zero and scale of each row or of each dimension.
+    private final float[] zeros;
+    private final float[] scales;
+
+    private QuantizedCoordinateStore(int numRows, int numDims, Scaling scaling) {
+        this.numRows = numRows;
+        this.numDims = numDims;
+        this.scaling = scaling;
+        rowsPerChunk = (int) Math.max(1, MAX_CHUNK_VALUES / Math.max(numDims, 1));
+        int numChunks = (int) ((numRows + (long) rowsPerChunk - 1) / rowsPerChunk);
+        chunks = new byte[numChunks][];
+        for (int c = 0; c < numChunks; c++) {
+            int rows = Math.min(rowsPerChunk, numRows - c * rowsPerChunk);
+            chunks[c] = new byte[rows * numDims];
+        }
+        int numScales = scaling == Scaling.PER_ROW ? numRows : numDims;
+        zeros = new float[numScales];
+        scales = new float[numScales];
+    }
+
+    /**
+     * Quantizes a two-dimensional array, with a zero and scale per row.
+     */
+    public static QuantizedCoordinateStore copyOf(float[][] rows) {
+        return copyOf(CoordinateStore.of(rows), Scaling.PER_ROW);
+    }
+
+    /**
+     * Quantizes a two-dimensional array.
+     */
+    public static QuantizedCoordinateStore copyOf(float[][] rows, Scaling scaling) {
+        return copyOf(CoordinateStore.of(rows), scaling);
+    }
+
+    /**
+     * Quantizes another store.  With per-column scaling the source is
+     * read twice, first to find the range of each dimension.
+     */
+    public static QuantizedCoordinateStore copyOf(CoordinateStore source, Scaling scaling) {
+        int numRows = source.numRows();
+        int numDims = source.numDimensions();
+        QuantizedCoordinateStore store = new QuantizedCoordinateStore(numRows, numDims, scaling);
+        float[] row = new float[numDims];
+        if (scaling == Scaling.PER_COLUMN) {
+            float[] min = new float[numDims];
+            float[] max = new float[numDims];
+            Arrays.fill(min, Float.POSITIVE_INFINITY);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            for (int i = 0; i < numRows; i++) {
+                source.getRow(i, row);
+                for (int j = 0; j < numDims; j++) {
+                    // NaN fails both comparisons.
+                    if (row[j] < min[j]) {
+                        min[j] = row[j];
+                    }
+                    if (row[j] > max[j]) {
+                        max[j] = row[j];
+                    }
+                }
+            }
+            for (int j = 0; j < numDims; j++) {
+                store.setRange(j, min[j], max[j]);
+            }
+            for (int i = 0; i < numRows; i++) {
+                source.getRow(i, row);
+                store.encode(i, row, store.zeros, store.scales);
+            }
+        } else {
+            for (int i = 0; i < numRows; i++) {
+                source.getRow(i, row);
+                float min = Float.POSITIVE_INFINITY;
+                float max = Float.NEGATIVE_INFINITY;
+                for (float v : row) {
+                    if (v < min) {
+                        min = v;
+                    }
+                    if (v > max) {
+                        max = v;
+                    }
+                }
+                store.setRange(i, min, max);
+                store.encode(i, row, store.zeros[i], store.scales[i]);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Sets the zero and scale of a row or dimension from the range of its
+     * values.  The range is empty if all the values are NaN.
+     */
+    private void setRange(int index, float min, float max) {
+        if (min <= max) {
+            zeros[index] = min + (max - min) / 2;
+            scales[index] = ReducedPrecision.int8Scale(min, max);
+        }
+    }
+
+    private void encode(int row, float[] values, float zero, float scale) {
+        byte[] chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            chunk[offset + j] = ReducedPrecision.toInt8(values[j], zero, scale);
+        }
+    }
+
+    private void encode(int row, float[] values, float[] zeros, float[] scales) {
+        byte[] chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        for (int j = 0; j < numDims; j++) {
+            chunk[offset + j] = ReducedPrecision.toInt8(values[j], zeros[j], scales[j]);
+        }
+    }
+
+    /**
+     * @return which values share a zero and scale.
+     */
+    public Scaling getScaling() {
+        return scaling;
+    }
+
+    /**
+     * Returns the largest error of a decoded value in the given row.
+     */
+    public float maxError(int row) {
+        if (scaling == Scaling.PER_ROW) {
+            return scales[row] / 2;
+        }
+        float max = 0;
+        for (float scale : scales) {
+            max = Math.max(max, scale / 2);
+        }
+        return max;
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        byte code = chunks[row / rowsPerChunk][(row % rowsPerChunk) * numDims + dim];
+        int s = scaling == Scaling.PER_ROW ? row : dim;
+        return ReducedPrecision.fromInt8(code, zeros[s], scales[s]);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        getRow(row, dest, 0);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        byte[] chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        if (scaling == Scaling.PER_ROW) {
+            ReducedPrecision.decodeInt8(chunk, offset, zeros[row], scales[row], dest, destOffset, numDims);
+        } else {
+            ReducedPrecision.decodeInt8(chunk, offset, zeros, scales, dest, destOffset, numDims);
+        }
+    }
+
+    @Override
+    public float distance(int row, float[] center, DistanceMetric metric, float[] scratch) {
+        return distance(row, center, false, metric, scratch);
+    }
+
+    @Override
+    public float distance(int row, float[] center, NanMasks centerMasks, int centerVector,
+                          DistanceMetric metric, float[] scratch) {
+        boolean dense = getNanMasks().isDense(row) && centerMasks.isDense(centerVector);
+        return distance(row, center, dense, metric, scratch);
+    }
+
+    private float distance(int row, float[] center, boolean dense, DistanceMetric metric, float[] scratch) {
+        byte[] chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        if (scaling == Scaling.PER_ROW) {
+            return ReducedPrecision.int8Distance(metric, chunk, offset, zeros[row], scales[row], dense,
+                    center, numDims, scratch);
+        }
+        return ReducedPrecision.int8Distance(metric, chunk, offset, zeros, scales, dense, center, numDims,
+                scratch);
+    }
+
+    @Override
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        byte[] chunk = chunks[row / rowsPerChunk];
+        int offset = (row % rowsPerChunk) * numDims;
+        if (scaling == Scaling.PER_ROW) {
+            ReducedPrecision.accumulateInt8(chunk, offset, zeros[row], scales[row], weight,
+                    sums, counts, fromDim, toDim);
+        } else {
+            ReducedPrecision.accumulateInt8(chunk, offset, zeros, scales, weight,
+                    sums, counts, fromDim, toDim);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.data;
+
+import robust.concurrent.kmeans.metric.DistanceMetric;
+import robust.concurrent.kmeans.metric.NanMasks;
+
+import java.util.Arrays;
+
+/**
+ * Coordinates in compressed sparse row (CSR) form: only the defined
+ * values are stored, and every dimension a row does not store is NaN.
+ * Distances visit only a row's stored entries against the dense center
+ * and center updates add only those entries to the sums, so for rows
+ * that are mostly missing the cost of an iteration grows with the number
+ * of stored entries rather than with rows times dimensions, and the NaN
+ * masks hold only the row lengths.  Getting a whole row, as the blocked
+ * distance engine does, still expands it.
+ * Limited to Integer.MAX_VALUE stored entries in total.
+ */
+public class SparseCoordinateStore extends CoordinateStore {
+
+    private final int numRows;
+    private final int numDims;
+    // The entries of row i are rowStarts[i] ... rowStarts[i + 1] - 1.
+    private final int[] rowStarts;
+    // Dimension and value of each entry, ascending by dimension within a
+    // row.
+    private final int[] indices;
+    private final float[] values;
+
+    /**
+     * @param numDims   the number of dimensions.
+     * @param rowStarts index of the first entry of each row, followed by
+     *                  the number of entries; numRows + 1 long.
+     * @param indices   dimension of each entry, strictly ascending within
+     *                  a row.
+     * @param values    value of each entry, which must not be NaN.
+     */
+    public SparseCoordinateStore(int numDims, int[] rowStarts, int[] indices, float[] values) {
+        if (rowStarts.length < 1 || rowStarts[0] != 0 || indices.length != values.length
+                || rowStarts[rowStarts.length - 1] != values.length) {
+            throw new IllegalArgumentException("inconsistent CSR arrays: " + rowStarts.length + " row starts, "
+                    + indices.length + " indices, " + values.length + " values");
+        }
+        for (int i = 0; i + 1 < rowStarts.length; i++) {
+            if (rowStarts[i + 1] < rowStarts[i]) {
+                throw new IllegalArgumentException("row starts decrease at row " + i);
+            }
+            for (int e = rowStarts[i]; e < rowStarts[i + 1]; e++) {
+                if (indices[e] < 0 || indices[e] >= numDims
+                        || (e > rowStarts[i] && indices[e] <= indices[e - 1])) {
+                    throw new IllegalArgumentException("bad or unsorted dimension " + indices[e] + " in row " + i);
+                }
+                if (Float.isNaN(values[e])) {
+                    throw new IllegalArgumentException("NaN stored in row " + i);
+                }
+            }
+        }
+        this.numRows = rowStarts.length - 1;
+        this.numDims = numDims;
+        this.rowStarts = rowStarts;
+        this.indices = indices;
+        this.values = values;
+    }
+
+    /**
+     * Copies the non-NaN values of a two-dimensional array.
+     */
+    public static SparseCoordinateStore copyOf(float[][] rows) {
+        return copyOf(CoordinateStore.of(rows));
+    }
+
+    /**
+     * Copies the non-NaN values of another store.  The source is read
+     * twice, first to count the values.
+     */
+    public static SparseCoordinateStore copyOf(CoordinateStore source) {
+        int numRows = source.numRows();
+        int numDims = source.numDimensions();
+        float[] row = new float[numDims];
+        int[] rowStarts = new int[numRows + 1];
+        long count = 0;
+        for (int i = 0; i < numRows; i++) {
+            source.getRow(i, row);
+            for (float v : row) {
+                if (!Float.isNaN(v)) {
+                    count++;
+                }
+            }
+            if (count > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("too many values for a sparse store: " + count);
+            }
+            rowStarts[i + 1] = (int) count;
+        }
+        int[] indices = new int[(int) count];
+        float[] values = new float[(int) count];
+        for (int i = 0, e = 0; i < numRows; i++) {
+            source.getRow(i, row);
+            for (int j = 0; j < numDims; j++) {
+                if (!Float.isNaN(row[j])) {
+                    indices[e] = j;
+                    values[e++] = row[j];
+                }
+            }
+        }
+        return new SparseCoordinateStore(numDims, rowStarts, indices, values);
+    }
+
+    /**
+     * @return the number of stored entries.
+     */
+    public int numStored() {
+        return values.length;
+    }
+
+    /**
+     * Returns counts-only masks taken from the row lengths: a row's
+     * stored entries are exactly its non-NaN values, so there is no need
+     * to expand the rows, and the distances of this store never use the
+     * bitmasks.
+     */
+    @Override
+    protected NanMasks computeNanMasks() {
+        int[] nonNanCounts = new int[numRows];
+        for (int i = 0; i < numRows; i++) {
+            nonNanCounts[i] = rowStarts[i + 1] - rowStarts[i];
+        }
+        return new NanMasks(nonNanCounts, numDims);
+    }
+
+    @Override
+    public int numRows() {
+        return numRows;
+    }
+
+    @Override
+    public int numDimensions() {
+        return numDims;
+    }
+
+    @Override
+    public float get(int row, int dim) {
+        int e = Arrays.binarySearch(indices, rowStarts[row], rowStarts[row + 1], dim);
+        return e >= 0 ? values[e] : Float.NaN;
+    }
+
+    @Override
+    public void getRow(int row, float[] dest) {
+        getRow(row, dest, 0);
+    }
+
+    @Override
+    public void getRow(int row, float[] dest, int destOffset) {
+        Arrays.fill(dest, destOffset, destOffset + numDims, Float.NaN);
+        for (int e = rowStarts[row]; e < rowStarts[row + 1]; e++) {
+            dest[destOffset + indices[e]] = values[e];
+        }
+    }
+
+    @Override
+    public float distance(int row, float[] center, DistanceMetric metric, float[] scratch) {
+        return metric.sparseDistance(indices, values, rowStarts[row], rowStarts[row + 1],
+                center, null, 0, numDims);
+    }
+
+    @Override
+    public float distance(int row, float[] center, NanMasks centerMasks, int centerVector,
+                          DistanceMetric metric, float[] scratch) {
+        return metric.sparseDistance(indices, values, rowStarts[row], rowStarts[row + 1],
+                center, centerMasks, centerVector, numDims);
+    }
+
+    @Override
+    public void accumulate(int row, int weight, double[] sums, int[] counts, int fromDim, int toDim) {
+        int from = rowStarts[row];
+        int to = rowStarts[row + 1];
+        if (fromDim > 0 || toDim < numDims) {
+            // Narrow to the entries within the range of dimensions.
+            from = firstEntry(from, to, fromDim);
+            to = firstEntry(from, to, toDim);
+        }
+        for (int e = from; e < to; e++) {
+            int j = indices[e];
+            sums[j] += weight * (double) values[e];
+            counts[j] += weight;
+        }
+    }
+
+    /**
+     * Returns the first of the entries from ... to - 1 whose dimension is
+     * at least dim, or to if there is none.
+     */
+    private int firstEntry(int from, int to, int dim) {
+        int e = Arrays.binarySearch(indices, from, to, dim);
+        return e >= 0 ? e : -e - 1;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.metric;
+
+/**
+ * Inner loops of the robust metrics.  Three implementations are
+ * provided: a scalar one that accumulates into a single sum; a
+ * lane-parallel one that keeps four independent partial sums and replaces
+ * the NaN test with a branch-free select, so the loop is not serialized on
+ * a single dependency chain; and one on the incubating Vector API
+ * ({@code jdk.incubator.vector}), which skips NaNs with lane masks.  The
+ * Vector API kernels are compiled separately from the vector source root
+ * and loaded by name, so they are only available on Java 16 or later with
+ * the module added ({@code --add-modules jdk.incubator.vector}) and the
+ * classes on the class path.
+ * <p>
+ * The implementation used by default is chosen at class initialization
+ * from the system property {@code robust.concurrent.kmeans.kernels}
+ * ("vector", "lanes" or "scalar").  Without the property the Vector API
+ * kernels are used if they can be loaded, and the scalar ones otherwise.
+ * The implementations sum in different orders, so their results differ in
+ * the last bits.
+ */
+public abstract class DistanceKernels {
+
+    public static final DistanceKernels SCALAR = new Scalar();
+    public static final DistanceKernels LANES = new Lanes();
+    /**
+     * The Vector API kernels, or null if they cannot be loaded.
+     */
+    public static final DistanceKernels VECTOR = loadVector();
+    public static final DistanceKernels DEFAULT = select();
+
+    private static DistanceKernels loadVector() {
+        try {
+            return (DistanceKernels) Class.forName("robust.concurrent.kmeans.metric.VectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+            // Not compiled in, or the jdk.incubator.vector module is missing.
+            return null;
+        }
+    }
+
+    private static DistanceKernels select() {
+        String choice = null;
+        try {
+            choice = System.getProperty("robust.concurrent.kmeans.kernels");
+        } catch (SecurityException ignored) {
+        }
+        if ("scalar".equalsIgnoreCase(choice)) {
+            return SCALAR;
+        }
+        if ("lanes".equalsIgnoreCase(choice)) {
+            return LANES;
+        }
+        return VECTOR != null ? VECTOR : SCALAR;
+    }
+
+    /**
+     * Sum of squared differences of two vectors without NaNs.
+     */
+    public abstract double denseSumOfSquares(float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Sum of absolute differences of two vectors without NaNs.
+     */
+    public abstract double denseSumOfAbs(float[] x, int xOffset, float[] y, int yOffset, int length);
+
+    /**
+     * Mean of the squared differences over the dimensions where the
+     * difference is not NaN, multiplied by the length; Float.MAX_VALUE if
+     * there are no such dimensions.
+     */
+    public abstract double nonNanMeanSquaredError(float[] x, int xOffset, float[] y, int length);
+
+    /**
+     * Mean of the absolute differences over the dimensions where the
+     * difference is not NaN; Float.MAX_VALUE if there are no such
+     * dimensions.
+     */
+    public abstract double nonNanMeanAbsoluteError(float[] x, int xOffset, float[] y, int length);
+
+    private static final class Scalar extends DistanceKernels {
+
+        @Override
+        public double denseSumOfSquares(float[] x, int xOffset, float[] y, int yOffset, int length) {
+            double sumOfSquares = 0;
+            for (int i = 0; i < length; i++) {
+                final float v = x[xOffset + i] - y[yOffset + i];
+                sumOfSquares += (v * v);
+            }
+            return sumOfSquares;
+        }
+
+        @Override
+        public double denseSumOfAbs(float[] x, int xOffset, float[] y, int yOffset, int length) {
+            double sumOfError = 0;
+            for (int i = 0; i < length; i++) {
+                sumOfError += Math.abs(x[xOffset + i] - y[yOffset + i]);
+            }
+            return sumOfError;
+        }
+
+        @Override
+        public double nonNanMeanSquaredError(float[] x, int xOffset, float[] y, int length) {
+            double sumOfSquares = 0;
+            int numVals = 0;
+            for (int i = 0; i < length; i++) {
+                final float v = x[xOffset + i] - y[i];
+                if (!Float.isNaN(v)) {
+                    sumOfSquares += (v * v);
+                    numVals++;
+                }
+            }
+            if (numVals < 1) {
+                return Float.MAX_VALUE;
+            }
+            return length * sumOfSquares / numVals;
+        }
+
+        @Override
+        public double nonNanMeanAbsoluteError(float[] x, int xOffset, float[] y, int length) {
+            double sumOfError = 0;
+            int numDiffs = 0;
+            for (int i = 0; i < length; i++) {
+                float diff = x[xOffset + i] - y[i];
+                if (!Float.isNaN(diff)) {
+                    sumOfError += Math.abs(diff);
+                    numDiffs++;
+                }
+            }
+            if (numDiffs < 1) {
+                return Float.MAX_VALUE;
+            }
+            return sumOfError / numDiffs;
+        }
+    }
+
+    private static final class Lanes extends DistanceKernels {
+
+        @Override
+        public double denseSumOfSquares(float[] x, int xOffset, float[] y, int yOffset, int length) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                final float v0 = x[xOffset + i] - y[yOffset + i];
+                final float v1 = x[xOffset + i + 1] - y[yOffset + i + 1];
+                final float v2 = x[xOffset + i + 2] - y[yOffset + i + 2];
+                final float v3 = x[xOffset + i + 3] - y[yOffset + i + 3];
+                s0 += v0 * v0;
+                s1 += v1 * v1;
+                s2 += v2 * v2;
+                s3 += v3 * v3;
+            }
+            for (; i < length; i++) {
+                final float v = x[xOffset + i] - y[yOffset + i];
+                s0 += v * v;
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double denseSumOfAbs(float[] x, int xOffset, float[] y, int yOffset, int length) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                s0 += Math.abs(x[xOffset + i] - y[yOffset + i]);
+                s1 += Math.abs(x[xOffset + i + 1] - y[yOffset + i + 1]);
+                s2 += Math.abs(x[xOffset + i + 2] - y[yOffset + i + 2]);
+                s3 += Math.abs(x[xOffset + i + 3] - y[yOffset + i + 3]);
+            }
+            for (; i < length; i++) {
+                s0 += Math.abs(x[xOffset + i] - y[yOffset + i]);
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double nonNanMeanSquaredError(float[] x, int xOffset, float[] y, int length) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            int i = 0;
+            // A NaN difference is the only value not equal to itself; the
+            // selects below compile to conditional moves, not branches.
+            for (; i + 4 <= length; i += 4) {
+                final float v0 = x[xOffset + i] - y[i];
+                final float v1 = x[xOffset + i + 1] - y[i + 1];
+                final float v2 = x[xOffset + i + 2] - y[i + 2];
+                final float v3 = x[xOffset + i + 3] - y[i + 3];
+                s0 += v0 == v0 ? v0 * v0 : 0f;
+                s1 += v1 == v1 ? v1 * v1 : 0f;
+                s2 += v2 == v2 ? v2 * v2 : 0f;
+                s3 += v3 == v3 ? v3 * v3 : 0f;
+                c0 += v0 == v0 ? 1 : 0;
+                c1 += v1 == v1 ? 1 : 0;
+                c2 += v2 == v2 ? 1 : 0;
+                c3 += v3 == v3 ? 1 : 0;
+            }
+            for (; i < length; i++) {
+                final float v = x[xOffset + i] - y[i];
+                s0 += v == v ? v * v : 0f;
+                c0 += v == v ? 1 : 0;
+            }
+            int numVals = (c0 + c1) + (c2 + c3);
+            if (numVals < 1) {
+                return Float.MAX_VALUE;
+            }
+            return length * ((s0 + s1) + (s2 + s3)) / numVals;
+        }
+
+        @Override
+        public double nonNanMeanAbsoluteError(float[] x, int xOffset, float[] y, int length) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                final float v0 = x[xOffset + i] - y[i];
+                final float v1 = x[xOffset + i + 1] - y[i + 1];
+                final float v2 = x[xOffset + i + 2] - y[i + 2];
+                final float v3 = x[xOffset + i + 3] - y[i + 3];
+                s0 += v0 == v0 ? Math.abs(v0) : 0f;
+                s1 += v1 == v1 ? Math.abs(v1) : 0f;
+                s2 += v2 == v2 ? Math.abs(v2) : 0f;
+                s3 += v3 == v3 ? Math.abs(v3) : 0f;
+                c0 += v0 == v0 ? 1 : 0;
+                c1 += v1 == v1 ? 1 : 0;
+                c2 += v2 == v2 ? 1 : 0;
+                c3 += v3 == v3 ? 1 : 0;
+            }
+            for (; i < length; i++) {
+                final float v = x[xOffset + i] - y[i];
+                s0 += v == v ? Math.abs(v) : 0f;
+                c0 += v == v ? 1 : 0;
+            }
+            int numDiffs = (c0 + c1) + (c2 + c3);
+            if (numDiffs < 1) {
+                return Float.MAX_VALUE;
+            }
+            return ((s0 + s1) + (s2 + s3)) / numDiffs;
+        }
+    }
+}
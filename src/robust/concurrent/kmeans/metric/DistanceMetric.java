@@ -24,6 +24,98 @@
 
 package robust.concurrent.kmeans.metric;
 
+import java.util.Arrays;
+
 public abstract class DistanceMetric {
     abstract public float distance(final float[] x, final float[] y);
+
+    /**
+     * Distance between the vector of the given length starting at
+     * xOffset in x, and the vector y.  Lets row-major flat storage be
+     * used without copying rows.  By default the vector is copied out of
+     * x unless it spans all of it, and passed to distance(x, y); the
+     * robust metrics override this with kernels that read x in place.
+     */
+    public float distance(final float[] x, final int xOffset, final float[] y, final int length) {
+        float[] vector = xOffset == 0 && x.length == length ? x : Arrays.copyOfRange(x, xOffset, xOffset + length);
+        return distance(vector, y.length == length ? y : Arrays.copyOf(y, length));
+    }
+
+    /**
+     * Distance between two vectors using their precomputed NaN masks.
+     * Pairs of dense vectors go through denseDistance, other pairs
+     * through maskedDistance, which the robust metrics implement with
+     * kernels that skip the NaN checks or only visit the dimensions where
+     * both are defined.
+     *
+     * @param x       array holding the first vector.
+     * @param xOffset index in x of the first value of the vector.
+     * @param xMasks  masks describing the first vector.
+     * @param xVector index of the first vector in xMasks.
+     * @param y       the second vector.
+     * @param yMasks  masks describing the second vector.
+     * @param yVector index of the second vector in yMasks.
+     */
+    public float distance(final float[] x, final int xOffset, final NanMasks xMasks, final int xVector,
+                          final float[] y, final NanMasks yMasks, final int yVector) {
+        int length = xMasks.getLength();
+        if (xMasks.isAllNaN(xVector) || yMasks.isAllNaN(yVector)) {
+            // No bitmask is kept for vectors that are entirely NaN.
+            return distance(x, xOffset, y, length);
+        }
+        if (xMasks.isDense(xVector) && yMasks.isDense(yVector)) {
+            return denseDistance(x, xOffset, y, length);
+        }
+        return maskedDistance(x, xOffset, xMasks.bitsOf(xVector), xMasks.wordOffset(xVector),
+                y, yMasks.bitsOf(yVector), yMasks.wordOffset(yVector), length);
+    }
+
+    /**
+     * Distance between a sparse vector, of which only the defined values
+     * are stored, and a dense vector.  By default the entries are expanded
+     * into a vector with NaN elsewhere, which is passed to
+     * distance(x, xOffset, y, length).  The robust metrics override this
+     * to visit only the stored entries, so the cost grows with their
+     * number rather than with the length, and rescale the sum by the
+     * number of dimensions defined in both vectors, as for dense vectors.
+     *
+     * @param indices dimensions of the stored entries, ascending within
+     *                the vector.
+     * @param values  the stored values, which must not be NaN.
+     * @param from    index in indices and values of the vector's first
+     *                entry.
+     * @param to      end of the vector's entries.
+     * @param y       the dense vector.
+     * @param yMasks  masks describing y, or null if y may hold NaNs.
+     * @param yVector index of y in yMasks.
+     * @param length  the number of dimensions.
+     */
+    public float sparseDistance(final int[] indices, final float[] values, final int from, final int to,
+                                final float[] y, final NanMasks yMasks, final int yVector, final int length) {
+        float[] x = new float[length];
+        Arrays.fill(x, Float.NaN);
+        for (int e = from; e < to; e++) {
+            x[indices[e]] = values[e];
+        }
+        return distance(x, 0, y, length);
+    }
+
+    /**
+     * Distance between two vectors known to have no NaNs.  By default the
+     * same as distance(x, xOffset, y, length).
+     */
+    public float denseDistance(final float[] x, final int xOffset, final float[] y, final int length) {
+        return distance(x, xOffset, y, length);
+    }
+
+    /**
+     * Distance between two vectors over the dimensions where neither
+     * NaN bitmask is set.  A null bitmask means the vector is dense.  By
+     * default the bitmasks are ignored and the values, NaNs included, are
+     * passed to distance(x, xOffset, y, length).
+     */
+    protected float maskedDistance(final float[] x, final int xOffset, final long[] xBits, final int xWord,
+                                   final float[] y, final long[] yBits, final int yWord, final int length) {
+        return distance(x, xOffset, y, length);
+    }
 }
@@ -0,0 +1,187 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.metric;
+
+import java.util.Arrays;
+
+/**
+ * NaN bitmasks and non-NaN counts for a set of vectors of equal length,
+ * computed once so that the distance kernels do not need to test every
+ * value.  Only vectors that mix NaNs and numbers are given a bitmask;
+ * dense vectors and vectors that are entirely NaN are described by their
+ * count alone.  Masks built from the counts alone keep no bitmasks at
+ * all, for stores that never hand their rows to the masked kernels.
+ */
+public class NanMasks {
+
+    private final int length;
+    private final int wordsPerVector;
+    // Number of non-NaN values of each vector.
+    private final int[] nonNanCounts;
+    // Index of each vector's first word in bits, or -1 if the vector
+    // has never needed a bitmask; null if only the counts are kept.
+    private final int[] slots;
+    // Bitmasks of the mixed vectors; a set bit marks a NaN.
+    private long[] bits;
+    private int usedWords;
+
+    /**
+     * @param numVectors the number of vectors described.
+     * @param length     the number of values in each vector.
+     */
+    public NanMasks(int numVectors, int length) {
+        this.length = length;
+        wordsPerVector = (length + 63) >>> 6;
+        nonNanCounts = new int[numVectors];
+        slots = new int[numVectors];
+        Arrays.fill(slots, -1);
+        bits = new long[0];
+    }
+
+    /**
+     * Describes vectors by their non-NaN counts alone, without bitmasks,
+     * so that the cost does not grow with the length.  isDense() and
+     * isAllNaN() work as usual, but the masks cannot be updated, nor
+     * passed to the masked distance kernels for vectors that mix NaNs
+     * and numbers.
+     *
+     * @param nonNanCounts the number of non-NaN values of each vector,
+     *                     which is kept, not copied.
+     * @param length       the number of values in each vector.
+     */
+    public NanMasks(int[] nonNanCounts, int length) {
+        this.length = length;
+        wordsPerVector = (length + 63) >>> 6;
+        this.nonNanCounts = nonNanCounts;
+        slots = null;
+        bits = new long[0];
+    }
+
+    /**
+     * Recomputes the mask of a vector from its values.  Not thread-safe
+     * with respect to other updates of the same NanMasks.
+     *
+     * @param vector index of the vector.
+     * @param values array holding the values.
+     * @param offset index in values of the first value of the vector.
+     */
+    public void update(int vector, float[] values, int offset) {
+        if (slots == null) {
+            throw new UnsupportedOperationException("Masks built from counts alone cannot be updated");
+        }
+        int count = 0;
+        for (int j = 0; j < length; j++) {
+            if (!Float.isNaN(values[offset + j])) {
+                count++;
+            }
+        }
+        nonNanCounts[vector] = count;
+        if (count == length || count == 0) {
+            return;
+        }
+        int slot = slots[vector];
+        if (slot < 0) {
+            if ((long) usedWords + wordsPerVector > Integer.MAX_VALUE - 8) {
+                throw new OutOfMemoryError("NaN bitmasks exceed the largest array size");
+            }
+            if (usedWords + wordsPerVector > bits.length) {
+                bits = Arrays.copyOf(bits, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max(2L * bits.length, usedWords + wordsPerVector)));
+            }
+            slot = usedWords;
+            usedWords += wordsPerVector;
+            slots[vector] = slot;
+        }
+        for (int w = 0; w < wordsPerVector; w++) {
+            long word = 0L;
+            int base = w << 6;
+            int lim = Math.min(64, length - base);
+            for (int b = 0; b < lim; b++) {
+                if (Float.isNaN(values[offset + base + b])) {
+                    word |= 1L << b;
+                }
+            }
+            bits[slot + w] = word;
+        }
+    }
+
+    /**
+     * Releases the spare capacity left by update().
+     */
+    public void trim() {
+        if (bits.length > usedWords) {
+            bits = Arrays.copyOf(bits, usedWords);
+        }
+    }
+
+    /**
+     * @return the number of values in each vector.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the number of non-NaN values in the vector.
+     */
+    public int getNonNanCount(int vector) {
+        return nonNanCounts[vector];
+    }
+
+    /**
+     * @return true if the vector has no NaNs.
+     */
+    public boolean isDense(int vector) {
+        return nonNanCounts[vector] == length;
+    }
+
+    /**
+     * @return true if every value of the vector is NaN.
+     */
+    public boolean isAllNaN(int vector) {
+        return nonNanCounts[vector] == 0;
+    }
+
+    /**
+     * @return the array holding the vector's bitmask, or null if the
+     * vector is dense.
+     */
+    long[] bitsOf(int vector) {
+        if (nonNanCounts[vector] == length) {
+            return null;
+        }
+        if (slots == null) {
+            throw new UnsupportedOperationException("Masks built from counts alone have no bitmasks");
+        }
+        return bits;
+    }
+
+    /**
+     * @return the index of the vector's first word in bitsOf(vector).
+     */
+    int wordOffset(int vector) {
+        return slots[vector];
+    }
+}
@@ -25,10 +25,21 @@
 
 package robust.concurrent.kmeans.metric;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Median of float values by selection rather than sorting.  Selection
+ * uses median-of-three pivots and three-way partitioning, so sorted and
+ * constant input stay linear, and switches to sorting if the partitions
+ * stop shrinking (introselect).  None of the methods allocate, except
+ * fastMedian(List).
+ */
 public class QuickMedian {
 
+    // Ranges at most this long are finished by insertion sort.
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
     public static float fastMedian(List<Float> list) {
         int size = list.size();
         if (size < 1) {
@@ -46,46 +57,97 @@ public class QuickMedian {
     }
 
     public static float fastMedian(float[] arr) {
-        int len = arr.length;
-        if (len % 2 == 1) {
-            return kSelection(arr, 0, len - 1, len / 2);
-        } else {
-            float a = kSelection(arr, 0, len - 1, len / 2);
-            float b = kSelection(arr, 0, len - 1, len / 2 - 1);
-            return (a + b) / 2;
+        return median(arr, arr.length);
+    }
+
+    /**
+     * Returns the median of the first length values of the array, which
+     * are reordered.  For an even number of values, returns the mean of
+     * the two middle values; the lower one is found by a scan of the
+     * values left of the upper one once that one is selected.
+     *
+     * @param values the values, which must not be NaN.
+     * @param length the number of values.
+     * @return the median, or NaN if length is 0.
+     */
+    public static float median(float[] values, int length) {
+        if (length < 1) {
+            return Float.NaN;
+        }
+        int k = length / 2;
+        select(values, 0, length - 1, k);
+        float upper = values[k];
+        if (length % 2 == 1) {
+            return upper;
+        }
+        float lower = values[0];
+        for (int i = 1; i < k; i++) {
+            if (values[i] > lower) {
+                lower = values[i];
+            }
         }
+        return (upper + lower) / 2;
     }
 
     public static float kSelection(float[] arr, int low, int high, int k) {
-        int localLow = low;
-        int localHigh = high;
+        select(arr, low, high, k);
+        return arr[k];
+    }
 
-        int partitionSortingValue = partition(arr, localLow, localHigh);
-        while (partitionSortingValue != k) {
-            if (partitionSortingValue < k) {
-                localLow = partitionSortingValue + 1;
+    /**
+     * Reorders values[low] ... values[high] so that values[k] holds the
+     * value it would hold if the range were sorted, with no greater value
+     * before it and no smaller value after it.
+     */
+    public static void select(float[] values, int low, int high, int k) {
+        int depthLimit = 2 * (32 - Integer.numberOfLeadingZeros(high - low + 1));
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            if (depthLimit-- == 0) {
+                Arrays.sort(values, low, high + 1);
+                return;
+            }
+            float pivot = medianOfThree(values[low], values[(low + high) >>> 1], values[high]);
+            // Three-way partition: values[low, lt) < pivot,
+            // values[lt, gt] == pivot and values(gt, high] > pivot.
+            int lt = low;
+            int gt = high;
+            int i = low;
+            while (i <= gt) {
+                float v = values[i];
+                if (v < pivot) {
+                    values[i++] = values[lt];
+                    values[lt++] = v;
+                } else if (v > pivot) {
+                    values[i] = values[gt];
+                    values[gt--] = v;
+                } else {
+                    i++;
+                }
+            }
+            if (k < lt) {
+                high = lt - 1;
+            } else if (k > gt) {
+                low = gt + 1;
             } else {
-                localHigh = partitionSortingValue - 1;
+                return;
             }
-            partitionSortingValue = partition(arr, localLow, localHigh);
         }
-        return arr[partitionSortingValue];
+        for (int i = low + 1; i <= high; i++) {
+            float v = values[i];
+            int j = i - 1;
+            while (j >= low && values[j] > v) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = v;
+        }
     }
 
-    static int partition(float[] arr, int low, int high) {
-        float pivot = arr[high];
-        int z = (low - 1);
-        for (int j = low; j < high; j++) {
-            if (arr[j] < pivot) {
-                z++;
-                float temp = arr[z];
-                arr[z] = arr[j];
-                arr[j] = temp;
-            }
+    private static float medianOfThree(float a, float b, float c) {
+        if (a < b) {
+            return b < c ? b : Math.max(a, c);
+        } else {
+            return a < c ? a : Math.max(b, c);
         }
-        float temp = arr[z + 1];
-        arr[z + 1] = arr[high];
-        arr[high] = temp;
-        return z + 1;
     }
 }
@@ -0,0 +1,651 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.metric;
+
+/**
+ * Conversions between floats and the reduced-precision codes of the
+ * compressed coordinate stores, and the loops that decode a run of codes
+ * on the fly, either into a float buffer, straight into the double sums
+ * of a center update, or straight into a robust distance to a center,
+ * so a scan reads each code once and never writes a decoded row.
+ * <p>
+ * Half precision (IEEE 754 binary16) keeps 11 significant bits: a
+ * normal value v (6.1e-5 &lt;= |v| &lt;= 65504) is decoded with a
+ * relative error of at most 2^-11 (4.9e-4), smaller values with an
+ * absolute error of at most 2^-25, and larger values are clamped to
+ * +-65504.  NaN stays NaN.
+ * <p>
+ * The 8-bit codes are affine: a value is zero + scale * code with code in
+ * [-127, 127], and code -128 is reserved for NaN.  With scale =
+ * (max - min) / 254 over the values sharing a scale, every value is
+ * decoded with an absolute error of at most scale / 2.
+ * <p>
+ * By the triangle inequality, a robust euclidean distance computed from
+ * decoded values differs from the exact one by at most sqrt(D) times the
+ * largest error of a value, and a robust manhattan distance by at most D
+ * times it, where D is the number of dimensions.
+ */
+public final class ReducedPrecision {
+
+    /**
+     * The 8-bit code of a missing value.
+     */
+    public static final byte NAN_CODE = Byte.MIN_VALUE;
+    /**
+     * The largest magnitude of an 8-bit code.
+     */
+    public static final int MAX_CODE = 127;
+
+    // The half precision code of NaN and the largest finite magnitude.
+    private static final short HALF_NAN = 0x7e00;
+    private static final float HALF_MAX = 65504f;
+
+    private ReducedPrecision() {
+    }
+
+    /**
+     * Converts a float to half precision, rounding to nearest even.
+     * Finite values beyond the half precision range are clamped to
+     * +-65504, so they do not turn into infinities.
+     */
+    public static short toHalf(float value) {
+        if (Float.isNaN(value)) {
+            return HALF_NAN;
+        }
+        if (!Float.isInfinite(value)) {
+            value = Math.max(-HALF_MAX, Math.min(HALF_MAX, value));
+        }
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+        if (exponent >= 0x1f) {
+            // Infinity.
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                // Rounds to zero.
+                return (short) sign;
+            }
+            // Subnormal: shift in the implicit bit and round.
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (rest > midpoint || (rest == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (exponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            // May carry into the exponent, which is still correct.
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts a half precision value to a float, exactly.
+     */
+    public static float fromHalf(short half) {
+        int magnitude = half & 0x7fff;
+        int sign = (half & 0x8000) << 16;
+        if (magnitude >= 0x7c00) {
+            // Infinity or NaN.
+            return Float.intBitsToFloat(sign | 0x7f800000 | ((magnitude & 0x3ff) << 13));
+        }
+        // Read as a float, the shifted bits carry an exponent 112 too
+        // small; zero and subnormals come out as float subnormals, which
+        // the multiplication rescales exactly as well.
+        float value = Float.intBitsToFloat(magnitude << 13) * 0x1p112f;
+        return Float.intBitsToFloat(Float.floatToRawIntBits(value) | sign);
+    }
+
+    /**
+     * Decodes length half precision values starting at offset.
+     */
+    public static void decodeHalf(short[] codes, int offset, float[] dest, int destOffset, int length) {
+        for (int j = 0; j < length; j++) {
+            dest[destOffset + j] = fromHalf(codes[offset + j]);
+        }
+    }
+
+    /**
+     * Adds the decoded non-NaN values of dimensions fromDim to toDim of a
+     * row of half precision values starting at offset, multiplied by the
+     * weight, to the sums, and the weight to their counts.
+     */
+    public static void accumulateHalf(short[] codes, int offset, int weight, double[] sums, int[] counts,
+                                      int fromDim, int toDim) {
+        for (int j = fromDim; j < toDim; j++) {
+            short code = codes[offset + j];
+            // A NaN has all exponent bits and some mantissa bits set.
+            if ((code & 0x7fff) <= 0x7c00) {
+                sums[j] += weight * (double) fromHalf(code);
+                counts[j] += weight;
+            }
+        }
+    }
+
+    /**
+     * Distance between a row of half precision values starting at offset
+     * and y.  The robust metrics are computed straight from the codes;
+     * any other metric gets the row decoded into the scratch buffer.
+     *
+     * @param metric  the distance metric.
+     * @param codes   array holding the row.
+     * @param offset  index in codes of the row's first value.
+     * @param dense   true if neither the row nor y holds NaNs, which skips
+     *                the NaN checks.
+     * @param y       the vector.
+     * @param length  the number of dimensions.
+     * @param scratch array of at least length values the row may be
+     *                decoded into.
+     */
+    public static float halfDistance(DistanceMetric metric, short[] codes, int offset, boolean dense,
+                                     float[] y, int length, float[] scratch) {
+        Class<?> type = metric.getClass();
+        if (type == RobustEuclideanDistance.class) {
+            return (float) Math.sqrt(dense ? halfSumOfSquares(codes, offset, y, length)
+                    : halfMeanSquaredError(codes, offset, y, length));
+        }
+        if (type == RobustManhattanDistance.class) {
+            return dense ? (float) halfSumOfAbs(codes, offset, y, length)
+                    : RobustManhattanDistance.toDistance(halfMeanAbsoluteError(codes, offset, y, length), length);
+        }
+        decodeHalf(codes, offset, scratch, 0, length);
+        return dense ? metric.denseDistance(scratch, 0, y, length) : metric.distance(scratch, 0, y, length);
+    }
+
+    /**
+     * Sum of the squared differences between a row of half precision
+     * values starting at offset and y, neither of which may hold NaNs.
+     * Adds in the same order as the scalar dense kernel does on the
+     * decoded row, so both give the same result.
+     */
+    private static double halfSumOfSquares(short[] codes, int offset, float[] y, int length) {
+        double sumOfSquares = 0;
+        for (int j = 0; j < length; j++) {
+            final float v = fromHalf(codes[offset + j]) - y[j];
+            sumOfSquares += (v * v);
+        }
+        return sumOfSquares;
+    }
+
+    /**
+     * Sum of the absolute differences between a row of half precision
+     * values starting at offset and y, neither of which may hold NaNs.
+     */
+    private static double halfSumOfAbs(short[] codes, int offset, float[] y, int length) {
+        double sumOfError = 0;
+        for (int j = 0; j < length; j++) {
+            sumOfError += Math.abs(fromHalf(codes[offset + j]) - y[j]);
+        }
+        return sumOfError;
+    }
+
+    /**
+     * Mean squared difference between a row of half precision values
+     * starting at offset and y, over the dimensions where neither is NaN,
+     * multiplied by the length; Float.MAX_VALUE if there are no such
+     * dimensions.  Same contract as DistanceKernels.nonNanMeanSquaredError.
+     */
+    private static double halfMeanSquaredError(short[] codes, int offset, float[] y, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int j = 0;
+        // The same selects as DistanceKernels.LANES.
+        for (; j + 4 <= length; j += 4) {
+            final float v0 = fromHalf(codes[offset + j]) - y[j];
+            final float v1 = fromHalf(codes[offset + j + 1]) - y[j + 1];
+            final float v2 = fromHalf(codes[offset + j + 2]) - y[j + 2];
+            final float v3 = fromHalf(codes[offset + j + 3]) - y[j + 3];
+            final boolean ok0 = v0 == v0;
+            final boolean ok1 = v1 == v1;
+            final boolean ok2 = v2 == v2;
+            final boolean ok3 = v3 == v3;
+            s0 += ok0 ? v0 * v0 : 0f;
+            s1 += ok1 ? v1 * v1 : 0f;
+            s2 += ok2 ? v2 * v2 : 0f;
+            s3 += ok3 ? v3 * v3 : 0f;
+            c0 += ok0 ? 1 : 0;
+            c1 += ok1 ? 1 : 0;
+            c2 += ok2 ? 1 : 0;
+            c3 += ok3 ? 1 : 0;
+        }
+        for (; j < length; j++) {
+            final float v = fromHalf(codes[offset + j]) - y[j];
+            final boolean ok = v == v;
+            s0 += ok ? v * v : 0f;
+            c0 += ok ? 1 : 0;
+        }
+        int numVals = (c0 + c1) + (c2 + c3);
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return length * ((s0 + s1) + (s2 + s3)) / numVals;
+    }
+
+    /**
+     * Mean absolute difference between a row of half precision values
+     * starting at offset and y, over the dimensions where neither is NaN;
+     * Float.MAX_VALUE if there are no such dimensions.  Same contract as
+     * DistanceKernels.nonNanMeanAbsoluteError.
+     */
+    private static double halfMeanAbsoluteError(short[] codes, int offset, float[] y, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int j = 0;
+        for (; j + 4 <= length; j += 4) {
+            final float v0 = fromHalf(codes[offset + j]) - y[j];
+            final float v1 = fromHalf(codes[offset + j + 1]) - y[j + 1];
+            final float v2 = fromHalf(codes[offset + j + 2]) - y[j + 2];
+            final float v3 = fromHalf(codes[offset + j + 3]) - y[j + 3];
+            final boolean ok0 = v0 == v0;
+            final boolean ok1 = v1 == v1;
+            final boolean ok2 = v2 == v2;
+            final boolean ok3 = v3 == v3;
+            s0 += ok0 ? Math.abs(v0) : 0f;
+            s1 += ok1 ? Math.abs(v1) : 0f;
+            s2 += ok2 ? Math.abs(v2) : 0f;
+            s3 += ok3 ? Math.abs(v3) : 0f;
+            c0 += ok0 ? 1 : 0;
+            c1 += ok1 ? 1 : 0;
+            c2 += ok2 ? 1 : 0;
+            c3 += ok3 ? 1 : 0;
+        }
+        for (; j < length; j++) {
+            final float v = fromHalf(codes[offset + j]) - y[j];
+            final boolean ok = v == v;
+            s0 += ok ? Math.abs(v) : 0f;
+            c0 += ok ? 1 : 0;
+        }
+        int numVals = (c0 + c1) + (c2 + c3);
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return ((s0 + s1) + (s2 + s3)) / numVals;
+    }
+
+    /**
+     * Returns the scale that maps the range [min, max] onto the 8-bit
+     * codes, or 0 if the range is a single value or empty.
+     */
+    public static float int8Scale(float min, float max) {
+        return max > min ? (max - min) / (2 * MAX_CODE) : 0f;
+    }
+
+    /**
+     * Converts a value to an 8-bit code with the given zero and scale.
+     */
+    public static byte toInt8(float value, float zero, float scale) {
+        if (Float.isNaN(value)) {
+            return NAN_CODE;
+        }
+        if (scale == 0) {
+            return 0;
+        }
+        long code = Math.round((value - zero) / scale);
+        return (byte) Math.max(-MAX_CODE, Math.min(MAX_CODE, code));
+    }
+
+    /**
+     * Converts an 8-bit code back to a value.
+     */
+    public static float fromInt8(byte code, float zero, float scale) {
+        return code == NAN_CODE ? Float.NaN : zero + scale * code;
+    }
+
+    /**
+     * Decodes length 8-bit codes starting at offset that share one zero
+     * and scale, as in a row-scaled store.
+     */
+    public static void decodeInt8(byte[] codes, int offset, float zero, float scale,
+                                  float[] dest, int destOffset, int length) {
+        for (int j = 0; j < length; j++) {
+            byte code = codes[offset + j];
+            dest[destOffset + j] = code == NAN_CODE ? Float.NaN : zero + scale * code;
+        }
+    }
+
+    /**
+     * Decodes length 8-bit codes starting at offset, each dimension with
+     * its own zero and scale, as in a column-scaled store.
+     */
+    public static void decodeInt8(byte[] codes, int offset, float[] zeros, float[] scales,
+                                  float[] dest, int destOffset, int length) {
+        for (int j = 0; j < length; j++) {
+            byte code = codes[offset + j];
+            dest[destOffset + j] = code == NAN_CODE ? Float.NaN : zeros[j] + scales[j] * code;
+        }
+    }
+
+    /**
+     * Adds the decoded values of dimensions fromDim to toDim of a row of
+     * 8-bit codes starting at offset that share one zero and scale,
+     * multiplied by the weight, to the sums, and the weight to the counts
+     * of the dimensions that are not NaN.
+     */
+    public static void accumulateInt8(byte[] codes, int offset, float zero, float scale, int weight,
+                                      double[] sums, int[] counts, int fromDim, int toDim) {
+        for (int j = fromDim; j < toDim; j++) {
+            byte code = codes[offset + j];
+            if (code != NAN_CODE) {
+                sums[j] += weight * (double) (zero + scale * code);
+                counts[j] += weight;
+            }
+        }
+    }
+
+    /**
+     * Same as accumulateInt8 with a single zero and scale, for a row of
+     * codes with a zero and scale per dimension.
+     */
+    public static void accumulateInt8(byte[] codes, int offset, float[] zeros, float[] scales, int weight,
+                                      double[] sums, int[] counts, int fromDim, int toDim) {
+        for (int j = fromDim; j < toDim; j++) {
+            byte code = codes[offset + j];
+            if (code != NAN_CODE) {
+                sums[j] += weight * (double) (zeros[j] + scales[j] * code);
+                counts[j] += weight;
+            }
+        }
+    }
+
+    /**
+     * Same as halfDistance, for a row of 8-bit codes starting at offset
+     * that share one zero and scale.
+     */
+    public static float int8Distance(DistanceMetric metric, byte[] codes, int offset, float zero, float scale,
+                                     boolean dense, float[] y, int length, float[] scratch) {
+        Class<?> type = metric.getClass();
+        if (type == RobustEuclideanDistance.class) {
+            return (float) Math.sqrt(dense ? int8SumOfSquares(codes, offset, zero, scale, y, length)
+                    : int8MeanSquaredError(codes, offset, zero, scale, y, length));
+        }
+        if (type == RobustManhattanDistance.class) {
+            return dense ? (float) int8SumOfAbs(codes, offset, zero, scale, y, length)
+                    : RobustManhattanDistance.toDistance(
+                    int8MeanAbsoluteError(codes, offset, zero, scale, y, length), length);
+        }
+        decodeInt8(codes, offset, zero, scale, scratch, 0, length);
+        return dense ? metric.denseDistance(scratch, 0, y, length) : metric.distance(scratch, 0, y, length);
+    }
+
+    /**
+     * Same as halfDistance, for a row of 8-bit codes starting at offset
+     * with a zero and scale per dimension.
+     */
+    public static float int8Distance(DistanceMetric metric, byte[] codes, int offset, float[] zeros,
+                                     float[] scales, boolean dense, float[] y, int length, float[] scratch) {
+        Class<?> type = metric.getClass();
+        if (type == RobustEuclideanDistance.class) {
+            return (float) Math.sqrt(dense ? int8SumOfSquares(codes, offset, zeros, scales, y, length)
+                    : int8MeanSquaredError(codes, offset, zeros, scales, y, length));
+        }
+        if (type == RobustManhattanDistance.class) {
+            return dense ? (float) int8SumOfAbs(codes, offset, zeros, scales, y, length)
+                    : RobustManhattanDistance.toDistance(
+                    int8MeanAbsoluteError(codes, offset, zeros, scales, y, length), length);
+        }
+        decodeInt8(codes, offset, zeros, scales, scratch, 0, length);
+        return dense ? metric.denseDistance(scratch, 0, y, length) : metric.distance(scratch, 0, y, length);
+    }
+
+    /**
+     * Same as halfSumOfSquares, for a row of 8-bit codes starting at
+     * offset that share one zero and scale.
+     */
+    private static double int8SumOfSquares(byte[] codes, int offset, float zero, float scale, float[] y, int length) {
+        double sumOfSquares = 0;
+        for (int j = 0; j < length; j++) {
+            final float v = zero + scale * codes[offset + j] - y[j];
+            sumOfSquares += (v * v);
+        }
+        return sumOfSquares;
+    }
+
+    /**
+     * Same as halfSumOfAbs, for a row of 8-bit codes starting at offset
+     * that share one zero and scale.
+     */
+    private static double int8SumOfAbs(byte[] codes, int offset, float zero, float scale, float[] y, int length) {
+        double sumOfError = 0;
+        for (int j = 0; j < length; j++) {
+            sumOfError += Math.abs(zero + scale * codes[offset + j] - y[j]);
+        }
+        return sumOfError;
+    }
+
+    /**
+     * Same as halfMeanSquaredError, for a row of 8-bit codes starting at
+     * offset that share one zero and scale.
+     */
+    private static double int8MeanSquaredError(byte[] codes, int offset, float zero, float scale,
+                                               float[] y, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int j = 0;
+        for (; j + 4 <= length; j += 4) {
+            final byte b0 = codes[offset + j];
+            final float v0 = zero + scale * b0 - y[j];
+            final byte b1 = codes[offset + j + 1];
+            final float v1 = zero + scale * b1 - y[j + 1];
+            final byte b2 = codes[offset + j + 2];
+            final float v2 = zero + scale * b2 - y[j + 2];
+            final byte b3 = codes[offset + j + 3];
+            final float v3 = zero + scale * b3 - y[j + 3];
+            final boolean ok0 = b0 != NAN_CODE & v0 == v0;
+            final boolean ok1 = b1 != NAN_CODE & v1 == v1;
+            final boolean ok2 = b2 != NAN_CODE & v2 == v2;
+            final boolean ok3 = b3 != NAN_CODE & v3 == v3;
+            s0 += ok0 ? v0 * v0 : 0f;
+            s1 += ok1 ? v1 * v1 : 0f;
+            s2 += ok2 ? v2 * v2 : 0f;
+            s3 += ok3 ? v3 * v3 : 0f;
+            c0 += ok0 ? 1 : 0;
+            c1 += ok1 ? 1 : 0;
+            c2 += ok2 ? 1 : 0;
+            c3 += ok3 ? 1 : 0;
+        }
+        for (; j < length; j++) {
+            final byte b = codes[offset + j];
+            final float v = zero + scale * b - y[j];
+            final boolean ok = b != NAN_CODE & v == v;
+            s0 += ok ? v * v : 0f;
+            c0 += ok ? 1 : 0;
+        }
+        int numVals = (c0 + c1) + (c2 + c3);
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return length * ((s0 + s1) + (s2 + s3)) / numVals;
+    }
+
+    /**
+     * Same as halfMeanAbsoluteError, for a row of 8-bit codes starting at
+     * offset that share one zero and scale.
+     */
+    private static double int8MeanAbsoluteError(byte[] codes, int offset, float zero, float scale,
+                                                float[] y, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int j = 0;
+        for (; j + 4 <= length; j += 4) {
+            final byte b0 = codes[offset + j];
+            final float v0 = zero + scale * b0 - y[j];
+            final byte b1 = codes[offset + j + 1];
+            final float v1 = zero + scale * b1 - y[j + 1];
+            final byte b2 = codes[offset + j + 2];
+            final float v2 = zero + scale * b2 - y[j + 2];
+            final byte b3 = codes[offset + j + 3];
+            final float v3 = zero + scale * b3 - y[j + 3];
+            final boolean ok0 = b0 != NAN_CODE & v0 == v0;
+            final boolean ok1 = b1 != NAN_CODE & v1 == v1;
+            final boolean ok2 = b2 != NAN_CODE & v2 == v2;
+            final boolean ok3 = b3 != NAN_CODE & v3 == v3;
+            s0 += ok0 ? Math.abs(v0) : 0f;
+            s1 += ok1 ? Math.abs(v1) : 0f;
+            s2 += ok2 ? Math.abs(v2) : 0f;
+            s3 += ok3 ? Math.abs(v3) : 0f;
+            c0 += ok0 ? 1 : 0;
+            c1 += ok1 ? 1 : 0;
+            c2 += ok2 ? 1 : 0;
+            c3 += ok3 ? 1 : 0;
+        }
+        for (; j < length; j++) {
+            final byte b = codes[offset + j];
+            final float v = zero + scale * b - y[j];
+            final boolean ok = b != NAN_CODE & v == v;
+            s0 += ok ? Math.abs(v) : 0f;
+            c0 += ok ? 1 : 0;
+        }
+        int numVals = (c0 + c1) + (c2 + c3);
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return ((s0 + s1) + (s2 + s3)) / numVals;
+    }
+
+    /**
+     * Same as halfSumOfSquares, for a row of 8-bit codes starting at
+     * offset with a zero and scale per dimension.
+     */
+    private static double int8SumOfSquares(byte[] codes, int offset, float[] zeros, float[] scales,
+                                           float[] y, int length) {
+        double sumOfSquares = 0;
+        for (int j = 0; j < length; j++) {
+            final float v = zeros[j] + scales[j] * codes[offset + j] - y[j];
+            sumOfSquares += (v * v);
+        }
+        return sumOfSquares;
+    }
+
+    /**
+     * Same as halfSumOfAbs, for a row of 8-bit codes starting at offset
+     * with a zero and scale per dimension.
+     */
+    private static double int8SumOfAbs(byte[] codes, int offset, float[] zeros, float[] scales, float[] y, int length) {
+        double sumOfError = 0;
+        for (int j = 0; j < length; j++) {
+            sumOfError += Math.abs(zeros[j] + scales[j] * codes[offset + j] - y[j]);
+        }
+        return sumOfError;
+    }
+
+    /**
+     * Same as halfMeanSquaredError, for a row of 8-bit codes starting at
+     * offset with a zero and scale per dimension.
+     */
+    private static double int8MeanSquaredError(byte[] codes, int offset, float[] zeros, float[] scales,
+                                               float[] y, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int j = 0;
+        for (; j + 4 <= length; j += 4) {
+            final byte b0 = codes[offset + j];
+            final float v0 = zeros[j] + scales[j] * b0 - y[j];
+            final byte b1 = codes[offset + j + 1];
+            final float v1 = zeros[j + 1] + scales[j + 1] * b1 - y[j + 1];
+            final byte b2 = codes[offset + j + 2];
+            final float v2 = zeros[j + 2] + scales[j + 2] * b2 - y[j + 2];
+            final byte b3 = codes[offset + j + 3];
+            final float v3 = zeros[j + 3] + scales[j + 3] * b3 - y[j + 3];
+            final boolean ok0 = b0 != NAN_CODE & v0 == v0;
+            final boolean ok1 = b1 != NAN_CODE & v1 == v1;
+            final boolean ok2 = b2 != NAN_CODE & v2 == v2;
+            final boolean ok3 = b3 != NAN_CODE & v3 == v3;
+            s0 += ok0 ? v0 * v0 : 0f;
+            s1 += ok1 ? v1 * v1 : 0f;
+            s2 += ok2 ? v2 * v2 : 0f;
+            s3 += ok3 ? v3 * v3 : 0f;
+            c0 += ok0 ? 1 : 0;
+            c1 += ok1 ? 1 : 0;
+            c2 += ok2 ? 1 : 0;
+            c3 += ok3 ? 1 : 0;
+        }
+        for (; j < length; j++) {
+            final byte b = codes[offset + j];
+            final float v = zeros[j] + scales[j] * b - y[j];
+            final boolean ok = b != NAN_CODE & v == v;
+            s0 += ok ? v * v : 0f;
+            c0 += ok ? 1 : 0;
+        }
+        int numVals = (c0 + c1) + (c2 + c3);
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return length * ((s0 + s1) + (s2 + s3)) / numVals;
+    }
+
+    /**
+     * Same as halfMeanAbsoluteError, for a row of 8-bit codes starting at
+     * offset with a zero and scale per dimension.
+     */
+    private static double int8MeanAbsoluteError(byte[] codes, int offset, float[] zeros, float[] scales,
+                                                float[] y, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int c0 = 0, c1 = 0, c2 = 0, c3 = 0;
+        int j = 0;
+        for (; j + 4 <= length; j += 4) {
+            final byte b0 = codes[offset + j];
+            final float v0 = zeros[j] + scales[j] * b0 - y[j];
+            final byte b1 = codes[offset + j + 1];
+            final float v1 = zeros[j + 1] + scales[j + 1] * b1 - y[j + 1];
+            final byte b2 = codes[offset + j + 2];
+            final float v2 = zeros[j + 2] + scales[j + 2] * b2 - y[j + 2];
+            final byte b3 = codes[offset + j + 3];
+            final float v3 = zeros[j + 3] + scales[j + 3] * b3 - y[j + 3];
+            final boolean ok0 = b0 != NAN_CODE & v0 == v0;
+            final boolean ok1 = b1 != NAN_CODE & v1 == v1;
+            final boolean ok2 = b2 != NAN_CODE & v2 == v2;
+            final boolean ok3 = b3 != NAN_CODE & v3 == v3;
+            s0 += ok0 ? Math.abs(v0) : 0f;
+            s1 += ok1 ? Math.abs(v1) : 0f;
+            s2 += ok2 ? Math.abs(v2) : 0f;
+            s3 += ok3 ? Math.abs(v3) : 0f;
+            c0 += ok0 ? 1 : 0;
+            c1 += ok1 ? 1 : 0;
+            c2 += ok2 ? 1 : 0;
+            c3 += ok3 ? 1 : 0;
+        }
+        for (; j < length; j++) {
+            final byte b = codes[offset + j];
+            final float v = zeros[j] + scales[j] * b - y[j];
+            final boolean ok = b != NAN_CODE & v == v;
+            s0 += ok ? Math.abs(v) : 0f;
+            c0 += ok ? 1 : 0;
+        }
+        int numVals = (c0 + c1) + (c2 + c3);
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return ((s0 + s1) + (s2 + s3)) / numVals;
+    }
+}
@@ -26,26 +26,101 @@ package robust.concurrent.kmeans.metric;
 
 public class RobustEuclideanDistance extends DistanceMetric {
     public static final RobustEuclideanDistance SINGLETON = new RobustEuclideanDistance();
+    private final DistanceKernels kernels;
+
+    public RobustEuclideanDistance() {
+        this(DistanceKernels.DEFAULT);
+    }
+
+    /**
+     * @param kernels the implementation of the inner loops.
+     */
+    public RobustEuclideanDistance(DistanceKernels kernels) {
+        this.kernels = kernels;
+    }
 
     @Override
     public float distance(final float[] x, final float[] y) {
         return (float) Math.sqrt(getNonNanMeanSquaredError(x, y));
     }
 
+    @Override
+    public float distance(final float[] x, final int xOffset, final float[] y, final int length) {
+        return (float) Math.sqrt(getNonNanMeanSquaredError(x, xOffset, y, length));
+    }
+
     public double getNonNanMeanSquaredError(float[] x, float[] y) {
+        return getNonNanMeanSquaredError(x, 0, y, x.length);
+    }
+
+    public double getNonNanMeanSquaredError(float[] x, int xOffset, float[] y, int length) {
+        return kernels.nonNanMeanSquaredError(x, xOffset, y, length);
+    }
+
+    @Override
+    public float denseDistance(final float[] x, final int xOffset, final float[] y, final int length) {
+        return (float) Math.sqrt(kernels.denseSumOfSquares(x, xOffset, y, 0, length));
+    }
+
+    @Override
+    protected float maskedDistance(final float[] x, final int xOffset, final long[] xBits, final int xWord,
+                                   final float[] y, final long[] yBits, final int yWord, final int length) {
         double sumOfSquares = 0;
         int numVals = 0;
-        for (int i = 0; i < x.length; i++) {
-            final float v = x[i] - y[i];
-            if (!Float.isNaN(v)) {
-                sumOfSquares += (v * v);
+        for (int w = 0, base = 0; base < length; w++, base += 64) {
+            long valid = ~((xBits == null ? 0L : xBits[xWord + w]) | (yBits == null ? 0L : yBits[yWord + w]));
+            int span = Math.min(64, length - base);
+            if (span < 64) {
+                valid &= (1L << span) - 1;
+            }
+            if (valid == -1L) {
+                // The whole word is defined in both vectors.
+                sumOfSquares += kernels.denseSumOfSquares(x, xOffset + base, y, base, 64);
+                numVals += 64;
+            } else {
+                numVals += Long.bitCount(valid);
+                while (valid != 0) {
+                    int j = base + Long.numberOfTrailingZeros(valid);
+                    final float v = x[xOffset + j] - y[j];
+                    sumOfSquares += (v * v);
+                    valid &= valid - 1;
+                }
+            }
+        }
+        return scale(sumOfSquares, numVals, length);
+    }
+
+    @Override
+    public float sparseDistance(final int[] indices, final float[] values, final int from, final int to,
+                                final float[] y, final NanMasks yMasks, final int yVector, final int length) {
+        double sumOfSquares = 0;
+        if (yMasks != null && yMasks.isDense(yVector)) {
+            for (int e = from; e < to; e++) {
+                final float v = values[e] - y[indices[e]];
+                sumOfSquares += v * v;
+            }
+            return scale(sumOfSquares, to - from, length);
+        }
+        int numVals = 0;
+        for (int e = from; e < to; e++) {
+            final float c = y[indices[e]];
+            if (!Float.isNaN(c)) {
+                final float v = values[e] - c;
+                sumOfSquares += v * v;
                 numVals++;
             }
         }
+        return scale(sumOfSquares, numVals, length);
+    }
+
+    /**
+     * Converts the sum accumulated over numVals defined dimensions into
+     * the distance, rescaled to the full length.
+     */
+    protected float scale(final double sumOfSquares, final int numVals, final int length) {
         if (numVals < 1) {
-            //System.err.println("Vector too sparse");
-            return Float.MAX_VALUE;
+            return (float) Math.sqrt(Float.MAX_VALUE);
         }
-        return x.length * sumOfSquares / numVals;
+        return (float) Math.sqrt(length * sumOfSquares / numVals);
     }
 }
@@ -26,28 +26,112 @@ package robust.concurrent.kmeans.metric;
 
 public class RobustManhattanDistance extends DistanceMetric {
     public static final RobustManhattanDistance SINGLETON = new RobustManhattanDistance();
+    private final DistanceKernels kernels;
+
+    public RobustManhattanDistance() {
+        this(DistanceKernels.DEFAULT);
+    }
+
+    /**
+     * @param kernels the implementation of the inner loops.
+     */
+    public RobustManhattanDistance(DistanceKernels kernels) {
+        this.kernels = kernels;
+    }
 
     @Override
     public float distance(final float[] x, final float[] y) {
         //  D(x, y) = \sqrt{\sum_i (x_i - y_i)^2}
-        double result = getNonNanMeanAbsoluteError(x, y);
-        return (float) (result * x.length);
+        return toDistance(getNonNanMeanAbsoluteError(x, 0, y, x.length), x.length);
     }
 
-    private double getNonNanMeanAbsoluteError(float[] x, float[] y) {
+    @Override
+    public float distance(final float[] x, final int xOffset, final float[] y, final int length) {
+        return toDistance(getNonNanMeanAbsoluteError(x, xOffset, y, length), length);
+    }
+
+    private double getNonNanMeanAbsoluteError(float[] x, int xOffset, float[] y, int length) {
+        return kernels.nonNanMeanAbsoluteError(x, xOffset, y, length);
+    }
+
+    @Override
+    public float denseDistance(final float[] x, final int xOffset, final float[] y, final int length) {
+        return (float) kernels.denseSumOfAbs(x, xOffset, y, 0, length);
+    }
+
+    @Override
+    protected float maskedDistance(final float[] x, final int xOffset, final long[] xBits, final int xWord,
+                                   final float[] y, final long[] yBits, final int yWord, final int length) {
         double sumOfError = 0;
-        int numDiffs = 0;
-        for (int i = 0; i < x.length; i++) {
-            float diff = x[i] - y[i];
-            if (!Float.isNaN(diff)) {
+        int numVals = 0;
+        for (int w = 0, base = 0; base < length; w++, base += 64) {
+            long valid = ~((xBits == null ? 0L : xBits[xWord + w]) | (yBits == null ? 0L : yBits[yWord + w]));
+            int span = Math.min(64, length - base);
+            if (span < 64) {
+                valid &= (1L << span) - 1;
+            }
+            if (valid == -1L) {
+                // The whole word is defined in both vectors.
+                sumOfError += kernels.denseSumOfAbs(x, xOffset + base, y, base, 64);
+                numVals += 64;
+            } else {
+                numVals += Long.bitCount(valid);
+                while (valid != 0) {
+                    int j = base + Long.numberOfTrailingZeros(valid);
+                    final float diff = x[xOffset + j] - y[j];
+                    sumOfError += Math.abs(diff);
+                    valid &= valid - 1;
+                }
+            }
+        }
+        return scale(sumOfError, numVals, length);
+    }
+
+    @Override
+    public float sparseDistance(final int[] indices, final float[] values, final int from, final int to,
+                                final float[] y, final NanMasks yMasks, final int yVector, final int length) {
+        double sumOfError = 0;
+        if (yMasks != null && yMasks.isDense(yVector)) {
+            for (int e = from; e < to; e++) {
+                final float diff = values[e] - y[indices[e]];
+                sumOfError += Math.abs(diff);
+            }
+            return scale(sumOfError, to - from, length);
+        }
+        int numVals = 0;
+        for (int e = from; e < to; e++) {
+            final float c = y[indices[e]];
+            if (!Float.isNaN(c)) {
+                final float diff = values[e] - c;
                 sumOfError += Math.abs(diff);
-                numDiffs++;
+                numVals++;
             }
         }
+        return scale(sumOfError, numVals, length);
+    }
+
+    /**
+     * Converts the sum accumulated over numVals defined dimensions into
+     * the distance, rescaled to the full length.
+     */
+    protected float scale(final double sumOfError, final int numDiffs, final int length) {
         if (numDiffs < 1) {
-            //System.err.println("Vector too sparse");
             return Float.MAX_VALUE;
         }
-        return sumOfError / numDiffs;
+        return (float) (sumOfError / numDiffs * length);
+    }
+
+    /**
+     * Rescales a mean absolute error to the full length.  The
+     * Float.MAX_VALUE of vectors with no dimension in common is kept as
+     * is: multiplied by the length it would overflow to infinity, which no
+     * nearest-center search can pick, much as the robust euclidean metric
+     * keeps that distance finite.
+     */
+    static float toDistance(final double meanError, final int length) {
+        if (meanError >= Float.MAX_VALUE) {
+            return Float.MAX_VALUE;
+        }
+        return (float) (meanError * length);
     }
 }
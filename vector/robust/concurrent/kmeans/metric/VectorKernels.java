@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright 2021 Rice University, Baylor College of Medicine, Aiden Lab
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ *  THE SOFTWARE.
+ */
+
+package robust.concurrent.kmeans.metric;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Inner loops of the robust metrics on the incubating Vector API.  The
+ * differences are computed a full vector at a time; a NaN difference is
+ * the only one not equal to itself, so the lanes that compare equal to
+ * themselves form the mask of the defined dimensions, which gates the
+ * accumulation and whose population is the count.  The lane sums are
+ * kept in floats for at most BLOCK values and then added into a double,
+ * so the result stays close to the scalar kernels' on long vectors.  The
+ * tail shorter than a vector is finished one value at a time.
+ * <p>
+ * Loaded by name by DistanceKernels; requires Java 16 or later with
+ * {@code --add-modules jdk.incubator.vector}.
+ */
+final class VectorKernels extends DistanceKernels {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // Values summed in float lanes before flushing into the double sum.
+    private static final int BLOCK = 256;
+
+    public VectorKernels() {
+    }
+
+    @Override
+    public double denseSumOfSquares(float[] x, int xOffset, float[] y, int yOffset, int length) {
+        int step = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        double sum = 0;
+        int i = 0;
+        while (i < bound) {
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (int end = Math.min(bound, i + BLOCK); i < end; i += step) {
+                FloatVector v = FloatVector.fromArray(SPECIES, x, xOffset + i)
+                        .sub(FloatVector.fromArray(SPECIES, y, yOffset + i));
+                acc = v.fma(v, acc);
+            }
+            sum += acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < length; i++) {
+            final float v = x[xOffset + i] - y[yOffset + i];
+            sum += v * v;
+        }
+        return sum;
+    }
+
+    @Override
+    public double denseSumOfAbs(float[] x, int xOffset, float[] y, int yOffset, int length) {
+        int step = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        double sum = 0;
+        int i = 0;
+        while (i < bound) {
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (int end = Math.min(bound, i + BLOCK); i < end; i += step) {
+                FloatVector v = FloatVector.fromArray(SPECIES, x, xOffset + i)
+                        .sub(FloatVector.fromArray(SPECIES, y, yOffset + i));
+                acc = acc.add(v.abs());
+            }
+            sum += acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < length; i++) {
+            sum += Math.abs(x[xOffset + i] - y[yOffset + i]);
+        }
+        return sum;
+    }
+
+    @Override
+    public double nonNanMeanSquaredError(float[] x, int xOffset, float[] y, int length) {
+        int step = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        double sum = 0;
+        int numVals = 0;
+        int i = 0;
+        while (i < bound) {
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (int end = Math.min(bound, i + BLOCK); i < end; i += step) {
+                FloatVector v = FloatVector.fromArray(SPECIES, x, xOffset + i)
+                        .sub(FloatVector.fromArray(SPECIES, y, i));
+                VectorMask<Float> defined = v.compare(VectorOperators.EQ, v);
+                acc = acc.add(v.mul(v), defined);
+                numVals += defined.trueCount();
+            }
+            sum += acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < length; i++) {
+            final float v = x[xOffset + i] - y[i];
+            if (v == v) {
+                sum += v * v;
+                numVals++;
+            }
+        }
+        if (numVals < 1) {
+            return Float.MAX_VALUE;
+        }
+        return length * sum / numVals;
+    }
+
+    @Override
+    public double nonNanMeanAbsoluteError(float[] x, int xOffset, float[] y, int length) {
+        int step = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        double sum = 0;
+        int numDiffs = 0;
+        int i = 0;
+        while (i < bound) {
+            FloatVector acc = FloatVector.zero(SPECIES);
+            for (int end = Math.min(bound, i + BLOCK); i < end; i += step) {
+                FloatVector v = FloatVector.fromArray(SPECIES, x, xOffset + i)
+                        .sub(FloatVector.fromArray(SPECIES, y, i));
+                VectorMask<Float> defined = v.compare(VectorOperators.EQ, v);
+                acc = acc.add(v.abs(), defined);
+                numDiffs += defined.trueCount();
+            }
+            sum += acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; i < length; i++) {
+            final float v = x[xOffset + i] - y[i];
+            if (v == v) {
+                sum += Math.abs(v);
+                numDiffs++;
+            }
+        }
+        if (numDiffs < 1) {
+            return Float.MAX_VALUE;
+        }
+        return sum / numDiffs;
+    }
+}